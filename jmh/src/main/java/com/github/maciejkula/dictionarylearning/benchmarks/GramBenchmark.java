@@ -0,0 +1,63 @@
+package com.github.maciejkula.dictionarylearning.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.SparseColumnMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.maciejkula.dictionarylearning.CompressedDictionary;
+import com.github.maciejkula.dictionarylearning.MathUtils;
+
+/**
+ * Full computation of A'A, over hash-backed and compressed column storage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GramBenchmark {
+
+	@Param({"16", "64", "256"})
+	public int numberOfAtoms;
+
+	@Param({"1682", "1048576"})
+	public int numberOfFeatures;
+
+	@Param({"10", "100", "1000"})
+	public int nonZeroes;
+
+	private SparseColumnMatrix dictionary;
+	private CompressedDictionary compressedDictionary;
+
+	@Setup
+	public void setUp() {
+		this.dictionary = SyntheticData.randomDictionary(new Random(42), this.numberOfFeatures, 
+				this.numberOfAtoms, this.nonZeroes);
+		this.compressedDictionary = CompressedDictionary.fromMatrix(this.dictionary);
+	}
+
+	@Benchmark
+	public Matrix sparseColumnMatrix() {
+		return MathUtils.transposedDictionaryTimesDictionary(this.dictionary);
+	}
+
+	@Benchmark
+	public Matrix compressedDictionary() {
+		return MathUtils.transposedDictionaryTimesDictionary(this.compressedDictionary);
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.github.maciejkula.dictionarylearning.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mahout.math.Matrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.maciejkula.dictionarylearning.NeighbourIndex;
+import com.github.maciejkula.dictionarylearning.TopK;
+
+/**
+ * Top-10 similarity queries over codes, approximate and exact.
+ *
+ * The approximate search's recall@10 against exact search is printed
+ * when the index has been built.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NeighbourIndexBenchmark {
+
+	private static final int K = 10;
+
+	@Param({"16", "64"})
+	public int numberOfAtoms;
+
+	@Param({"10000", "100000"})
+	public int numberOfEntities;
+
+	@Param({"10", "50", "200"})
+	public int searchEf;
+
+	private Matrix queries;
+	private NeighbourIndex index;
+	private int position;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		Matrix codes = SyntheticData.clusteredCodes(random, this.numberOfEntities + 100, this.numberOfAtoms, 100);
+		this.queries = codes.viewPart(this.numberOfEntities, 100, 0, this.numberOfAtoms);
+		this.index = new NeighbourIndex(this.numberOfAtoms, this.numberOfEntities);
+		this.index.addAll(codes.viewPart(0, this.numberOfEntities, 0, this.numberOfAtoms));
+		this.index.setSearchEf(this.searchEf);
+
+		int found = 0;
+		for (int i=0; i < this.queries.numRows(); i++) {
+			int[] approximate = this.index.search(this.queries.viewRow(i), K).getIndices();
+			for (int id : this.index.exactSearch(this.queries.viewRow(i), K).getIndices()) {
+				for (int other : approximate) {
+					if (id == other) {
+						found++;
+						break;
+					}
+				}
+			}
+		}
+		System.out.println(String.format("%nrecall@%s: %.3f", K, found / (double) (this.queries.numRows() * K)));
+	}
+
+	@Benchmark
+	public TopK search() {
+		this.position = (this.position + 1) % this.queries.numRows();
+		return this.index.search(this.queries.viewRow(this.position), K);
+	}
+
+	@Benchmark
+	public TopK exactSearch() {
+		this.position = (this.position + 1) % this.queries.numRows();
+		return this.index.exactSearch(this.queries.viewRow(this.position), K);
+	}
+
+}
@@ -0,0 +1,55 @@
+package com.github.maciejkula.dictionarylearning.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.maciejkula.dictionarylearning.EvaluationUtils;
+
+/**
+ * Ranking a reconstructed datapoint's scores for evaluation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RankMapBenchmark {
+
+	@Param({"1682", "1048576"})
+	public int numberOfFeatures;
+
+	@Param({"100", "1000", "10000"})
+	public int nonZeroes;
+
+	private Vector scores;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		this.scores = new RandomAccessSparseVector(this.numberOfFeatures);
+		for (int i=0; i < this.nonZeroes; i++) {
+			this.scores.setQuick(random.nextInt(this.numberOfFeatures), random.nextGaussian());
+		}
+	}
+
+	@Benchmark
+	public EvaluationUtils.RankMap getRankMap() {
+		return EvaluationUtils.getRankMap(this.scores);
+	}
+
+}
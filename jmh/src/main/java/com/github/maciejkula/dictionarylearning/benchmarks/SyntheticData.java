@@ -0,0 +1,105 @@
+package com.github.maciejkula.dictionarylearning.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SparseColumnMatrix;
+import org.apache.mahout.math.Vector;
+
+import com.github.maciejkula.dictionarylearning.CholeskyTransformer;
+import com.github.maciejkula.dictionarylearning.DictionaryLearner;
+import com.github.maciejkula.dictionarylearning.LSMRTransformer;
+import com.github.maciejkula.dictionarylearning.SparseCodingTransformer;
+import com.github.maciejkula.dictionarylearning.Transformer;
+
+/**
+ * Generators for synthetic benchmark inputs.
+ *
+ * Feature popularity is skewed towards low indices, as with items in
+ * interaction data, so that datapoints and atoms overlap even in very
+ * high-dimensional feature spaces.
+ */
+public class SyntheticData {
+
+	private static int randomFeature(Random random, int numberOfFeatures) {
+		return (int) (numberOfFeatures * Math.pow(random.nextDouble(), 3));
+	}
+
+	public static Vector randomDatapoint(Random random, int numberOfFeatures, int nonZeroes) {
+		Vector datapoint = new RandomAccessSparseVector(numberOfFeatures, nonZeroes);
+		while (datapoint.getNumNondefaultElements() < Math.min(nonZeroes, numberOfFeatures)) {
+			datapoint.setQuick(randomFeature(random, numberOfFeatures), 1.0);
+		}
+		return datapoint;
+	}
+
+	public static List<Vector> randomDatapoints(Random random, int count, int numberOfFeatures, int nonZeroes) {
+		List<Vector> datapoints = new ArrayList<Vector>(count);
+		for (int i=0; i < count; i++) {
+			datapoints.add(randomDatapoint(random, numberOfFeatures, nonZeroes));
+		}
+		return datapoints;
+	}
+
+	public static SparseColumnMatrix randomDictionary(Random random, int numberOfFeatures, int numberOfAtoms, int nonZeroes) {
+		SparseColumnMatrix dictionary = new SparseColumnMatrix(numberOfFeatures, numberOfAtoms);
+		for (int i=0; i < numberOfAtoms; i++) {
+			Vector atom = dictionary.viewColumn(i);
+			for (int j=0; j < nonZeroes; j++) {
+				atom.setQuick(randomFeature(random, numberOfFeatures), random.nextDouble());
+			}
+		}
+		return dictionary;
+	}
+
+	/*
+	 * Dense codes scattered around a number of random centres, as the codes
+	 * of users with similar tastes are.
+	 */
+	public static Matrix clusteredCodes(Random random, int count, int numberOfAtoms, int numberOfClusters) {
+		Matrix centres = new DenseMatrix(numberOfClusters, numberOfAtoms);
+		for (int i=0; i < numberOfClusters; i++) {
+			for (int j=0; j < numberOfAtoms; j++) {
+				centres.setQuick(i, j, random.nextGaussian());
+			}
+		}
+		Matrix codes = new DenseMatrix(count, numberOfAtoms);
+		for (int i=0; i < count; i++) {
+			Vector centre = centres.viewRow(random.nextInt(numberOfClusters));
+			for (int j=0; j < numberOfAtoms; j++) {
+				codes.setQuick(i, j, centre.getQuick(j) + 0.5 * random.nextGaussian());
+			}
+		}
+		return codes;
+	}
+
+	public static Transformer createTransformer(String name) {
+		if (name.equals("lsmr")) {
+			return new LSMRTransformer();
+		} else if (name.equals("cholesky")) {
+			return new CholeskyTransformer();
+		} else if (name.equals("sparse")) {
+			return new SparseCodingTransformer(0.1);
+		}
+		throw new IllegalArgumentException("Unknown transformer: " + name);
+	}
+
+	/*
+	 * A learner that has been trained once on every datapoint, so that
+	 * all atoms are initialized.
+	 */
+	public static DictionaryLearner trainedLearner(int numberOfAtoms, int numberOfFeatures, 
+			Transformer transformer, List<Vector> datapoints) {
+		DictionaryLearner dictionaryLearner = new DictionaryLearner(numberOfAtoms, numberOfFeatures, transformer);
+		dictionaryLearner.setL1Penalty(0.15);
+		for (Vector datapoint : datapoints) {
+			dictionaryLearner.train(datapoint);
+		}
+		return dictionaryLearner;
+	}
+
+}
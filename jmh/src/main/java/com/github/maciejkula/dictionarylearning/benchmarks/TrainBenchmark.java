@@ -0,0 +1,67 @@
+package com.github.maciejkula.dictionarylearning.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mahout.math.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.maciejkula.dictionarylearning.DictionaryLearner;
+
+/**
+ * Cost of a single online training step.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrainBenchmark {
+
+	@Param({"16", "64", "256"})
+	public int numberOfAtoms;
+
+	@Param({"1682", "1048576"})
+	public int numberOfFeatures;
+
+	@Param({"10", "100"})
+	public int nonZeroes;
+
+	@Param({"lsmr", "cholesky", "sparse"})
+	public String transformer;
+
+	@Param({"false", "true"})
+	public boolean lazyRegularization;
+
+	private List<Vector> datapoints;
+	private DictionaryLearner dictionaryLearner;
+	private int position;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		this.datapoints = SyntheticData.randomDatapoints(random, 1000, this.numberOfFeatures, this.nonZeroes);
+		this.dictionaryLearner = SyntheticData.trainedLearner(this.numberOfAtoms, this.numberOfFeatures,
+				SyntheticData.createTransformer(this.transformer), this.datapoints.subList(0, this.numberOfAtoms));
+		this.dictionaryLearner.setLazyRegularization(this.lazyRegularization);
+	}
+
+	@Benchmark
+	public Vector train() {
+		this.position = (this.position + 1) % this.datapoints.size();
+		return this.dictionaryLearner.train(this.datapoints.get(this.position));
+	}
+
+}
@@ -0,0 +1,75 @@
+package com.github.maciejkula.dictionarylearning.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mahout.math.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.maciejkula.dictionarylearning.DictionaryLearner;
+
+/**
+ * Projection on, and reconstruction from, a trained dictionary.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformBenchmark {
+
+	@Param({"16", "64", "256"})
+	public int numberOfAtoms;
+
+	@Param({"1682", "1048576"})
+	public int numberOfFeatures;
+
+	@Param({"10", "100"})
+	public int nonZeroes;
+
+	@Param({"lsmr", "cholesky", "sparse"})
+	public String transformer;
+
+	private List<Vector> datapoints;
+	private List<Vector> projections;
+	private DictionaryLearner dictionaryLearner;
+	private int position;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		this.datapoints = SyntheticData.randomDatapoints(random, 1000, this.numberOfFeatures, this.nonZeroes);
+		this.dictionaryLearner = SyntheticData.trainedLearner(this.numberOfAtoms, this.numberOfFeatures,
+				SyntheticData.createTransformer(this.transformer), this.datapoints);
+		this.projections = new ArrayList<Vector>();
+		for (Vector datapoint : this.datapoints) {
+			this.projections.add(this.dictionaryLearner.transform(datapoint));
+		}
+	}
+
+	@Benchmark
+	public Vector transform() {
+		this.position = (this.position + 1) % this.datapoints.size();
+		return this.dictionaryLearner.transform(this.datapoints.get(this.position));
+	}
+
+	@Benchmark
+	public Vector inverseTransform() {
+		this.position = (this.position + 1) % this.projections.size();
+		return this.dictionaryLearner.inverseTransform(this.projections.get(this.position));
+	}
+
+}
@@ -0,0 +1,122 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.SparseRowMatrix;
+import org.apache.mahout.math.Vector;
+
+/**
+ * Matrix-at-a-time transforms shared by the transformers.
+ *
+ * Rows are processed in parallel in blocks of BLOCK_SIZE. Within a block,
+ * A'Y is computed atom by atom against all of the block's rows, so each
+ * atom is read once per block while the (small) block stays in cache; the
+ * right-hand sides are then solved one by one against the transformer's
+ * shared factorization or Gram matrix.
+ */
+class BatchTransforms {
+
+	static final int BLOCK_SIZE = 64;
+
+	/*
+	 * Turns A'y, in place, into the projection of y. Called concurrently: must
+	 * only read shared state.
+	 */
+	interface CorrelationSolver {
+		void solveInPlace(double[] correlations);
+	}
+
+	/*
+	 * Projects every row of the matrix, returning a row of projections per datapoint.
+	 */
+	static Matrix transform(CompressedDictionary dictionary, Matrix datapoints,
+			CorrelationSolver solver, ForkJoinPool pool) {
+		Matrix output = new DenseMatrix(datapoints.numRows(), dictionary.numberOfAtoms());
+		pool.invoke(new TransformTask(dictionary, datapoints, output, solver, 0, datapoints.numRows()));
+		return output;
+	}
+
+	/*
+	 * Reconstructs every row of the matrix of projections.
+	 */
+	static Matrix inverseTransform(CompressedDictionary dictionary, Matrix projections, ForkJoinPool pool) {
+		Vector[] reconstructions = new Vector[projections.numRows()];
+		pool.invoke(new InverseTransformTask(dictionary, projections, reconstructions, 0, projections.numRows()));
+		return new SparseRowMatrix(projections.numRows(), dictionary.numberOfFeatures(), reconstructions, true, true);
+	}
+
+	private static class TransformTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final CompressedDictionary dictionary;
+		private final Matrix datapoints;
+		private final Matrix output;
+		private final CorrelationSolver solver;
+		private final int start;
+		private final int end;
+
+		private TransformTask(CompressedDictionary dictionary, Matrix datapoints, Matrix output,
+				CorrelationSolver solver, int start, int end) {
+			this.dictionary = dictionary;
+			this.datapoints = datapoints;
+			this.output = output;
+			this.solver = solver;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.end - this.start <= BLOCK_SIZE) {
+				double[][] correlations = new double[this.end - this.start][this.dictionary.numberOfAtoms()];
+				MathUtils.transposedDictionaryTimesDatapoints(this.dictionary, this.datapoints, this.start, this.end, correlations);
+				for (int i=0; i < correlations.length; i++) {
+					this.solver.solveInPlace(correlations[i]);
+					this.output.viewRow(this.start + i).assign(correlations[i]);
+				}
+			} else {
+				int middle = (this.start + this.end) >>> 1;
+				invokeAll(new TransformTask(this.dictionary, this.datapoints, this.output, this.solver, this.start, middle),
+						new TransformTask(this.dictionary, this.datapoints, this.output, this.solver, middle, this.end));
+			}
+		}
+	}
+
+	private static class InverseTransformTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final CompressedDictionary dictionary;
+		private final Matrix projections;
+		private final Vector[] reconstructions;
+		private final int start;
+		private final int end;
+
+		private InverseTransformTask(CompressedDictionary dictionary, Matrix projections,
+				Vector[] reconstructions, int start, int end) {
+			this.dictionary = dictionary;
+			this.projections = projections;
+			this.reconstructions = reconstructions;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.end - this.start <= BLOCK_SIZE) {
+				for (int i=this.start; i < this.end; i++) {
+					this.reconstructions[i] = MathUtils.inverseTransform(this.dictionary, this.projections.viewRow(i));
+				}
+			} else {
+				int middle = (this.start + this.end) >>> 1;
+				invokeAll(new InverseTransformTask(this.dictionary, this.projections, this.reconstructions, this.start, middle),
+						new InverseTransformTask(this.dictionary, this.projections, this.reconstructions, middle, this.end));
+			}
+		}
+	}
+
+}
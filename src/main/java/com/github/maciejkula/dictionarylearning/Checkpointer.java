@@ -0,0 +1,589 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SparseColumnMatrix;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+/**
+ * Periodic background checkpoints of a DictionaryLearner during training.
+ *
+ * Every checkpointInterval datapoints, the atoms that changed since the
+ * previous checkpoint are copied into primitive arrays on the training
+ * thread; all serialization and I/O happens on a separate writer thread
+ * while training continues. Every snapshotInterval-th checkpoint is a full
+ * snapshot, written to a new file and atomically renamed into place; the
+ * others are appended to the snapshot's delta log as records of the
+ * changed atoms, each with a checksum.
+ *
+ * Copies of unchanged atoms are shared between checkpoints rather than
+ * made again (copy-on-write at the level of atoms), so a full snapshot
+ * costs the training thread no more than a delta: only the atoms that
+ * changed are copied.
+ *
+ * restore loads the latest snapshot and replays its delta log, skipping a
+ * record left incomplete by a crash, and restores the learning rate,
+ * penalties, update threshold and step count, as well as the number of
+ * datapoints trained on so that the input can be resumed where it was.
+ * Once a snapshot has been written, older snapshots and logs are deleted.
+ *
+ * Training must go through the checkpointer's train methods, or checkpoint
+ * must be called between training steps, on the training thread.
+ */
+public class Checkpointer implements Closeable {
+
+	public static final int MAGIC = 0x444C4350;
+	public static final int VERSION = 1;
+
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".bin";
+	private static final String DELTA_LOG_PREFIX = "deltas-";
+	private static final String DELTA_LOG_SUFFIX = ".log";
+	// A delta record's length and CRC32.
+	private static final int RECORD_HEADER_BYTES = 12;
+
+	private final DictionaryLearner dictionaryLearner;
+	private final File directory;
+	private final ExecutorService writer;
+
+	private long checkpointInterval = 10000;
+	private int snapshotInterval = 10;
+
+	private long samples;
+	private long samplesSinceCheckpoint;
+	private int checkpointsSinceSnapshot;
+	private long sequenceNumber;
+
+	// The last checkpointed copy of every atom. Arrays are never modified
+	// once copied, so they can be shared with the writer thread.
+	private int[][] atomIndices;
+	private double[][] atomValues;
+
+	// Confined to the writer thread.
+	private DataOutputStream deltaLog;
+	private FileOutputStream deltaLogFile;
+
+	private volatile Throwable failure;
+
+	/*
+	 * Checkpoint the learner into the directory, continuing the numbering of
+	 * any checkpoints already in it. The first checkpoint is a full snapshot.
+	 */
+	public Checkpointer(DictionaryLearner dictionaryLearner, File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create checkpoint directory " + directory);
+		}
+		this.dictionaryLearner = dictionaryLearner;
+		this.directory = directory;
+		File latest = findLatestSnapshot(directory);
+		this.sequenceNumber = latest == null ? 0 : parseSequenceNumber(latest);
+		dictionaryLearner.trackChangedAtoms();
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "checkpoint-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/*
+	 * The number of datapoints between checkpoints.
+	 */
+	public void setCheckpointInterval(long samples) {
+		this.checkpointInterval = samples;
+	}
+
+	/*
+	 * The number of checkpoints between full snapshots: 1 to write only snapshots.
+	 */
+	public void setSnapshotInterval(int checkpoints) {
+		if (checkpoints < 1) {
+			throw new IllegalArgumentException("The snapshot interval must be at least 1");
+		}
+		this.snapshotInterval = checkpoints;
+	}
+
+	/*
+	 * The number of datapoints trained on, including those restored from a checkpoint.
+	 */
+	public long getSamples() {
+		return this.samples;
+	}
+
+	/*
+	 * Continue counting from a restored checkpoint's number of datapoints.
+	 */
+	public void setSamples(long samples) {
+		this.samples = samples;
+	}
+
+	/*
+	 * Train the learner on the datapoint, checkpointing when due.
+	 */
+	public Vector train(Vector datapoint) throws IOException {
+		Vector projection = this.dictionaryLearner.train(datapoint);
+		this.trained(1);
+		return projection;
+	}
+
+	/*
+	 * Train the learner on the mini-batch, checkpointing when due.
+	 */
+	public List<Vector> train(List<Vector> batch) throws IOException {
+		List<Vector> projections = this.dictionaryLearner.train(batch);
+		this.trained(batch.size());
+		return projections;
+	}
+
+	private void trained(int numberOfSamples) throws IOException {
+		this.samples += numberOfSamples;
+		this.samplesSinceCheckpoint += numberOfSamples;
+		if (this.samplesSinceCheckpoint >= this.checkpointInterval) {
+			this.checkpoint();
+		}
+	}
+
+	/*
+	 * Copy the changed atoms and queue them for writing, as a snapshot or a
+	 * delta depending on the snapshot interval. Returns without waiting for
+	 * the write; failures of earlier writes are thrown here.
+	 */
+	public void checkpoint() throws IOException {
+		this.throwFailure();
+		this.dictionaryLearner.flushRegularization();
+		SparseColumnMatrix dictionary = this.dictionaryLearner.getDictionaryMatrix();
+		int numberOfAtoms = dictionary.numCols();
+		List<Integer> changedAtoms = new ArrayList<Integer>();
+		if (this.atomIndices == null) {
+			this.atomIndices = new int[numberOfAtoms][];
+			this.atomValues = new double[numberOfAtoms][];
+			for (int i=0; i < numberOfAtoms; i++) {
+				this.dictionaryLearner.takeChangedAtom(i);
+				this.copyAtom(dictionary.viewColumn(i), i);
+			}
+			this.checkpointsSinceSnapshot = this.snapshotInterval;
+		} else {
+			for (int i=0; i < numberOfAtoms; i++) {
+				if (this.dictionaryLearner.takeChangedAtom(i)) {
+					this.copyAtom(dictionary.viewColumn(i), i);
+					changedAtoms.add(i);
+				}
+			}
+		}
+		final State state = new State(this.samples, this.dictionaryLearner);
+		this.samplesSinceCheckpoint = 0;
+
+		if (this.checkpointsSinceSnapshot >= this.snapshotInterval) {
+			this.checkpointsSinceSnapshot = 1;
+			final long snapshotNumber = ++this.sequenceNumber;
+			final int numberOfFeatures = dictionary.numRows();
+			final int[][] indices = this.atomIndices.clone();
+			final double[][] values = this.atomValues.clone();
+			ByteArrayOutputStream transformerBytes = new ByteArrayOutputStream();
+			this.dictionaryLearner.getTransformer().write(new DataOutputStream(transformerBytes));
+			final byte[] transformer = transformerBytes.toByteArray();
+			this.submit(new WriteTask() {
+				@Override
+				public void write() throws IOException {
+					writeSnapshot(snapshotNumber, state, numberOfFeatures, transformer, indices, values);
+				}
+			});
+		} else {
+			this.checkpointsSinceSnapshot++;
+			final int[] atoms = new int[changedAtoms.size()];
+			final int[][] indices = new int[atoms.length][];
+			final double[][] values = new double[atoms.length][];
+			for (int i=0; i < atoms.length; i++) {
+				atoms[i] = changedAtoms.get(i);
+				indices[i] = this.atomIndices[atoms[i]];
+				values[i] = this.atomValues[atoms[i]];
+			}
+			this.submit(new WriteTask() {
+				@Override
+				public void write() throws IOException {
+					writeDelta(state, atoms, indices, values);
+				}
+			});
+		}
+	}
+
+	private void copyAtom(Vector atom, int i) {
+		int[] indices = new int[atom.getNumNondefaultElements()];
+		double[] values = new double[indices.length];
+		int size = 0;
+		for (Element elem : atom.nonZeroes()) {
+			if (elem.get() != 0.0) {
+				indices[size] = elem.index();
+				values[size++] = elem.get();
+			}
+		}
+		this.atomIndices[i] = size == indices.length ? indices : Arrays.copyOf(indices, size);
+		this.atomValues[i] = size == values.length ? values : Arrays.copyOf(values, size);
+	}
+
+	/*
+	 * Wait for all queued checkpoints to be written and stop the writer thread.
+	 * Does not write a final checkpoint.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.submit(new WriteTask() {
+			@Override
+			public void write() throws IOException {
+				closeDeltaLog();
+			}
+		});
+		this.writer.shutdown();
+		try {
+			this.writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing checkpoints", e);
+		}
+		this.throwFailure();
+	}
+
+	private abstract class WriteTask implements Runnable {
+
+		public abstract void write() throws IOException;
+
+		@Override
+		public void run() {
+			if (failure != null) {
+				// Deltas must not be written past a failed write.
+				return;
+			}
+			try {
+				this.write();
+			} catch (Throwable e) {
+				failure = e;
+			}
+		}
+	}
+
+	private void submit(WriteTask task) {
+		this.writer.execute(task);
+	}
+
+	private void throwFailure() throws IOException {
+		if (this.failure != null) {
+			throw new IOException("Writing a checkpoint failed", this.failure);
+		}
+	}
+
+	/*
+	 * The learner's training state at a checkpoint.
+	 */
+	private static class State {
+
+		private final long samples;
+		private final long steps;
+		private final double learningRate;
+		private final double l1Penalty;
+		private final double l2Penalty;
+		private final double updateThreshold;
+
+		private State(long samples, DictionaryLearner dictionaryLearner) {
+			this.samples = samples;
+			this.steps = dictionaryLearner.getNumberOfSteps();
+			this.learningRate = dictionaryLearner.getLearningRate();
+			this.l1Penalty = dictionaryLearner.getL1Penalty();
+			this.l2Penalty = dictionaryLearner.getL2Penalty();
+			this.updateThreshold = dictionaryLearner.getUpdateThreshold();
+		}
+
+		private State(DataInputStream input) throws IOException {
+			this.samples = input.readLong();
+			this.steps = input.readLong();
+			this.learningRate = input.readDouble();
+			this.l1Penalty = input.readDouble();
+			this.l2Penalty = input.readDouble();
+			this.updateThreshold = input.readDouble();
+		}
+
+		private void write(DataOutputStream output) throws IOException {
+			output.writeLong(this.samples);
+			output.writeLong(this.steps);
+			output.writeDouble(this.learningRate);
+			output.writeDouble(this.l1Penalty);
+			output.writeDouble(this.l2Penalty);
+			output.writeDouble(this.updateThreshold);
+		}
+
+		private void apply(DictionaryLearner dictionaryLearner) {
+			dictionaryLearner.setLearningRate(this.learningRate);
+			dictionaryLearner.setL1Penalty(this.l1Penalty);
+			dictionaryLearner.setL2Penalty(this.l2Penalty);
+			dictionaryLearner.setUpdateThreshold(this.updateThreshold);
+		}
+
+	}
+
+	private static void writeAtom(DataOutputStream output, int[] indices, double[] values) throws IOException {
+		output.writeInt(indices.length);
+		for (int j=0; j < indices.length; j++) {
+			output.writeInt(indices[j]);
+			output.writeDouble(values[j]);
+		}
+	}
+
+	private static Vector readAtom(DataInputStream input, int numberOfFeatures) throws IOException {
+		int size = input.readInt();
+		Vector atom = new RandomAccessSparseVector(numberOfFeatures, Math.max(size, 1));
+		for (int j=0; j < size; j++) {
+			atom.setQuick(input.readInt(), input.readDouble());
+		}
+		return atom;
+	}
+
+	/*
+	 * Write the snapshot to a temporary file and rename it into place, then
+	 * start its delta log and delete older checkpoints. The directory is
+	 * synced before anything is deleted, so that a crash cannot lose the
+	 * rename after the older snapshot is gone.
+	 */
+	private void writeSnapshot(long snapshotNumber, State state, int numberOfFeatures, byte[] transformer,
+			int[][] indices, double[][] values) throws IOException {
+		File file = snapshotFile(this.directory, snapshotNumber);
+		File temporaryFile = new File(this.directory, file.getName() + ".tmp");
+		FileOutputStream fileOutput = new FileOutputStream(temporaryFile);
+		try {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			state.write(output);
+			output.writeInt(indices.length);
+			output.writeInt(numberOfFeatures);
+			output.writeInt(transformer.length);
+			output.write(transformer);
+			for (int i=0; i < indices.length; i++) {
+				writeAtom(output, indices[i], values[i]);
+			}
+			output.flush();
+			fileOutput.getFD().sync();
+		} finally {
+			fileOutput.close();
+		}
+		Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+		this.closeDeltaLog();
+		this.deltaLogFile = new FileOutputStream(deltaLogFile(this.directory, snapshotNumber));
+		this.deltaLog = new DataOutputStream(new BufferedOutputStream(this.deltaLogFile));
+		syncDirectory(this.directory);
+
+		File[] files = this.directory.listFiles();
+		for (File other : files == null ? new File[0] : files) {
+			String name = other.getName();
+			boolean isCheckpoint = (name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX))
+					|| (name.startsWith(DELTA_LOG_PREFIX) && name.endsWith(DELTA_LOG_SUFFIX));
+			if (isCheckpoint && parseSequenceNumber(other) < snapshotNumber) {
+				other.delete();
+			}
+		}
+	}
+
+	/*
+	 * Append a record of the changed atoms to the current delta log: its
+	 * length, the CRC32 of its contents, and the contents.
+	 */
+	private void writeDelta(State state, int[] atoms, int[][] indices, double[][] values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		state.write(record);
+		record.writeInt(atoms.length);
+		for (int i=0; i < atoms.length; i++) {
+			record.writeInt(atoms[i]);
+			writeAtom(record, indices[i], values[i]);
+		}
+		byte[] contents = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(contents);
+
+		this.deltaLog.writeInt(contents.length);
+		this.deltaLog.writeLong(crc.getValue());
+		this.deltaLog.write(contents);
+		this.deltaLog.flush();
+		this.deltaLogFile.getFD().sync();
+	}
+
+	/*
+	 * Make renames and new files in the directory durable. Platforms that
+	 * cannot open directories (Windows) do not need this, and are skipped.
+	 */
+	private static void syncDirectory(File directory) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void closeDeltaLog() throws IOException {
+		if (this.deltaLog != null) {
+			this.deltaLog.close();
+			this.deltaLog = null;
+			this.deltaLogFile = null;
+		}
+	}
+
+	/*
+	 * Whether the directory contains a snapshot to restore.
+	 */
+	public static boolean hasCheckpoint(File directory) {
+		return findLatestSnapshot(directory) != null;
+	}
+
+	/*
+	 * Restore the learner from the latest snapshot in the directory and its
+	 * delta log. The learner must have the same numbers of atoms and features
+	 * and the same type of transformer as the checkpointed one.
+	 *
+	 * Returns the number of datapoints trained on as of the checkpoint.
+	 */
+	public static long restore(File directory, DictionaryLearner dictionaryLearner) throws IOException {
+		File snapshot = findLatestSnapshot(directory);
+		if (snapshot == null) {
+			throw new IOException("No checkpoint in " + directory);
+		}
+		State state;
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+		try {
+			if (input.readInt() != MAGIC) {
+				throw new IOException("Not a checkpoint file: " + snapshot);
+			}
+			int version = input.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported checkpoint version: " + version);
+			}
+			state = new State(input);
+			int numberOfAtoms = input.readInt();
+			int numberOfFeatures = input.readInt();
+			if (numberOfAtoms != dictionaryLearner.getNumberOfAtoms()
+					|| numberOfFeatures != dictionaryLearner.getNumberOfFeatures()) {
+				throw new IOException(String.format("The checkpoint has %s atoms and %s features, the learner %s and %s",
+						numberOfAtoms, numberOfFeatures,
+						dictionaryLearner.getNumberOfAtoms(), dictionaryLearner.getNumberOfFeatures()));
+			}
+			byte[] transformer = new byte[input.readInt()];
+			input.readFully(transformer);
+			dictionaryLearner.getTransformer().readFields(new DataInputStream(new ByteArrayInputStream(transformer)));
+			for (int i=0; i < numberOfAtoms; i++) {
+				dictionaryLearner.setAtom(i, readAtom(input, numberOfFeatures));
+			}
+		} finally {
+			input.close();
+		}
+
+		File deltaLog = deltaLogFile(directory, parseSequenceNumber(snapshot));
+		if (deltaLog.exists()) {
+			long remaining = deltaLog.length();
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(deltaLog)));
+			try {
+				byte[] contents;
+				while ((contents = readRecord(input, remaining)) != null) {
+					remaining -= RECORD_HEADER_BYTES + contents.length;
+					DataInputStream record = new DataInputStream(new ByteArrayInputStream(contents));
+					state = new State(record);
+					int numberOfChangedAtoms = record.readInt();
+					for (int i=0; i < numberOfChangedAtoms; i++) {
+						int atom = record.readInt();
+						dictionaryLearner.setAtom(atom, readAtom(record, dictionaryLearner.getNumberOfFeatures()));
+					}
+				}
+			} finally {
+				input.close();
+			}
+		}
+
+		state.apply(dictionaryLearner);
+		dictionaryLearner.setNumberOfSteps(state.steps);
+		return state.samples;
+	}
+
+	/*
+	 * The contents of the next complete, intact record, or null at the end of
+	 * the log or at a record that was cut short or corrupted. A length longer
+	 * than the remaining bytes of the log is treated as a torn record rather
+	 * than allocated.
+	 */
+	private static byte[] readRecord(DataInputStream input, long remaining) throws IOException {
+		if (remaining < RECORD_HEADER_BYTES) {
+			return null;
+		}
+		try {
+			int length = input.readInt();
+			long checksum = input.readLong();
+			if (length < 0 || length > remaining - RECORD_HEADER_BYTES) {
+				return null;
+			}
+			byte[] contents = new byte[length];
+			input.readFully(contents);
+			CRC32 crc = new CRC32();
+			crc.update(contents);
+			return crc.getValue() == checksum ? contents : null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private static File snapshotFile(File directory, long sequenceNumber) {
+		return new File(directory, String.format("%s%020d%s", SNAPSHOT_PREFIX, sequenceNumber, SNAPSHOT_SUFFIX));
+	}
+
+	private static File deltaLogFile(File directory, long sequenceNumber) {
+		return new File(directory, String.format("%s%020d%s", DELTA_LOG_PREFIX, sequenceNumber, DELTA_LOG_SUFFIX));
+	}
+
+	private static long parseSequenceNumber(File file) {
+		String name = file.getName();
+		int start = name.indexOf('-') + 1;
+		return Long.parseLong(name.substring(start, name.indexOf('.', start)));
+	}
+
+	private static File findLatestSnapshot(File directory) {
+		File latest = null;
+		File[] files = directory.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			String name = file.getName();
+			if (name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX)
+					&& (latest == null || parseSequenceNumber(file) > parseSequenceNumber(latest))) {
+				latest = file;
+			}
+		}
+		return latest;
+	}
+
+}
@@ -0,0 +1,119 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.Arrays;
+
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.Vector;
+
+/**
+ * Cholesky factorization LL' of a symmetric positive semi-definite
+ * matrix, optionally with a ridge term added to its diagonal.
+ *
+ * Pivots that are numerically zero (for instance from atoms which are
+ * empty or linear combinations of other atoms) are dropped, and the
+ * corresponding solution entries are set to zero.
+ */
+public class CholeskyFactorization {
+
+	private static final double PIVOT_TOLERANCE = 1e-12;
+
+	private final int size;
+	// Row-major lower triangle, L[i][j] = lower[i * size + j] for j <= i.
+	private final double[] lower;
+
+	public CholeskyFactorization(Matrix matrix, double ridge) {
+		this.size = matrix.numRows();
+		this.lower = new double[this.size * this.size];
+		this.factorize(matrix, ridge);
+	}
+
+	/*
+	 * Wrap an existing factor, laid out as returned by getLowerTriangle.
+	 */
+	CholeskyFactorization(int size, double[] lower) {
+		this.size = size;
+		this.lower = lower;
+	}
+
+	/*
+	 * Factorize a new matrix of the same size, reusing this object's storage.
+	 */
+	public void factorize(Matrix matrix, double ridge) {
+		Arrays.fill(this.lower, 0.0);
+		for (int j=0; j < this.size; j++) {
+			double diagonal = matrix.getQuick(j, j) + ridge;
+			for (int k=0; k < j; k++) {
+				diagonal -= this.lower[j * this.size + k] * this.lower[j * this.size + k];
+			}
+			if (diagonal <= PIVOT_TOLERANCE * Math.max(1.0, Math.abs(matrix.getQuick(j, j)))) {
+				// Column j stays zero.
+				continue;
+			}
+			double pivot = Math.sqrt(diagonal);
+			this.lower[j * this.size + j] = pivot;
+			for (int i=j + 1; i < this.size; i++) {
+				double value = matrix.getQuick(i, j);
+				for (int k=0; k < j; k++) {
+					value -= this.lower[i * this.size + k] * this.lower[j * this.size + k];
+				}
+				this.lower[i * this.size + j] = value / pivot;
+			}
+		}
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/*
+	 * The row-major size x size factor L (zero above the diagonal). Not a copy.
+	 */
+	double[] getLowerTriangle() {
+		return this.lower;
+	}
+
+	/*
+	 * Solves LL'x = b by forward and back substitution.
+	 */
+	public Vector solve(Vector rhs) {
+		double[] output = new double[this.size];
+		for (int i=0; i < this.size; i++) {
+			output[i] = rhs.getQuick(i);
+		}
+		this.solveInPlace(output);
+		return new DenseVector(output, true);
+	}
+
+	/*
+	 * Solves LL'x = b, overwriting b with x.
+	 */
+	public void solveInPlace(double[] values) {
+		int n = this.size;
+		for (int i=0; i < n; i++) {
+			double pivot = this.lower[i * n + i];
+			if (pivot == 0.0) {
+				values[i] = 0.0;
+				continue;
+			}
+			double value = values[i];
+			for (int j=0; j < i; j++) {
+				value -= this.lower[i * n + j] * values[j];
+			}
+			values[i] = value / pivot;
+		}
+		for (int i=n - 1; i >= 0; i--) {
+			double pivot = this.lower[i * n + i];
+			if (pivot == 0.0) {
+				values[i] = 0.0;
+				continue;
+			}
+			double value = values[i];
+			for (int j=i + 1; j < n; j++) {
+				value -= this.lower[j * n + i] * values[j];
+			}
+			values[i] = value / pivot;
+		}
+	}
+
+}
@@ -0,0 +1,135 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.SparseColumnMatrix;
+import org.apache.mahout.math.Vector;
+
+/**
+ * Projects datapoints by solving (A'A + rI)x = A'y directly, using a
+ * Cholesky factorization of the Gram matrix that is computed once per
+ * dictionary version. Each projection then costs two triangular solves.
+ *
+ * A ridge r of zero gives the same least-squares projection as the
+ * LSMRTransformer.
+ */
+public class CholeskyTransformer implements Transformer {
+
+	private double ridge;
+	private final DictionaryCache cache;
+
+	public CholeskyTransformer() {
+		this(0.0);
+	}
+
+	public CholeskyTransformer(double ridge) {
+		this.ridge = ridge;
+		this.cache = new DictionaryCache();
+	}
+
+	public double getRidge() {
+		return this.ridge;
+	}
+
+	@Override
+	public Vector transform(Vector datapoint, SparseColumnMatrix dictionary) {
+		double[] projection = new double[dictionary.numCols()];
+		this.transform(datapoint, dictionary, projection);
+		return new DenseVector(projection, true);
+	}
+
+	/*
+	 * Computes A'y into the output array and solves in place: no allocation
+	 * once the caches are up to date.
+	 */
+	@Override
+	public void transform(Vector datapoint, SparseColumnMatrix dictionary, double[] projection) {
+		CholeskyFactorization factorization = this.cache.getCholeskyFactorization(dictionary, this.ridge);
+		MathUtils.transposedDictionaryTimesDatapoint(this.cache.getCompressedDictionary(dictionary), datapoint, projection);
+		factorization.solveInPlace(projection);
+	}
+
+	/*
+	 * The direct solve does not need a starting point: the initial projection is ignored.
+	 */
+	@Override
+	public Vector transform(Vector datapoint, Vector initialProjection, SparseColumnMatrix dictionary) {
+		return this.transform(datapoint, dictionary);
+	}
+
+	@Override
+	public Vector inverseTransform(Vector projection, SparseColumnMatrix dictionary) {
+		return MathUtils.inverseTransform(this.cache.getCompressedDictionary(dictionary), projection);
+	}
+
+	/*
+	 * A'Y for blocks of rows at a time, then two triangular solves per row
+	 * against the one factorization.
+	 */
+	@Override
+	public Matrix transform(Matrix datapoints, SparseColumnMatrix dictionary, ForkJoinPool pool) {
+		final CholeskyFactorization factorization = this.cache.getCholeskyFactorization(dictionary, this.ridge);
+		return BatchTransforms.transform(this.cache.getCompressedDictionary(dictionary), datapoints,
+				new BatchTransforms.CorrelationSolver() {
+			@Override
+			public void solveInPlace(double[] correlations) {
+				factorization.solveInPlace(correlations);
+			}
+		}, pool);
+	}
+
+	@Override
+	public Matrix inverseTransform(Matrix projections, SparseColumnMatrix dictionary, ForkJoinPool pool) {
+		return BatchTransforms.inverseTransform(this.cache.getCompressedDictionary(dictionary), projections, pool);
+	}
+
+	@Override
+	public TopK recommend(Vector projection, SparseColumnMatrix dictionary, int k, Vector excluded) {
+		return MathUtils.recommend(this.cache.getCompressedDictionary(dictionary), projection, k, excluded);
+	}
+
+	@Override
+	public void prepare(SparseColumnMatrix dictionary) {
+		this.cache.getCholeskyFactorization(dictionary, this.ridge);
+	}
+
+	@Override
+	public void clearCaches() {
+		this.cache.clear();
+	}
+
+	@Override
+	public Transformer copy() {
+		return new CholeskyTransformer(this.ridge);
+	}
+
+	@Override
+	public void clearCaches(int atom) {
+		this.cache.clear(atom);
+	}
+
+	/*
+	 * The direct solve has no iterations to report: only cache accesses are recorded.
+	 */
+	@Override
+	public void setMetricsListener(MetricsListener metrics) {
+		this.cache.setMetricsListener(metrics);
+	}
+
+	@Override
+	public void readFields(DataInput input) throws IOException {
+		this.ridge = input.readDouble();
+		this.cache.clear();
+	}
+
+	@Override
+	public void write(DataOutput output) throws IOException {
+		output.writeDouble(this.ridge);
+	}
+
+}
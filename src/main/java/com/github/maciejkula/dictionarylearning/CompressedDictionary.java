@@ -0,0 +1,217 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.Arrays;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SparseColumnMatrix;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+/**
+ * Compressed sparse column storage for a dictionary: every atom is kept
+ * as a pair of parallel arrays holding its nonzero feature indices (in
+ * ascending order) and their values.
+ *
+ * Reads are sequential scans over primitive arrays, with no hashing and
+ * no iterator objects. Atoms are not modified in
+ * place: they are rebuilt in bulk from their hash-backed counterparts
+ * after an update. The arrays of an atom are reused when rebuilding as
+ * long as they are large enough.
+ *
+ * A row-wise FeatureIndex is maintained alongside the columns: every
+ * nonzero also records its slot in its feature's row of the index, so that
+ * rebuilding an atom whose nonzero features have not changed only rewrites
+ * the values in the index. Columns and index take 28 bytes per nonzero.
+ *
+ * This is a copy kept next to the learner's hash-backed SparseColumnMatrix,
+ * which remains the training storage (the SGD step and regularization
+ * write to it), so it adds those 28 bytes per nonzero to the learner's
+ * memory rather than saving any: faster reads are bought with memory. To
+ * serve a trained dictionary without the training copy, use a
+ * MappedDictionary or a QuantizedDictionary.
+ */
+public class CompressedDictionary {
+
+	private final int numberOfFeatures;
+	private final int[][] indices;
+	private final double[][] values;
+	private final int[] sizes;
+
+	private final FeatureIndex featureIndex = new FeatureIndex();
+	private final int[][] slots;
+	// The indices and slots of the atom being rebuilt, before the rebuild.
+	private int[] previousIndices = new int[0];
+	private int[] previousSlots = new int[0];
+
+	public CompressedDictionary(int numberOfFeatures, int numberOfAtoms) {
+		this.numberOfFeatures = numberOfFeatures;
+		this.indices = new int[numberOfAtoms][];
+		this.values = new double[numberOfAtoms][];
+		this.sizes = new int[numberOfAtoms];
+		this.slots = new int[numberOfAtoms][];
+		for (int i=0; i < numberOfAtoms; i++) {
+			this.indices[i] = new int[0];
+			this.values[i] = new double[0];
+			this.slots[i] = new int[0];
+		}
+	}
+
+	public static CompressedDictionary fromMatrix(SparseColumnMatrix dictionary) {
+		CompressedDictionary compressed = new CompressedDictionary(dictionary.numRows(), dictionary.numCols());
+		for (int i=0; i < dictionary.numCols(); i++) {
+			compressed.setAtom(i, dictionary.viewColumn(i));
+		}
+		return compressed;
+	}
+
+	public int numberOfAtoms() {
+		return this.sizes.length;
+	}
+
+	public int numberOfFeatures() {
+		return this.numberOfFeatures;
+	}
+
+	/*
+	 * Rebuild an atom from its current values.
+	 */
+	public void setAtom(int atom, Vector vector) {
+		// An upper bound on the number of nonzeros that does not iterate over the vector:
+		// hash-backed vectors may also store explicit zeroes, which are skipped below.
+		int capacity = vector.getNumNondefaultElements();
+		int previousSize = this.sizes[atom];
+		if (this.previousIndices.length < previousSize) {
+			int length = Math.max(previousSize, 2 * this.previousIndices.length);
+			this.previousIndices = new int[length];
+			this.previousSlots = new int[length];
+		}
+		System.arraycopy(this.indices[atom], 0, this.previousIndices, 0, previousSize);
+		System.arraycopy(this.slots[atom], 0, this.previousSlots, 0, previousSize);
+		if (this.indices[atom].length < capacity) {
+			int length = Math.max(capacity, this.indices[atom].length + this.indices[atom].length / 2);
+			this.indices[atom] = new int[length];
+			this.values[atom] = new double[length];
+			this.slots[atom] = new int[length];
+		}
+		int[] atomIndices = this.indices[atom];
+		double[] atomValues = this.values[atom];
+
+		int position = 0;
+		for (Element elem : vector.nonZeroes()) {
+			if (elem.get() != 0.0) {
+				atomIndices[position++] = elem.index();
+			}
+		}
+		Arrays.sort(atomIndices, 0, position);
+		for (int i=0; i < position; i++) {
+			atomValues[i] = vector.getQuick(atomIndices[i]);
+		}
+		this.sizes[atom] = position;
+		this.updateFeatureIndex(atom, previousSize);
+	}
+
+	/*
+	 * Bring the feature index in line with the rebuilt atom by merging its
+	 * previous and current sorted indices: features present in both keep
+	 * their slots and only have their values rewritten.
+	 */
+	private void updateFeatureIndex(int atom, int previousSize) {
+		int[] atomIndices = this.indices[atom];
+		double[] atomValues = this.values[atom];
+		int[] atomSlots = this.slots[atom];
+		int size = this.sizes[atom];
+		int i = 0;
+		int j = 0;
+		while (i < previousSize || j < size) {
+			if (j == size || (i < previousSize && this.previousIndices[i] < atomIndices[j])) {
+				int feature = this.previousIndices[i];
+				int slot = this.previousSlots[i++];
+				int movedAtom = this.featureIndex.remove(feature, slot);
+				if (movedAtom >= 0) {
+					int position = Arrays.binarySearch(this.indices[movedAtom], 0, this.sizes[movedAtom], feature);
+					this.slots[movedAtom][position] = slot;
+				}
+			} else if (i == previousSize || atomIndices[j] < this.previousIndices[i]) {
+				atomSlots[j] = this.featureIndex.add(atomIndices[j], atom, atomValues[j]);
+				j++;
+			} else {
+				atomSlots[j] = this.previousSlots[i++];
+				this.featureIndex.setValue(atomIndices[j], atomSlots[j], atomValues[j]);
+				j++;
+			}
+		}
+	}
+
+	/*
+	 * The feature to atoms index of the dictionary.
+	 */
+	public FeatureIndex getFeatureIndex() {
+		return this.featureIndex;
+	}
+
+	/*
+	 * The total number of nonzeros in the dictionary.
+	 */
+	public long getNumNonZeroElements() {
+		return this.featureIndex.getNumberOfEntries();
+	}
+
+	public int getNumNonZeroElements(int atom) {
+		return this.sizes[atom];
+	}
+
+	/*
+	 * The feature indices of the atom's nonzeros; only the first
+	 * getNumNonZeroElements(atom) entries are valid.
+	 */
+	public int[] getIndices(int atom) {
+		return this.indices[atom];
+	}
+
+	/*
+	 * The atom's nonzero values, aligned with getIndices(atom).
+	 */
+	public double[] getValues(int atom) {
+		return this.values[atom];
+	}
+
+	/*
+	 * Dot product of two atoms, computed by merging their sorted indices.
+	 */
+	public double dot(int a, int b) {
+		int[] aIndices = this.indices[a];
+		int[] bIndices = this.indices[b];
+		double[] aValues = this.values[a];
+		double[] bValues = this.values[b];
+		int aSize = this.sizes[a];
+		int bSize = this.sizes[b];
+
+		double value = 0.0;
+		int i = 0;
+		int j = 0;
+		while (i < aSize && j < bSize) {
+			int aIndex = aIndices[i];
+			int bIndex = bIndices[j];
+			if (aIndex == bIndex) {
+				value += aValues[i++] * bValues[j++];
+			} else if (aIndex < bIndex) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return value;
+	}
+
+	public SparseColumnMatrix toMatrix() {
+		RandomAccessSparseVector[] atoms = new RandomAccessSparseVector[this.numberOfAtoms()];
+		for (int i=0; i < atoms.length; i++) {
+			atoms[i] = new RandomAccessSparseVector(this.numberOfFeatures, Math.max(this.sizes[i], 1));
+			for (int j=0; j < this.sizes[i]; j++) {
+				atoms[i].setQuick(this.indices[i][j], this.values[i][j]);
+			}
+		}
+		return new SparseColumnMatrix(this.numberOfFeatures, atoms.length, atoms);
+	}
+
+}
@@ -0,0 +1,222 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Phaser;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SparseColumnMatrix;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+/**
+ * Coordinator for data-parallel training: merges the dictionaries of
+ * worker learners by weighted parameter averaging, in synchronous rounds.
+ *
+ * Workers start every round from the same merged dictionary, so their atoms
+ * stay aligned and can be averaged position by position. In each round, every
+ * registered worker submits its serialized dictionary with a weight (normally
+ * the number of datapoints it trained on since the last round) and blocks
+ * until all workers have submitted; the last one to arrive merges the
+ * dictionaries, and all of them receive the serialized result.
+ *
+ * Dictionaries are exchanged as compact sparse bytes, so the same protocol
+ * works whether workers are threads (as in the DistributedTrainer) or
+ * separate processes behind a transport of choice.
+ */
+public class DictionaryAverager {
+
+	private final DictionaryLearner dictionaryLearner;
+	private final Phaser phaser;
+	private final List<Contribution> contributions = new ArrayList<Contribution>();
+	private volatile byte[] model;
+	private volatile Throwable failure;
+	private volatile long rounds;
+
+	private static class Contribution {
+		private final byte[] model;
+		private final long weight;
+
+		private Contribution(byte[] model, long weight) {
+			this.model = model;
+			this.weight = weight;
+		}
+	}
+
+	/*
+	 * Coordinate around the learner, which holds the merged dictionary
+	 * and is updated in place after every round.
+	 */
+	public DictionaryAverager(DictionaryLearner dictionaryLearner) {
+		this.dictionaryLearner = dictionaryLearner;
+		this.model = serialize(dictionaryLearner);
+		this.phaser = new Phaser() {
+			@Override
+			protected boolean onAdvance(int phase, int registeredParties) {
+				merge();
+				return registeredParties == 0;
+			}
+		};
+	}
+
+	/*
+	 * Register workers: every registered worker must either synchronize or
+	 * leave in each round.
+	 */
+	public void register(int numberOfWorkers) {
+		this.phaser.bulkRegister(numberOfWorkers);
+	}
+
+	/*
+	 * The number of rounds in which at least one model was merged.
+	 */
+	public long getRounds() {
+		return this.rounds;
+	}
+
+	/*
+	 * The current merged model.
+	 */
+	public byte[] getModel() {
+		return this.model;
+	}
+
+	/*
+	 * Submit a worker's model and wait for the round to complete.
+	 *
+	 * Returns the merged model.
+	 */
+	public byte[] synchronize(byte[] workerModel, long weight) {
+		this.contribute(workerModel, weight);
+		this.phaser.arriveAndAwaitAdvance();
+		if (this.failure != null) {
+			throw new RuntimeException(this.failure);
+		}
+		return this.model;
+	}
+
+	/*
+	 * Submit a worker's final model (which may be null if it has none) and
+	 * stop taking part in later rounds.
+	 */
+	public void leave(byte[] workerModel, long weight) {
+		this.contribute(workerModel, weight);
+		this.phaser.arriveAndDeregister();
+	}
+
+	private void contribute(byte[] workerModel, long weight) {
+		if (workerModel != null && weight > 0) {
+			synchronized (this.contributions) {
+				this.contributions.add(new Contribution(workerModel, weight));
+			}
+		}
+	}
+
+	/*
+	 * Replace every atom of the merged dictionary with the weighted average
+	 * of the submitted atoms.
+	 */
+	private void merge() {
+		List<Contribution> round;
+		synchronized (this.contributions) {
+			round = new ArrayList<Contribution>(this.contributions);
+			this.contributions.clear();
+		}
+		if (round.isEmpty()) {
+			return;
+		}
+		this.rounds++;
+		try {
+			int numberOfAtoms = this.dictionaryLearner.getNumberOfAtoms();
+			int numberOfFeatures = this.dictionaryLearner.getNumberOfFeatures();
+			Vector[] atoms = new Vector[numberOfAtoms];
+			for (int i=0; i < numberOfAtoms; i++) {
+				atoms[i] = new RandomAccessSparseVector(numberOfFeatures);
+			}
+			long totalWeight = 0;
+			DictionaryLearner workerLearner = new DictionaryLearner(numberOfAtoms, numberOfFeatures,
+					this.dictionaryLearner.getTransformer().copy());
+			for (Contribution contribution : round) {
+				deserialize(contribution.model, workerLearner);
+				for (int i=0; i < numberOfAtoms; i++) {
+					for (Element elem : workerLearner.getDictionaryMatrix().viewColumn(i).nonZeroes()) {
+						atoms[i].incrementQuick(elem.index(), contribution.weight * elem.get());
+					}
+				}
+				totalWeight += contribution.weight;
+			}
+			for (int i=0; i < numberOfAtoms; i++) {
+				this.dictionaryLearner.setAtom(i, atoms[i].divide(totalWeight));
+			}
+			this.model = serialize(this.dictionaryLearner);
+		} catch (RuntimeException e) {
+			// Rethrown in every worker rather than only the one that ran the merge.
+			this.failure = e;
+		}
+	}
+
+	/*
+	 * Serialize the learner's dictionary as the number of atoms and features
+	 * followed by each atom's number of nonzeros and its (index, value) pairs.
+	 *
+	 * This is far more compact than the learner's Writable form, which writes
+	 * the dictionary one feature (row) at a time.
+	 */
+	static byte[] serialize(DictionaryLearner dictionaryLearner) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream output = new DataOutputStream(bytes);
+			dictionaryLearner.flushRegularization();
+			SparseColumnMatrix dictionary = dictionaryLearner.getDictionaryMatrix();
+			output.writeInt(dictionary.numCols());
+			output.writeInt(dictionary.numRows());
+			for (int i=0; i < dictionary.numCols(); i++) {
+				Vector atom = dictionary.viewColumn(i);
+				output.writeInt(atom.getNumNonZeroElements());
+				for (Element elem : atom.nonZeroes()) {
+					if (elem.get() != 0.0) {
+						output.writeInt(elem.index());
+						output.writeDouble(elem.get());
+					}
+				}
+			}
+			output.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Replace the learner's atoms with those of a serialized dictionary.
+	 */
+	static void deserialize(byte[] model, DictionaryLearner dictionaryLearner) {
+		try {
+			DataInputStream input = new DataInputStream(new ByteArrayInputStream(model));
+			int numberOfAtoms = input.readInt();
+			int numberOfFeatures = input.readInt();
+			if (numberOfAtoms != dictionaryLearner.getNumberOfAtoms()
+					|| numberOfFeatures != dictionaryLearner.getNumberOfFeatures()) {
+				throw new IOException(String.format("Expected a %s x %s dictionary, got %s x %s",
+						dictionaryLearner.getNumberOfFeatures(), dictionaryLearner.getNumberOfAtoms(),
+						numberOfFeatures, numberOfAtoms));
+			}
+			for (int i=0; i < numberOfAtoms; i++) {
+				int size = input.readInt();
+				Vector atom = new RandomAccessSparseVector(numberOfFeatures, Math.max(size, 1));
+				for (int j=0; j < size; j++) {
+					atom.setQuick(input.readInt(), input.readDouble());
+				}
+				dictionaryLearner.setAtom(i, atom);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.BitSet;
+
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.SparseColumnMatrix;
+
+/**
+ * Caches quantities derived from the dictionary between updates:
+ * a compressed column copy of the dictionary, the A'A matrix and its
+ * Cholesky factorization.
+ *
+ * Atoms that have been modified are marked as stale. The next time
+ * the cache is read, only their compressed columns and their rows and
+ * columns of A'A are rebuilt. Because every entry is recomputed from
+ * the dictionary rather than updated arithmetically, no floating-point
+ * drift accumulates.
+ *
+ * Once up to date, reading the cache does not modify it, so it may
+ * be read from multiple threads as long as nothing is invalidated
+ * in the meantime.
+ */
+public class DictionaryCache {
+
+	private CompressedDictionary compressedDictionary;
+	private Matrix transposedDictionaryTimesDictionary;
+	private final BitSet staleAtoms = new BitSet();
+
+	private CholeskyFactorization choleskyFactorization;
+	private double choleskyRidge;
+	private boolean choleskyFactorizationStale = true;
+
+	private MetricsListener metrics = NoOpMetricsListener.INSTANCE;
+
+	public void setMetricsListener(MetricsListener metrics) {
+		this.metrics = metrics;
+	}
+
+	/*
+	 * Returns the dictionary in compressed column form, rebuilding stale atoms.
+	 */
+	public CompressedDictionary getCompressedDictionary(SparseColumnMatrix dictionary) {
+		if (this.compressedDictionary == null
+				|| this.compressedDictionary.numberOfAtoms() != dictionary.numCols()
+				|| this.compressedDictionary.numberOfFeatures() != dictionary.numRows()) {
+			this.compressedDictionary = CompressedDictionary.fromMatrix(dictionary);
+			this.transposedDictionaryTimesDictionary = null;
+			this.staleAtoms.clear();
+		} else if (!this.staleAtoms.isEmpty()) {
+			for (int i = this.staleAtoms.nextSetBit(0); i >= 0; i = this.staleAtoms.nextSetBit(i + 1)) {
+				this.compressedDictionary.setAtom(i, dictionary.viewColumn(i));
+			}
+			if (this.transposedDictionaryTimesDictionary != null) {
+				MathUtils.updateTransposedDictionaryTimesDictionary(this.compressedDictionary,
+						this.transposedDictionaryTimesDictionary, this.staleAtoms);
+			}
+			this.staleAtoms.clear();
+		}
+		return this.compressedDictionary;
+	}
+
+	/*
+	 * Returns A'A for the dictionary, recomputing only what is stale.
+	 */
+	public Matrix getTransposedDictionaryTimesDictionary(SparseColumnMatrix dictionary) {
+		if (this.metrics.isEnabled()) {
+			this.metrics.gramCacheAccess(this.transposedDictionaryTimesDictionary == null 
+					|| this.compressedDictionary == null
+					|| this.compressedDictionary.numberOfAtoms() != dictionary.numCols()
+					? dictionary.numCols() : this.staleAtoms.cardinality());
+		}
+		CompressedDictionary compressed = this.getCompressedDictionary(dictionary);
+		if (this.transposedDictionaryTimesDictionary == null) {
+			this.transposedDictionaryTimesDictionary = MathUtils.transposedDictionaryTimesDictionary(compressed);
+		}
+		return this.transposedDictionaryTimesDictionary;
+	}
+
+	/*
+	 * Returns the Cholesky factorization of A'A + rI, where r is the ridge.
+	 * The factorization is recomputed whenever any atom has changed.
+	 */
+	public CholeskyFactorization getCholeskyFactorization(SparseColumnMatrix dictionary, double ridge) {
+		if (this.choleskyFactorizationStale || this.choleskyRidge != ridge) {
+			Matrix gram = this.getTransposedDictionaryTimesDictionary(dictionary);
+			if (this.choleskyFactorization == null || this.choleskyFactorization.size() != gram.numRows()) {
+				this.choleskyFactorization = new CholeskyFactorization(gram, ridge);
+			} else {
+				// Refactorize in place rather than allocating a new atoms x atoms array.
+				this.choleskyFactorization.factorize(gram, ridge);
+			}
+			this.choleskyRidge = ridge;
+			this.choleskyFactorizationStale = false;
+		}
+		return this.choleskyFactorization;
+	}
+
+	/*
+	 * Mark a single atom as modified.
+	 */
+	public void clear(int atom) {
+		if (this.compressedDictionary != null) {
+			this.staleAtoms.set(atom);
+		}
+		this.choleskyFactorizationStale = true;
+	}
+
+	/*
+	 * Discard everything.
+	 */
+	public void clear() {
+		this.compressedDictionary = null;
+		this.transposedDictionaryTimesDictionary = null;
+		this.staleAtoms.clear();
+		this.choleskyFactorizationStale = true;
+	}
+
+}
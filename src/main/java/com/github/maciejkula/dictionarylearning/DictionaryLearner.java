@@ -4,9 +4,15 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.hadoop.io.Writable;
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.Matrix;
 import org.apache.mahout.math.MatrixWritable;
 import org.apache.mahout.math.SparseColumnMatrix;
@@ -18,6 +24,7 @@ public class DictionaryLearner implements Writable {
 	private double learningRate = 0.01;
 	private double l1Penalty = 0.0;
 	private double l2Penalty = 0.0;
+	private double updateThreshold = 0.0;
 
 	private int numberOfAtoms;
 	private int numberOfFeatures;
@@ -25,6 +32,21 @@ public class DictionaryLearner implements Writable {
 	private final Transformer transformer;
 	private SparseColumnMatrix dictionaryMatrix;
 
+	private final TrainingWorkspace workspace = new TrainingWorkspace();
+	private ForkJoinPool forkJoinPool;
+	private final AtomicReference<DictionarySnapshot> servingSnapshot = new AtomicReference<DictionarySnapshot>();
+	private MetricsListener metrics = NoOpMetricsListener.INSTANCE;
+
+	// Lazy regularization: the number of regularization steps taken so far, and
+	// for every atom the number of steps that have been applied to it.
+	private boolean lazyRegularization;
+	private long regularizationSteps;
+	private long[] regularizedSteps;
+	private volatile boolean pendingRegularization;
+
+	// Atoms changed since they were last taken by a checkpoint; null unless tracked.
+	private volatile boolean[] changedAtoms;
+
 	public DictionaryLearner(int numberOfAtoms, int numberOfFeatures, Transformer transformer) {
 		this.numberOfAtoms = numberOfAtoms;
 		this.numberOfFeatures = numberOfFeatures;
@@ -38,6 +60,7 @@ public class DictionaryLearner implements Writable {
 	}
 
 	public void setLearningRate(double rate) {
+		this.flushRegularization();
 		this.learningRate = rate;
 	}
 
@@ -46,6 +69,7 @@ public class DictionaryLearner implements Writable {
 	}
 
 	public void setL1Penalty(double norm) {
+		this.flushRegularization();
 		this.l1Penalty = norm;
 	}
 
@@ -54,6 +78,7 @@ public class DictionaryLearner implements Writable {
 	}
 
 	public void setL2Penalty(double norm) {
+		this.flushRegularization();
 		this.l2Penalty = norm;
 	}
 
@@ -61,7 +86,126 @@ public class DictionaryLearner implements Writable {
 		return this.l2Penalty;
 	}
 
+	/*
+	 * Only update atoms whose projection weights exceed the threshold in
+	 * magnitude (by default, all atoms with nonzero weights). Small weights
+	 * barely move their atoms, so skipping them saves a pass over the atom
+	 * (and, in lazy regularization mode, its regularization).
+	 */
+	public void setUpdateThreshold(double threshold) {
+		this.updateThreshold = threshold;
+	}
+
+	public double getUpdateThreshold() {
+		return this.updateThreshold;
+	}
+
+	/*
+	 * Whether training updates an atom with the given projection weight.
+	 */
+	boolean isActiveAtom(double projectionWeight) {
+		return Math.abs(projectionWeight) > this.updateThreshold;
+	}
+
+	/*
+	 * In lazy mode, training steps only regularize the atoms they update: the
+	 * regularization steps an atom misses are applied in closed form the next
+	 * time the atom is updated, and to all atoms before the dictionary is read
+	 * from outside of training (transform, snapshot, write, equals and so on).
+	 * 
+	 * The cost of a step then scales with the size of the atoms it updates
+	 * rather than with the whole dictionary, which pays off when projections
+	 * are sparse. Results differ from eager regularization in two ways: the
+	 * training steps' own projections see atoms that have not yet been shrunk,
+	 * and an atom that the pending shrinkage would empty is not re-initialized
+	 * with a datapoint until it is next updated or the regularization is
+	 * flushed.
+	 */
+	public void setLazyRegularization(boolean lazy) {
+		if (lazy && !this.lazyRegularization) {
+			this.regularizedSteps = new long[this.numberOfAtoms];
+			Arrays.fill(this.regularizedSteps, this.regularizationSteps);
+		} else if (!lazy) {
+			this.flushRegularization();
+		}
+		this.lazyRegularization = lazy;
+	}
+
+	public boolean isLazyRegularization() {
+		return this.lazyRegularization;
+	}
+
+	/*
+	 * The number of training steps (datapoints or mini-batches) taken by train.
+	 */
+	public long getNumberOfSteps() {
+		return this.regularizationSteps;
+	}
+
+	/*
+	 * Set the step count, for a dictionary regularized up to that many steps:
+	 * a restored checkpoint, or one trained by a ParallelTrainer.
+	 */
+	void setNumberOfSteps(long steps) {
+		this.flushRegularization();
+		this.regularizationSteps = steps;
+		if (this.lazyRegularization) {
+			Arrays.fill(this.regularizedSteps, steps);
+		}
+	}
+
+	/*
+	 * Start recording which atoms change, for incremental checkpoints.
+	 */
+	void trackChangedAtoms() {
+		if (this.changedAtoms == null) {
+			this.changedAtoms = new boolean[this.numberOfAtoms];
+		}
+	}
+
+	/*
+	 * Whether the atom has changed since the last call, clearing the flag.
+	 */
+	boolean takeChangedAtom(int i) {
+		boolean changed = this.changedAtoms[i];
+		this.changedAtoms[i] = false;
+		return changed;
+	}
+
+	private void markChanged(int i) {
+		boolean[] changed = this.changedAtoms;
+		if (changed != null) {
+			changed[i] = true;
+		}
+	}
+
+	public void setForkJoinPool(ForkJoinPool pool) {
+		this.forkJoinPool = pool;
+	}
+
+	/*
+	 * Record phase timings, atom initializations and atom sizes during training,
+	 * and the transformer's cache and solver statistics, with the listener.
+	 */
+	public void setMetricsListener(MetricsListener metrics) {
+		this.metrics = metrics;
+		this.transformer.setMetricsListener(metrics);
+	}
+
+	public MetricsListener getMetricsListener() {
+		return this.metrics;
+	}
+
+	public int getNumberOfAtoms() {
+		return this.numberOfAtoms;
+	}
+
+	public int getNumberOfFeatures() {
+		return this.numberOfFeatures;
+	}
+
 	public Matrix getDictionary() {
+		this.flushRegularization();
 		return this.dictionaryMatrix;
 	}
 
@@ -69,37 +213,307 @@ public class DictionaryLearner implements Writable {
 	 * Project the datapoint on the dictionary.
 	 */
 	public Vector transform(Vector datapoint) {
+		this.flushRegularization();
 		return this.transformer.transform(datapoint, this.dictionaryMatrix);
 	}
 
+	/*
+	 * Project the datapoint on the dictionary, warm-starting the solver
+	 * from a previous projection of the same entity.
+	 */
+	public Vector transform(Vector datapoint, Vector initialProjection) {
+		this.flushRegularization();
+		return this.transformer.transform(datapoint, initialProjection, this.dictionaryMatrix);
+	}
+
 	/*
 	 * Reconstruct a datapoint from its projection on the dictionary.
 	 */
 	public Vector inverseTransform(Vector datapoint) {
+		this.flushRegularization();
 		return this.transformer.inverseTransform(datapoint, this.dictionaryMatrix);
 	}
 
+	/*
+	 * Project every row of the matrix on the dictionary, in parallel blocks
+	 * on the learner's fork-join pool. Returns one row of projections per row.
+	 */
+	public Matrix transform(Matrix datapoints) {
+		this.flushRegularization();
+		return this.transformer.transform(datapoints, this.dictionaryMatrix, this.getForkJoinPool());
+	}
+
+	/*
+	 * Reconstruct every row of the matrix of projections.
+	 */
+	public Matrix inverseTransform(Matrix projections) {
+		this.flushRegularization();
+		return this.transformer.inverseTransform(projections, this.dictionaryMatrix, this.getForkJoinPool());
+	}
+
+	/*
+	 * The k features with the highest reconstructed scores for the datapoint,
+	 * skipping features that are nonzero in excluded (which may be null, and
+	 * is typically the datapoint itself), highest score first. The full
+	 * reconstruction is never built.
+	 */
+	public TopK recommend(Vector datapoint, int k, Vector excluded) {
+		return this.transformer.recommend(this.transform(datapoint), this.dictionaryMatrix, k, excluded);
+	}
+
+	/*
+	 * Take an immutable copy of the current dictionary, with the transformer's
+	 * caches precomputed, that can be used from multiple threads.
+	 */
+	public DictionarySnapshot snapshot() {
+		this.flushRegularization();
+		return new DictionarySnapshot(MathUtils.copyDictionary(this.dictionaryMatrix), this.transformer);
+	}
+
+	/*
+	 * Take a snapshot and atomically replace the serving snapshot with it.
+	 * 
+	 * Returns the new serving snapshot.
+	 */
+	public DictionarySnapshot publishSnapshot() {
+		DictionarySnapshot snapshot = this.snapshot();
+		this.servingSnapshot.set(snapshot);
+		return snapshot;
+	}
+
+	/*
+	 * Returns the most recently published snapshot, or null if none has been published.
+	 * 
+	 * Unlike transform and inverseTransform on the learner itself, which read the
+	 * dictionary that is being trained, the snapshot is safe to use concurrently
+	 * with training.
+	 */
+	public DictionarySnapshot getServingSnapshot() {
+		return this.servingSnapshot.get();
+	}
+
 	/*
 	 * Perform an online update of the dictionary using a datapoint.
 	 * 
 	 * Returns the datapoint's projection on the dictionary atoms.
 	 */
 	public Vector train(Vector datapoint) {
-		this.initializeAtoms(datapoint);		
-		Vector projection = this.transformer.transform(datapoint, this.dictionaryMatrix);
+		double[] projection = this.workspace.getProjection(this.numberOfAtoms);
+		this.trainInPlace(datapoint, projection);
+		return new DenseVector(projection);
+	}
 
+	/*
+	 * The training step itself. The projection is computed into the workspace,
+	 * atoms are updated in place and regularization reuses the workspace's
+	 * index buffer, so with a transformer that projects without allocating
+	 * (such as the CholeskyTransformer) the step allocates nothing.
+	 */
+	private void trainInPlace(Vector datapoint, double[] projection) {
+		boolean recording = this.metrics.isEnabled();
+		long startTime = recording ? System.nanoTime() : 0L;
+
+		this.initializeAtoms(datapoint);
+		this.transformer.transform(datapoint, this.dictionaryMatrix, projection);
+		if (recording) {
+			startTime = this.recordPhase(MetricsListener.Phase.TRANSFORM, startTime);
+		}
+
+		this.workspace.setDatapoint(datapoint);
+		boolean[] updatedAtoms = this.workspace.getUpdatedAtoms(this.numberOfAtoms);
 		for (int i=0; i < this.numberOfAtoms; i++) {
+			double projectionWeight = projection[i];
+			if (!this.isActiveAtom(projectionWeight)) {
+				continue;
+			}
+			updatedAtoms[i] = true;
+			this.catchUpRegularization(i);
+			this.updateAtom(i, projectionWeight, this.workspace);
+			this.transformer.clearCaches(i);
+		}
+		if (recording) {
+			startTime = this.recordPhase(MetricsListener.Phase.UPDATE, startTime);
+		}
+
+		this.regularize(updatedAtoms);
+		if (recording) {
+			this.recordPhase(MetricsListener.Phase.REGULARIZE, startTime);
+			this.recordAtomSizes();
+		}
+	}
+
+	/*
+	 * Report the time since startTime for the phase, returning the current time.
+	 */
+	private long recordPhase(MetricsListener.Phase phase, long startTime) {
+		long time = System.nanoTime();
+		this.metrics.phaseCompleted(phase, time - startTime);
+		return time;
+	}
+
+	private void recordAtomSizes() {
+		for (int i=0; i < this.numberOfAtoms; i++) {
+			// Does not iterate over the atom, but may count explicitly stored zeroes.
+			this.metrics.atomSize(i, this.dictionaryMatrix.viewColumn(i).getNumNondefaultElements());
+		}
+	}
+
+	/*
+	 * Perform a single mini-batch update of the dictionary.
+	 * 
+	 * All datapoints are projected (in parallel) on the same dictionary, the
+	 * per-datapoint updates are averaged into a single step, and the dictionary
+	 * is regularized once.
+	 * 
+	 * Returns the datapoints' projections on the dictionary atoms.
+	 */
+	public List<Vector> train(List<Vector> batch) {
+		if (batch.isEmpty()) {
+			return new ArrayList<Vector>();
+		}
+		boolean recording = this.metrics.isEnabled();
+		long startTime = recording ? System.nanoTime() : 0L;
+
+		for (Vector datapoint : batch) {
+			this.initializeAtoms(datapoint);
+		}
+		this.transformer.prepare(this.dictionaryMatrix);
+		Vector[] projections = new Vector[batch.size()];
+		this.getForkJoinPool().invoke(new ProjectionTask(this.transformer, this.dictionaryMatrix, 
+				batch, projections, 0, batch.size()));
+		if (recording) {
+			startTime = this.recordPhase(MetricsListener.Phase.TRANSFORM, startTime);
+		}
+
+		double stepSize = this.learningRate / batch.size();
+		boolean[] updatedAtoms = this.workspace.getUpdatedAtoms(this.numberOfAtoms);
+		// Group the datapoints by the atoms they use, reading each projection once.
+		this.workspace.clearBatch(this.numberOfAtoms);
+		for (int j=0; j < projections.length; j++) {
+			for (Element elem : projections[j].nonZeroes()) {
+				if (this.isActiveAtom(elem.get())) {
+					this.workspace.addToBatch(elem.index(), j, elem.get());
+				}
+			}
+		}
+		for (int i=0; i < this.numberOfAtoms; i++) {
+			int atomBatchSize = this.workspace.getAtomBatchSize(i);
+			if (atomBatchSize == 0) {
+				continue;
+			}
+			int[] datapoints = this.workspace.getAtomDatapoints(i);
+			double[] projectionWeights = this.workspace.getAtomProjectionWeights(i);
+			double totalProjectionWeight = 0.0;
+			this.workspace.clearFeatures(this.numberOfFeatures);
+			for (int j=0; j < atomBatchSize; j++) {
+				totalProjectionWeight += projectionWeights[j];
+				for (Element elem : batch.get(datapoints[j]).nonZeroes()) {
+					this.workspace.incrementFeature(elem.index(), projectionWeights[j] * elem.get());
+				}
+			}
+			int[] featureIndices = this.workspace.getFeatureIndices();
+			double[] weightedDatapoints = this.workspace.getFeatureValues();
+			int numberOfTouchedFeatures = this.workspace.getFeatureSize();
+			if (totalProjectionWeight == 0.0 && numberOfTouchedFeatures == 0) {
+				continue;
+			}
+			this.catchUpRegularization(i);
+			updatedAtoms[i] = true;
+			this.markChanged(i);
 			Vector atom = this.dictionaryMatrix.viewColumn(i);
-			double projectionWeight = projection.get(i);
-			Vector difference = atom.minus(datapoint);
-			for (Element elem : difference.nonZeroes()) {
-				atom.incrementQuick(elem.index(), - this.learningRate * projectionWeight * elem.get());
+			double scale = 1.0 - stepSize * totalProjectionWeight;
+			if (scale != 0.0) {
+				for (Element elem : atom.nonZeroes()) {
+					atom.setQuick(elem.index(), scale * elem.get());
+				}
+			} else {
+				// Scaling by zero would remove entries while iterating over them.
+				atom.assign(0.0);
+			}
+			for (int j=0; j < numberOfTouchedFeatures; j++) {
+				double value = weightedDatapoints[featureIndices[j]];
+				if (value != 0.0) {
+					atom.incrementQuick(featureIndices[j], stepSize * value);
+				}
+			}
+			this.transformer.clearCaches(i);
+		}
+		if (recording) {
+			startTime = this.recordPhase(MetricsListener.Phase.UPDATE, startTime);
+		}
+
+		this.regularize(updatedAtoms);
+		if (recording) {
+			this.recordPhase(MetricsListener.Phase.REGULARIZE, startTime);
+			this.recordAtomSizes();
+		}
+
+		return Arrays.asList(projections);
+	}
+
+	/*
+	 * Perform a single mini-batch update using the rows of the matrix.
+	 * 
+	 * Returns the rows' projections on the dictionary atoms.
+	 */
+	public Matrix train(Matrix batch) {
+		List<Vector> rows = new ArrayList<Vector>(batch.numRows());
+		for (int i=0; i < batch.numRows(); i++) {
+			rows.add(batch.viewRow(i));
+		}
+		List<Vector> projections = this.train(rows);
+		Matrix output = new DenseMatrix(batch.numRows(), this.numberOfAtoms);
+		for (int i=0; i < projections.size(); i++) {
+			output.viewRow(i).assign(projections.get(i));
+		}
+		return output;
+	}
+
+	private ForkJoinPool getForkJoinPool() {
+		if (this.forkJoinPool == null) {
+			this.forkJoinPool = new ForkJoinPool();
+		}
+		return this.forkJoinPool;
+	}
+
+	/*
+	 * Projects a range of datapoints, splitting the range between
+	 * worker threads.
+	 */
+	private static class ProjectionTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private static final int SEQUENTIAL_THRESHOLD = 4;
+
+		private final Transformer transformer;
+		private final SparseColumnMatrix dictionary;
+		private final List<Vector> batch;
+		private final Vector[] projections;
+		private final int start;
+		private final int end;
+
+		public ProjectionTask(Transformer transformer, SparseColumnMatrix dictionary, 
+				List<Vector> batch, Vector[] projections, int start, int end) {
+			this.transformer = transformer;
+			this.dictionary = dictionary;
+			this.batch = batch;
+			this.projections = projections;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.end - this.start <= SEQUENTIAL_THRESHOLD) {
+				for (int i=this.start; i < this.end; i++) {
+					this.projections[i] = this.transformer.transform(this.batch.get(i), this.dictionary);
+				}
+			} else {
+				int middle = (this.start + this.end) >>> 1;
+				invokeAll(new ProjectionTask(this.transformer, this.dictionary, this.batch, this.projections, this.start, middle),
+						new ProjectionTask(this.transformer, this.dictionary, this.batch, this.projections, middle, this.end));
 			}
 		}
-		this.regularize();
-		this.transformer.clearCaches();		
-		
-		return projection;
 	}
 
 	private SparseColumnMatrix createEmptyDictionaryMatrix() {
@@ -107,27 +521,128 @@ public class DictionaryLearner implements Writable {
 	}
 
 	/*
-	 * Apply L2 and L1 regularization to dictionary items.
+	 * Apply L2 and L1 regularization to dictionary items: to all of them in
+	 * eager mode, and only to those the step updated in lazy mode.
 	 */
-	private void regularize() {
+	private void regularize(boolean[] updatedAtoms) {
 		for (int i=0; i < this.numberOfAtoms; i++) {
-			Vector atom = this.dictionaryMatrix.viewColumn(i);
-			List<Integer> indicesToRemove = new ArrayList<Integer>();
-			for (Element elem : atom.nonZeroes()) {
-				double regularizedValue = elem.get() - (this.learningRate 
-						* (elem.get() 
-								* this.l2Penalty
-								+ this.l1Penalty * Math.signum(elem.get())));
-				if (regularizedValue == 0.0 || Math.abs(regularizedValue) < this.l1Penalty) {
-					indicesToRemove.add(elem.index());
-				} else {
-					atom.setQuick(elem.index(), regularizedValue);
+			if (this.lazyRegularization) {
+				if (!updatedAtoms[i]) {
+					this.pendingRegularization = true;
+					continue;
 				}
+				this.regularizedSteps[i] = this.regularizationSteps + 1;
 			}
-			for (int indexToRemove : indicesToRemove) {
-				atom.setQuick(indexToRemove, 0.0);
+			if (this.regularizeAtom(i, this.workspace)) {
+				this.transformer.clearCaches(i);
 			}
 		}
+		this.regularizationSteps++;
+	}
+
+	/*
+	 * Apply all regularization steps that atoms have missed in lazy mode.
+	 * Classes that read the dictionary matrix from outside of training call
+	 * this first.
+	 */
+	void flushRegularization() {
+		if (!this.pendingRegularization) {
+			return;
+		}
+		for (int i=0; i < this.numberOfAtoms; i++) {
+			this.catchUpRegularization(i);
+		}
+		this.pendingRegularization = false;
+	}
+
+	/*
+	 * Apply the regularization steps the atom has missed at once. Each step maps
+	 * the magnitude m of an entry to c * m - learningRate * l1Penalty, with
+	 * c = 1 - learningRate * l2Penalty, so k steps give
+	 * 
+	 *   c^k * m - learningRate * l1Penalty * (1 + c + ... + c^(k - 1))
+	 * 
+	 * As magnitudes only decrease, an entry is removed within the k steps
+	 * exactly when it would be removed after the last of them.
+	 */
+	private void catchUpRegularization(int i) {
+		if (!this.lazyRegularization) {
+			return;
+		}
+		long missedSteps = this.regularizationSteps - this.regularizedSteps[i];
+		this.regularizedSteps[i] = this.regularizationSteps;
+		if (this.catchUpRegularization(i, missedSteps, this.workspace)) {
+			this.transformer.clearCaches(i);
+		}
+	}
+
+	/*
+	 * Apply the given number of regularization steps to a single atom at once.
+	 * 
+	 * Returns true if the atom was modified.
+	 */
+	boolean catchUpRegularization(int i, long missedSteps, TrainingWorkspace workspace) {
+		if (missedSteps <= 0 || (this.l1Penalty == 0.0 && this.l2Penalty == 0.0)) {
+			return false;
+		}
+		Vector atom = this.dictionaryMatrix.viewColumn(i);
+		int numberOfEntries = atom.getNumNondefaultElements();
+		if (numberOfEntries == 0) {
+			return false;
+		}
+		double decay = 1.0 - this.learningRate * this.l2Penalty;
+		double scale = Math.pow(decay, missedSteps);
+		double geometricSum = decay == 1.0 ? missedSteps : (1.0 - scale) / (1.0 - decay);
+		double shrinkage = this.learningRate * this.l1Penalty * geometricSum;
+
+		int[] indicesToRemove = workspace.getIndices(numberOfEntries);
+		int numberToRemove = 0;
+		for (Element elem : atom.nonZeroes()) {
+			double magnitude = scale * Math.abs(elem.get()) - shrinkage;
+			if (magnitude <= 0.0 || magnitude < this.l1Penalty) {
+				indicesToRemove[numberToRemove++] = elem.index();
+			} else {
+				atom.setQuick(elem.index(), Math.signum(elem.get()) * magnitude);
+			}
+		}
+		for (int j=0; j < numberToRemove; j++) {
+			atom.setQuick(indicesToRemove[j], 0.0);
+		}
+		this.markChanged(i);
+		return true;
+	}
+
+	/*
+	 * A lower bound on the number of regularization steps after which the atom
+	 * may be empty if it is not updated in the meantime (0 if it already is).
+	 * The largest magnitude m of the atom falls below l1Penalty after k steps
+	 * when, with c as above and s = learningRate * l1Penalty,
+	 *
+	 *   c^k * (m + s / (1 - c)) < l1Penalty + s / (1 - c)
+	 */
+	long stepsUntilEmpty(int i) {
+		Vector atom = this.dictionaryMatrix.viewColumn(i);
+		if (atom.getNumNondefaultElements() == 0) {
+			return 0L;
+		}
+		if (this.l1Penalty == 0.0) {
+			return Long.MAX_VALUE;
+		}
+		double magnitude = 0.0;
+		for (Element elem : atom.nonZeroes()) {
+			magnitude = Math.max(magnitude, Math.abs(elem.get()));
+		}
+		double shrinkage = this.learningRate * this.l1Penalty;
+		double decay = 1.0 - this.learningRate * this.l2Penalty;
+		double steps;
+		if (decay == 1.0) {
+			steps = (magnitude - this.l1Penalty) / shrinkage;
+		} else {
+			double offset = shrinkage / (1.0 - decay);
+			steps = Math.log((this.l1Penalty + offset) / (magnitude + offset)) / Math.log(decay);
+		}
+		// Casting saturates at Long.MAX_VALUE, and maps NaN to 0.
+		return Math.max(0L, (long) Math.floor(steps));
 	}
 
 	/*
@@ -136,15 +651,156 @@ public class DictionaryLearner implements Writable {
 	 */
 	private void initializeAtoms(Vector datapoint) {
 		for (int i=0; i < this.numberOfAtoms; i++) {
-			Vector column =  this.dictionaryMatrix.viewColumn(i);
-			if (column.getNumNonZeroElements() == 0) {
-				column.assign(datapoint);
-				this.transformer.clearCaches();
+			if (this.initializeAtom(i, datapoint)) {
+				this.transformer.clearCaches(i);
+				this.metrics.atomInitialized(i);
 				break;
 			}
 		}
 	}
 
+	/*
+	 * Move a single atom towards the datapoint (held in the workspace) in proportion
+	 * to its projection weight. Must be followed by regularizeAtom: entries that
+	 * regularization would immediately remove are not inserted in the first place.
+	 * 
+	 * The single-atom methods below neither touch other atoms nor invalidate the
+	 * transformer's caches, so that callers can apply them to different atoms
+	 * from different threads.
+	 */
+	void updateAtom(int i, double projectionWeight, TrainingWorkspace workspace) {
+		// atom - rate * weight * (atom - datapoint), computed in place as a scaling
+		// of the atom followed by a sparse axpy of the datapoint (which the workspace
+		// holds as primitive arrays).
+		Vector atom = this.dictionaryMatrix.viewColumn(i);
+		double step = this.learningRate * projectionWeight;
+		this.markChanged(i);
+		if (step != 1.0) {
+			for (Element elem : atom.nonZeroes()) {
+				atom.setQuick(elem.index(), (1.0 - step) * elem.get());
+			}
+		} else {
+			// Scaling by zero would remove entries while iterating over them.
+			atom.assign(0.0);
+		}
+		int[] indices = workspace.getDatapointIndices();
+		double[] values = workspace.getDatapointValues();
+		for (int j=0; j < workspace.getDatapointSize(); j++) {
+			double currentValue = atom.getQuick(indices[j]);
+			double updatedValue = currentValue + step * values[j];
+			if (currentValue == 0.0 && this.isRemovedByRegularization(updatedValue)) {
+				// Inserting the entry only for regularization to remove it again
+				// would make the hash-backed atom grow and shrink on every step.
+				continue;
+			}
+			atom.setQuick(indices[j], updatedValue);
+		}
+	}
+
+	/*
+	 * Apply L2 and L1 regularization to a single atom.
+	 * 
+	 * Returns true if the atom was modified.
+	 */
+	boolean regularizeAtom(int i, TrainingWorkspace workspace) {
+		if (this.l1Penalty == 0.0 && this.l2Penalty == 0.0) {
+			return false;
+		}
+		Vector atom = this.dictionaryMatrix.viewColumn(i);
+		// Unlike getNumNonZeroElements, this does not iterate over the atom.
+		int numberOfEntries = atom.getNumNondefaultElements();
+		if (numberOfEntries == 0) {
+			return false;
+		}
+		// Entries cannot be removed while iterating, so collect them first.
+		int[] indicesToRemove = workspace.getIndices(numberOfEntries);
+		int numberToRemove = 0;
+		for (Element elem : atom.nonZeroes()) {
+			double regularizedValue = this.regularizedValue(elem.get());
+			if (regularizedValue == 0.0 || Math.abs(regularizedValue) < this.l1Penalty) {
+				indicesToRemove[numberToRemove++] = elem.index();
+			} else {
+				atom.setQuick(elem.index(), regularizedValue);
+			}
+		}
+		for (int j=0; j < numberToRemove; j++) {
+			atom.setQuick(indicesToRemove[j], 0.0);
+		}
+		this.markChanged(i);
+		return true;
+	}
+
+	private double regularizedValue(double value) {
+		return value - (this.learningRate 
+				* (value 
+						* this.l2Penalty
+						+ this.l1Penalty * Math.signum(value)));
+	}
+
+	/*
+	 * Whether regularizeAtom would remove an entry with this value.
+	 */
+	private boolean isRemovedByRegularization(double value) {
+		if (this.l1Penalty == 0.0 && this.l2Penalty == 0.0) {
+			return value == 0.0;
+		}
+		double regularizedValue = this.regularizedValue(value);
+		return regularizedValue == 0.0 || Math.abs(regularizedValue) < this.l1Penalty;
+	}
+
+	/*
+	 * Replace a single atom with the datapoint if the atom is empty.
+	 * 
+	 * Returns true if the atom was replaced.
+	 */
+	boolean initializeAtom(int i, Vector datapoint) {
+		Vector column =  this.dictionaryMatrix.viewColumn(i);
+		if (column.getNumNondefaultElements() == 0) {
+			column.assign(datapoint);
+			if (this.lazyRegularization) {
+				this.regularizedSteps[i] = this.regularizationSteps;
+			}
+			this.markChanged(i);
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Replace a single atom, invalidating the transformer's caches for it.
+	 */
+	void setAtom(int i, Vector atom) {
+		// Touch only the nonzero elements of both atoms rather than all features.
+		Vector column = this.dictionaryMatrix.viewColumn(i);
+		int[] previous = new int[column.getNumNondefaultElements()];
+		int numberOfPrevious = 0;
+		for (Element elem : column.nonZeroes()) {
+			previous[numberOfPrevious++] = elem.index();
+		}
+		for (int j=0; j < numberOfPrevious; j++) {
+			column.setQuick(previous[j], 0.0);
+		}
+		for (Element elem : atom.nonZeroes()) {
+			column.setQuick(elem.index(), elem.get());
+		}
+		if (this.lazyRegularization) {
+			this.regularizedSteps[i] = this.regularizationSteps;
+		}
+		this.markChanged(i);
+		this.transformer.clearCaches(i);
+	}
+
+	Transformer getTransformer() {
+		return this.transformer;
+	}
+
+	/*
+	 * The dictionary as it is, without flushing lazy regularization.
+	 */
+	SparseColumnMatrix getDictionaryMatrix() {
+		return this.dictionaryMatrix;
+	}
+
 	@Override
 	public void readFields(DataInput input) throws IOException {
 		this.setLearningRate(input.readDouble());
@@ -154,11 +810,22 @@ public class DictionaryLearner implements Writable {
 		this.numberOfFeatures = input.readInt();
 		this.transformer.readFields(input);
 		this.dictionaryMatrix = this.createEmptyDictionaryMatrix();
-		this.dictionaryMatrix.assign(MatrixWritable.readMatrix(input));     
+		this.dictionaryMatrix.assign(MatrixWritable.readMatrix(input));
+		this.transformer.clearCaches();
+		if (this.lazyRegularization) {
+			this.regularizedSteps = new long[this.numberOfAtoms];
+			Arrays.fill(this.regularizedSteps, this.regularizationSteps);
+		}
+		this.pendingRegularization = false;
+		if (this.changedAtoms != null) {
+			this.changedAtoms = new boolean[this.numberOfAtoms];
+			Arrays.fill(this.changedAtoms, true);
+		}
 	}
 
 	@Override
 	public void write(DataOutput output) throws IOException {
+		this.flushRegularization();
 		output.writeDouble(learningRate);
 		output.writeDouble(l1Penalty);
 		output.writeDouble(l2Penalty);
@@ -177,6 +844,8 @@ public class DictionaryLearner implements Writable {
 		if (getClass() != obj.getClass())
 			return false;
 		DictionaryLearner other = (DictionaryLearner) obj;
+		this.flushRegularization();
+		other.flushRegularization();
 		if (Double.doubleToLongBits(l1Penalty) != Double.doubleToLongBits(other.l1Penalty))
 			return false;
 		if (Double.doubleToLongBits(l2Penalty) != Double.doubleToLongBits(other.l2Penalty))
@@ -0,0 +1,73 @@
+package com.github.maciejkula.dictionarylearning;
+
+import org.apache.mahout.math.SparseColumnMatrix;
+import org.apache.mahout.math.Vector;
+
+/**
+ * An immutable copy of a dictionary together with a transformer whose
+ * caches (A'A, factorizations) have been precomputed for it.
+ *
+ * Snapshots never change after construction, so any number of threads
+ * can call transform and inverseTransform on one without locking while
+ * training continues on the learner the snapshot was taken from.
+ */
+public class DictionarySnapshot {
+
+	private final SparseColumnMatrix dictionaryMatrix;
+	private final Transformer transformer;
+
+	/*
+	 * Build a snapshot around a copy of the dictionary that nothing else
+	 * references. The transformer is copied, and its caches precomputed.
+	 */
+	DictionarySnapshot(SparseColumnMatrix dictionaryCopy, Transformer transformer) {
+		this.dictionaryMatrix = dictionaryCopy;
+		this.transformer = transformer.copy();
+		this.transformer.prepare(this.dictionaryMatrix);
+	}
+
+	public int getNumberOfAtoms() {
+		return this.dictionaryMatrix.numCols();
+	}
+
+	public int getNumberOfFeatures() {
+		return this.dictionaryMatrix.numRows();
+	}
+
+	/*
+	 * Project the datapoint on the dictionary.
+	 */
+	public Vector transform(Vector datapoint) {
+		return this.transformer.transform(datapoint, this.dictionaryMatrix);
+	}
+
+	/*
+	 * Project the datapoint on the dictionary, warm-starting from a previous projection.
+	 */
+	public Vector transform(Vector datapoint, Vector initialProjection) {
+		return this.transformer.transform(datapoint, initialProjection, this.dictionaryMatrix);
+	}
+
+	/*
+	 * Project the datapoint into a caller-provided array with one entry per atom.
+	 */
+	public void transform(Vector datapoint, double[] projection) {
+		this.transformer.transform(datapoint, this.dictionaryMatrix, projection);
+	}
+
+	/*
+	 * Reconstruct a datapoint from its projection on the dictionary.
+	 */
+	public Vector inverseTransform(Vector projection) {
+		return this.transformer.inverseTransform(projection, this.dictionaryMatrix);
+	}
+
+	/*
+	 * The k features with the highest reconstructed scores for the datapoint,
+	 * skipping features that are nonzero in excluded (which may be null).
+	 */
+	public TopK recommend(Vector datapoint, int k, Vector excluded) {
+		return this.transformer.recommend(this.transform(datapoint), this.dictionaryMatrix, k, excluded);
+	}
+
+}
@@ -0,0 +1,161 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.mahout.math.Vector;
+
+/**
+ * Data-parallel training on several shards of data, with each shard
+ * handled by its own worker learner standing in for a node.
+ *
+ * Workers only share state through a DictionaryAverager, exchanging
+ * serialized models: every synchronizationInterval datapoints, each
+ * worker submits its dictionary, waits for the weighted average of all
+ * workers' dictionaries and continues training from it.
+ *
+ * Before the workers start, the learner's empty atoms are initialized
+ * from the first datapoints of the shards, so that all workers start
+ * from the same atoms and their updates can be averaged.
+ */
+public class DistributedTrainer {
+
+	private final DictionaryLearner dictionaryLearner;
+	private final int synchronizationInterval;
+
+	private long rounds;
+
+	public DistributedTrainer(DictionaryLearner dictionaryLearner, int synchronizationInterval) {
+		this.dictionaryLearner = dictionaryLearner;
+		this.synchronizationInterval = synchronizationInterval;
+	}
+
+	/*
+	 * The number of merges in the last call to train, including the final one.
+	 */
+	public long getRounds() {
+		return this.rounds;
+	}
+
+	/*
+	 * Train on all shards, one worker per shard, blocking until all
+	 * workers have finished and their final dictionaries have been merged
+	 * into the learner.
+	 *
+	 * Returns the number of datapoints trained on.
+	 */
+	public long train(List<? extends Iterable<Vector>> shards) {
+		final List<Iterator<Vector>> iterators = new ArrayList<Iterator<Vector>>();
+		for (Iterable<Vector> shard : shards) {
+			iterators.add(shard.iterator());
+		}
+		this.dictionaryLearner.flushRegularization();
+		long samples = this.initializeAtoms(iterators);
+
+		final DictionaryAverager averager = new DictionaryAverager(this.dictionaryLearner);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final AtomicLong workerSamples = new AtomicLong();
+		averager.register(iterators.size());
+
+		Thread[] workers = new Thread[iterators.size()];
+		for (int i=0; i < workers.length; i++) {
+			final Iterator<Vector> shard = iterators.get(i);
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					boolean left = false;
+					try {
+						DictionaryLearner worker = createWorker();
+						DictionaryAverager.deserialize(averager.getModel(), worker);
+						long samplesSinceSynchronization = 0;
+						while (shard.hasNext()) {
+							worker.train(shard.next());
+							workerSamples.incrementAndGet();
+							if (++samplesSinceSynchronization == synchronizationInterval) {
+								byte[] model = averager.synchronize(DictionaryAverager.serialize(worker), samplesSinceSynchronization);
+								DictionaryAverager.deserialize(model, worker);
+								samplesSinceSynchronization = 0;
+							}
+						}
+						byte[] finalModel = DictionaryAverager.serialize(worker);
+						left = true;
+						averager.leave(finalModel, samplesSinceSynchronization);
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						if (!left) {
+							// Do not leave the other workers waiting for this one.
+							averager.leave(null, 0);
+						}
+					}
+				}
+			}, "dictionary-worker-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+
+		try {
+			for (Thread worker : workers) {
+				worker.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		if (failure.get() != null) {
+			throw new RuntimeException(failure.get());
+		}
+		this.rounds = averager.getRounds();
+		return samples + workerSamples.get();
+	}
+
+	/*
+	 * A learner configured like the trained one, whose atoms are set by the averager.
+	 */
+	private DictionaryLearner createWorker() {
+		DictionaryLearner worker = new DictionaryLearner(this.dictionaryLearner.getNumberOfAtoms(),
+				this.dictionaryLearner.getNumberOfFeatures(), this.dictionaryLearner.getTransformer().copy());
+		worker.setLearningRate(this.dictionaryLearner.getLearningRate());
+		worker.setL1Penalty(this.dictionaryLearner.getL1Penalty());
+		worker.setL2Penalty(this.dictionaryLearner.getL2Penalty());
+		return worker;
+	}
+
+	/*
+	 * Train the learner itself on datapoints taken from the shards in turn
+	 * until all of its atoms are initialized, or until it has seen as many
+	 * datapoints as it has atoms: regularization may empty atoms again, and
+	 * workers reinitialize those on their own.
+	 */
+	private long initializeAtoms(List<Iterator<Vector>> iterators) {
+		long samples = 0;
+		boolean remaining = true;
+		while (remaining && this.needsInitialization(samples)) {
+			remaining = false;
+			for (Iterator<Vector> iterator : iterators) {
+				if (iterator.hasNext() && this.needsInitialization(samples)) {
+					this.dictionaryLearner.train(iterator.next());
+					samples++;
+					remaining = true;
+				}
+			}
+		}
+		return samples;
+	}
+
+	private boolean needsInitialization(long samples) {
+		if (samples >= this.dictionaryLearner.getNumberOfAtoms()) {
+			return false;
+		}
+		for (int i=0; i < this.dictionaryLearner.getNumberOfAtoms(); i++) {
+			if (this.dictionaryLearner.getDictionaryMatrix().viewColumn(i).getNumNondefaultElements() == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -1,58 +1,149 @@
 package com.github.maciejkula.dictionarylearning;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.Sorting;
+import org.apache.mahout.math.Swapper;
 import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.Vector.Element;
+import org.apache.mahout.math.function.IntComparator;
+import org.apache.mahout.math.map.OpenIntIntHashMap;
 
 public class EvaluationUtils {
 
-    private static class ElementComparator implements Comparator<Element> {
-        @Override
-        public int compare(Element a, Element b) {
-            return a.get() < b.get() ? 1 : a.get() == b.get() ? 0 : -1;
-        }
-    }
-
     public static class RankMap {
 
-        private final Map<Integer, Integer> ranks;
-        private Integer rankOfZeroElement;
+        // Ranks are stored offset by one, as the map returns 0 for missing keys.
+        private final OpenIntIntHashMap ranks;
+        private int[] rankedIndices = new int[0];
+        private int numberOfPositiveElements;
+        private int rankOfZeroElement;
 
         public RankMap(int capacity) {
-            this.ranks = new HashMap<Integer, Integer>(capacity);
+            this.ranks = new OpenIntIntHashMap(capacity);
         }
 
-        public Integer get(int index) {
-            Integer value = this.ranks.get(index);      
-            if (value != null) {
-                return value;
+        public int get(int index) {
+            int value = this.ranks.get(index);
+            if (value != 0) {
+                return value - 1;
             } else {
                 return this.rankOfZeroElement;
             }
         }
 
         public void put(int index, int value) {
-            this.ranks.put(index, value);
+            this.ranks.put(index, value + 1);
         }
 
         public void setRankOfZeroElement(int value) {
             this.rankOfZeroElement = value;
         }
 
+        /*
+         * The number of elements with nonzero scores, which are the ones
+         * available through getRankedIndex.
+         */
+        public int getNumberOfRankedElements() {
+            return this.rankedIndices.length;
+        }
+
+        /*
+         * The number of elements with positive scores, which come first in
+         * the ranked order.
+         */
+        public int getNumberOfPositiveElements() {
+            return this.numberOfPositiveElements;
+        }
+
+        /*
+         * Whether the element has a nonzero score.
+         */
+        public boolean isRankedElement(int index) {
+            return this.ranks.containsKey(index);
+        }
+
+        /*
+         * The index of the element with the given position in the descending
+         * order of nonzero scores.
+         */
+        public int getRankedIndex(int position) {
+            return this.rankedIndices[position];
+        }
+
+    }
+
+    /*
+     * Scores all features for a row of the evaluation data, given the row's
+     * training interactions. Must be safe to call from multiple threads.
+     */
+    public interface Scorer {
+        Vector score(int row, Vector trainingRow);
     }
-    
+
+    /*
+     * Averages of per-row ranking metrics. Percentage ranks are averaged over
+     * rows with nonzero training (resp. test) entries; precision and recall
+     * over rows with test entries.
+     */
+    public static class Evaluation {
+
+        private final double trainingSetAveragePercentageRank;
+        private final double testSetAveragePercentageRank;
+        private final double precisionAtK;
+        private final double recallAtK;
+        private final int k;
+
+        public Evaluation(double trainingSetAveragePercentageRank, double testSetAveragePercentageRank,
+                double precisionAtK, double recallAtK, int k) {
+            this.trainingSetAveragePercentageRank = trainingSetAveragePercentageRank;
+            this.testSetAveragePercentageRank = testSetAveragePercentageRank;
+            this.precisionAtK = precisionAtK;
+            this.recallAtK = recallAtK;
+            this.k = k;
+        }
+
+        public double getTrainingSetAveragePercentageRank() {
+            return this.trainingSetAveragePercentageRank;
+        }
+
+        public double getTestSetAveragePercentageRank() {
+            return this.testSetAveragePercentageRank;
+        }
+
+        public double getPrecisionAtK() {
+            return this.precisionAtK;
+        }
+
+        public double getRecallAtK() {
+            return this.recallAtK;
+        }
+
+        public int getK() {
+            return this.k;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("average rank in training set: %s, average rank in test set: %s, precision@%s: %s, recall@%s: %s",
+                    this.trainingSetAveragePercentageRank, this.testSetAveragePercentageRank,
+                    this.k, this.precisionAtK, this.k, this.recallAtK);
+        }
+
+    }
+
     public static double computeAverageNonzeroElementPercentageRank(Vector inputVector, Vector ranking) {
         return computeAverageNonzeroElementRank(inputVector, ranking)/inputVector.size();
     }
-    
+
     public static double computeAverageNonzeroElementRank(Vector inputVector, Vector ranking) {
-        RankMap rankMap = getRankMap(ranking);
+        return computeAverageNonzeroElementRank(inputVector, getRankMap(ranking));
+    }
+
+    public static double computeAverageNonzeroElementRank(Vector inputVector, RankMap rankMap) {
         double averageRank = 0.0;
         for (Element elem : inputVector.nonZeroes()) {
             averageRank += rankMap.get(elem.index());
@@ -61,30 +152,219 @@ public class EvaluationUtils {
         return averageRank;
     }
 
+    /*
+     * Ranks the elements of the vector by descending score. Positive scores come
+     * first, followed by all zero scores (which share the median rank of their
+     * block), followed by negative scores.
+     */
     public static RankMap getRankMap(Vector scores) {
-        List<Element> elements = new ArrayList<Element>(scores.getNumNonZeroElements());
+        int capacity = scores.getNumNondefaultElements();
+        final int[] indices = new int[capacity];
+        final double[] values = new double[capacity];
+        int numberOfElements = 0;
         for (Element elem : scores.nonZeroes()) {
-            elements.add(scores.getElement(elem.index()));
+            // Hash-backed vectors may hold explicit zeroes, which rank as zeroes.
+            if (elem.get() != 0.0) {
+                indices[numberOfElements] = elem.index();
+                values[numberOfElements] = elem.get();
+                numberOfElements++;
+            }
         }
-        Collections.sort(elements, new ElementComparator());
+        Sorting.quickSort(0, numberOfElements, new IntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                return Double.compare(values[b], values[a]);
+            }
+        }, new Swapper() {
+            @Override
+            public void swap(int a, int b) {
+                int index = indices[a];
+                indices[a] = indices[b];
+                indices[b] = index;
+                double value = values[a];
+                values[a] = values[b];
+                values[b] = value;
+            }
+        });
 
-        RankMap rankMap = new RankMap(scores.getNumNonZeroElements() + 1);
-        int numZeroes = scores.size() - scores.getNumNonZeroElements();
+        RankMap rankMap = new RankMap(numberOfElements + 1);
+        int numZeroes = scores.size() - numberOfElements;
         int numAboveZero = 0;
 
-        for (int i=0; i < elements.size(); i++) {
-            Element elem = elements.get(i);
-            if (elem.get() > 0.0) {
-                rankMap.put(elem.index(), i);
+        for (int i=0; i < numberOfElements; i++) {
+            if (values[i] > 0.0) {
+                rankMap.put(indices[i], i);
                 numAboveZero++;
             }
             else {
-                rankMap.put(elem.index(), numZeroes + i);
+                rankMap.put(indices[i], numZeroes + i);
             }
         }
-        rankMap.setRankOfZeroElement(numAboveZero + Math.round(numZeroes/2));
+        rankMap.setRankOfZeroElement(numAboveZero + numZeroes/2);
+        rankMap.numberOfPositiveElements = numAboveZero;
+        rankMap.rankedIndices = numberOfElements == capacity ? indices : Arrays.copyOf(indices, numberOfElements);
 
         return rankMap;
     }
 
+    /*
+     * The number of the k highest-ranked elements, ignoring elements in the exclusion
+     * vector, that are nonzero in the relevant vector.
+     *
+     * As in getRankMap, positive scores come first, then zero scores (which tie,
+     * and are taken lowest index first), then negative scores. Zero-scored
+     * elements are only looked for when fewer than k positive ones remain.
+     */
+    public static int computeHitsAtK(RankMap rankMap, Vector relevant, Vector excluded, int k) {
+        int[] recommended = new int[k];
+        int numberRecommended = 0;
+        int numberOfPositive = rankMap.getNumberOfPositiveElements();
+        for (int i=0; i < numberOfPositive && numberRecommended < k; i++) {
+            int index = rankMap.getRankedIndex(i);
+            if (excluded.getQuick(index) == 0.0) {
+                recommended[numberRecommended++] = index;
+            }
+        }
+        for (int index=0; index < relevant.size() && numberRecommended < k; index++) {
+            if (!rankMap.isRankedElement(index) && excluded.getQuick(index) == 0.0) {
+                recommended[numberRecommended++] = index;
+            }
+        }
+        for (int i=numberOfPositive; i < rankMap.getNumberOfRankedElements() && numberRecommended < k; i++) {
+            int index = rankMap.getRankedIndex(i);
+            if (excluded.getQuick(index) == 0.0) {
+                recommended[numberRecommended++] = index;
+            }
+        }
+
+        int hits = 0;
+        for (int i=0; i < numberRecommended; i++) {
+            if (relevant.getQuick(recommended[i]) != 0.0) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    /*
+     * Evaluate a scorer on every row, in parallel.
+     *
+     * Each row is scored once from its training interactions, and the same ranking
+     * is used for the training and the test metrics. Precision and recall at k
+     * count test interactions among the top k items not in the training row.
+     */
+    public static Evaluation evaluate(Matrix trainingData, Matrix testData, Scorer scorer, int k, ForkJoinPool pool) {
+        RowMetrics metrics = new RowMetrics(trainingData.numRows());
+        pool.invoke(new EvaluationTask(trainingData, testData, scorer, k, metrics, 0, trainingData.numRows()));
+
+        double trainingRank = 0.0;
+        double testRank = 0.0;
+        double precision = 0.0;
+        double recall = 0.0;
+        int trainingRows = 0;
+        int testRows = 0;
+        for (int i=0; i < trainingData.numRows(); i++) {
+            if (metrics.hasTrainingData[i]) {
+                trainingRows++;
+                trainingRank += metrics.trainingRank[i];
+            }
+            if (metrics.hasTestData[i]) {
+                testRows++;
+                testRank += metrics.testRank[i];
+                precision += metrics.hits[i] / (double) k;
+                recall += metrics.hits[i] / (double) metrics.testCount[i];
+            }
+        }
+        return new Evaluation(trainingRank / trainingRows, testRank / testRows,
+                precision / testRows, recall / testRows, k);
+    }
+
+    public static Evaluation evaluate(Matrix trainingData, Matrix testData, Scorer scorer, int k) {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return evaluate(trainingData, testData, scorer, k, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static class RowMetrics {
+
+        private final boolean[] hasTrainingData;
+        private final boolean[] hasTestData;
+        private final double[] trainingRank;
+        private final double[] testRank;
+        private final int[] hits;
+        private final int[] testCount;
+
+        private RowMetrics(int numberOfRows) {
+            this.hasTrainingData = new boolean[numberOfRows];
+            this.hasTestData = new boolean[numberOfRows];
+            this.trainingRank = new double[numberOfRows];
+            this.testRank = new double[numberOfRows];
+            this.hits = new int[numberOfRows];
+            this.testCount = new int[numberOfRows];
+        }
+
+    }
+
+    private static class EvaluationTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private static final int SEQUENTIAL_THRESHOLD = 16;
+
+        private final Matrix trainingData;
+        private final Matrix testData;
+        private final Scorer scorer;
+        private final int k;
+        private final RowMetrics metrics;
+        private final int start;
+        private final int end;
+
+        private EvaluationTask(Matrix trainingData, Matrix testData, Scorer scorer, int k,
+                RowMetrics metrics, int start, int end) {
+            this.trainingData = trainingData;
+            this.testData = testData;
+            this.scorer = scorer;
+            this.k = k;
+            this.metrics = metrics;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start <= SEQUENTIAL_THRESHOLD) {
+                for (int i=this.start; i < this.end; i++) {
+                    this.evaluateRow(i);
+                }
+            } else {
+                int middle = (this.start + this.end) >>> 1;
+                invokeAll(new EvaluationTask(this.trainingData, this.testData, this.scorer, this.k, this.metrics, this.start, middle),
+                        new EvaluationTask(this.trainingData, this.testData, this.scorer, this.k, this.metrics, middle, this.end));
+            }
+        }
+
+        private void evaluateRow(int i) {
+            Vector trainingRow = this.trainingData.viewRow(i);
+            Vector testRow = this.testData.viewRow(i);
+            int trainingCount = trainingRow.getNumNonZeroElements();
+            int testCount = testRow.getNumNonZeroElements();
+            if (trainingCount == 0 && testCount == 0) {
+                return;
+            }
+            RankMap rankMap = getRankMap(this.scorer.score(i, trainingRow));
+            if (trainingCount > 0) {
+                this.metrics.hasTrainingData[i] = true;
+                this.metrics.trainingRank[i] = computeAverageNonzeroElementRank(trainingRow, rankMap) / trainingRow.size();
+            }
+            if (testCount > 0) {
+                this.metrics.hasTestData[i] = true;
+                this.metrics.testRank[i] = computeAverageNonzeroElementRank(testRow, rankMap) / testRow.size();
+                this.metrics.hits[i] = computeHitsAtK(rankMap, testRow, trainingRow, this.k);
+                this.metrics.testCount[i] = testCount;
+            }
+        }
+    }
+
 }
@@ -0,0 +1,328 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+/**
+ * Maps raw item ids (strings or longs) into a fixed number of features
+ * with the hashing trick, so that the dimension of the learner does not
+ * depend on the size of the catalog and new items need no retraining to
+ * be represented.
+ *
+ * Every id is hashed to a feature and to a sign, and its value is added
+ * to that feature with that sign. Ids that collide in a feature then tend
+ * to cancel out rather than add up, and the dot products of hashed
+ * vectors are unbiased estimates of those of the original vectors.
+ *
+ * Scores in the hashed space (reconstructions, or recommendations from
+ * them) are mapped back to ids through a reverse-lookup sketch: for every
+ * feature, the idsPerFeature most frequently added ids are kept with
+ * approximate counts (the space-saving algorithm), so the ids that
+ * matter most are recovered in bounded memory however large the catalog
+ * grows. A feature's score is shared out among its recorded ids by their
+ * counts, as the expected contribution of each, with the ids' signs.
+ *
+ * Adding ids and scoring are safe from multiple threads.
+ */
+public class FeatureHasher {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final int numberOfFeatures;
+	private final long seed;
+	private final int idsPerFeature;
+	private final AtomicReferenceArray<Bucket> buckets;
+
+	public FeatureHasher(int numberOfFeatures) {
+		this(numberOfFeatures, 4, 0L);
+	}
+
+	/*
+	 * A hasher keeping idsPerFeature ids per feature in its sketch (0 to
+	 * disable reverse lookups). Hashers with different seeds hash ids
+	 * independently.
+	 */
+	public FeatureHasher(int numberOfFeatures, int idsPerFeature, long seed) {
+		if ((long) numberOfFeatures * Math.max(idsPerFeature, 1) > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("numberOfFeatures * idsPerFeature must fit in an int");
+		}
+		this.numberOfFeatures = numberOfFeatures;
+		this.idsPerFeature = idsPerFeature;
+		this.seed = seed;
+		this.buckets = new AtomicReferenceArray<Bucket>(idsPerFeature > 0 ? numberOfFeatures : 0);
+	}
+
+	public int getNumberOfFeatures() {
+		return this.numberOfFeatures;
+	}
+
+	public int getIdsPerFeature() {
+		return this.idsPerFeature;
+	}
+
+	public Vector newVector() {
+		return new RandomAccessSparseVector(this.numberOfFeatures);
+	}
+
+	/*
+	 * The hashed vector of the ids, each with value 1.
+	 */
+	public Vector vectorize(Collection<String> ids) {
+		Vector vector = new RandomAccessSparseVector(this.numberOfFeatures, ids.size());
+		for (String id : ids) {
+			this.add(vector, id, 1.0);
+		}
+		return vector;
+	}
+
+	/*
+	 * Add the value, signed, to the id's feature of the vector, and record
+	 * the id in the reverse-lookup sketch.
+	 */
+	public void add(Vector vector, String id, double value) {
+		this.add(vector, id, hash(id, this.seed), value);
+	}
+
+	public void add(Vector vector, long id, double value) {
+		this.add(vector, Long.valueOf(id), hash(id, this.seed), value);
+	}
+
+	private void add(Vector vector, Object id, long hash, double value) {
+		int feature = this.featureOf(hash);
+		vector.incrementQuick(feature, signOf(hash) * value);
+		if (this.idsPerFeature > 0) {
+			this.getBucket(feature).record(id);
+		}
+	}
+
+	public int getFeature(String id) {
+		return this.featureOf(hash(id, this.seed));
+	}
+
+	public int getFeature(long id) {
+		return this.featureOf(hash(id, this.seed));
+	}
+
+	/*
+	 * The sign, 1 or -1, with which the id's values are added.
+	 */
+	public double getSign(String id) {
+		return signOf(hash(id, this.seed));
+	}
+
+	public double getSign(long id) {
+		return signOf(hash(id, this.seed));
+	}
+
+	/*
+	 * The id's score in a vector of hashed scores.
+	 */
+	public double getScore(Vector scores, String id) {
+		long hash = hash(id, this.seed);
+		return signOf(hash) * scores.getQuick(this.featureOf(hash));
+	}
+
+	public double getScore(Vector scores, long id) {
+		long hash = hash(id, this.seed);
+		return signOf(hash) * scores.getQuick(this.featureOf(hash));
+	}
+
+	private int featureOf(long hash) {
+		return (int) ((hash >>> 1) % this.numberOfFeatures);
+	}
+
+	private static double signOf(long hash) {
+		return (hash & 1L) == 0 ? 1.0 : -1.0;
+	}
+
+	/*
+	 * FNV-1a over the characters, finalized with the MurmurHash3 mix so
+	 * that the low bit (the sign) is as well distributed as the rest.
+	 */
+	static long hash(String id, long seed) {
+		long hash = FNV_OFFSET_BASIS ^ seed;
+		for (int i=0; i < id.length(); i++) {
+			hash = (hash ^ id.charAt(i)) * FNV_PRIME;
+		}
+		return mix(hash);
+	}
+
+	static long hash(long id, long seed) {
+		return mix(id ^ seed ^ FNV_OFFSET_BASIS);
+	}
+
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/*
+	 * The ids recorded for the feature, most frequent first: Strings, or
+	 * Longs for ids added as longs.
+	 */
+	public List<Object> getIds(int feature) {
+		List<Object> ids = new ArrayList<Object>();
+		Bucket bucket = this.idsPerFeature > 0 ? this.buckets.get(feature) : null;
+		if (bucket != null) {
+			synchronized (bucket) {
+				TopK topK = new TopK(bucket.size);
+				for (int i=0; i < bucket.size; i++) {
+					topK.offer(i, bucket.counts[i]);
+				}
+				for (int slot : topK.getIndices()) {
+					ids.add(bucket.ids[slot]);
+				}
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * An id recovered from the sketch and its score.
+	 */
+	public static class ScoredId {
+
+		private final Object id;
+		private final double score;
+
+		public ScoredId(Object id, double score) {
+			this.id = id;
+			this.score = score;
+		}
+
+		public Object getId() {
+			return this.id;
+		}
+
+		public double getScore() {
+			return this.score;
+		}
+
+		@Override
+		public String toString() {
+			return this.id + ": " + this.score;
+		}
+
+	}
+
+	/*
+	 * The k highest-scoring ids in the sketch given hashed scores, such as a
+	 * reconstruction, highest first. Ids in excluded (for example the user's
+	 * own items) are skipped; it may be null.
+	 *
+	 * An id that has a feature to itself gets the feature's (signed) score;
+	 * ids that collide get a share proportional to their counts, so that
+	 * the rare ids sharing a popular id's feature rank below it.
+	 */
+	public List<ScoredId> recommend(Vector scores, int k, Collection<?> excluded) {
+		if (this.idsPerFeature == 0) {
+			throw new IllegalStateException("Reverse lookups are disabled");
+		}
+		// Ids are captured as they are retained, so that a later eviction from the bucket cannot change them.
+		TopK topK = new TopK(k);
+		List<Object> candidates = new ArrayList<Object>();
+		for (Element elem : scores.nonZeroes()) {
+			double score = elem.get();
+			if (score == 0.0) {
+				continue;
+			}
+			Bucket bucket = this.buckets.get(elem.index());
+			if (bucket == null) {
+				continue;
+			}
+			synchronized (bucket) {
+				long totalCount = 0;
+				for (int slot=0; slot < bucket.size; slot++) {
+					totalCount += bucket.counts[slot];
+				}
+				for (int slot=0; slot < bucket.size; slot++) {
+					Object id = bucket.ids[slot];
+					if (excluded != null && excluded.contains(id)) {
+						continue;
+					}
+					double share = bucket.counts[slot] / (double) totalCount;
+					if (topK.offer(candidates.size(), this.getSign(id) * share * score)) {
+						candidates.add(id);
+					}
+				}
+			}
+		}
+
+		List<ScoredId> recommendations = new ArrayList<ScoredId>(topK.size());
+		int[] indices = topK.getIndices();
+		double[] topScores = topK.getScores();
+		for (int i=0; i < indices.length; i++) {
+			recommendations.add(new ScoredId(candidates.get(indices[i]), topScores[i]));
+		}
+		return recommendations;
+	}
+
+	private double getSign(Object id) {
+		if (id instanceof Long) {
+			return signOf(hash((Long) id, this.seed));
+		}
+		return signOf(hash((String) id, this.seed));
+	}
+
+	private Bucket getBucket(int feature) {
+		Bucket bucket = this.buckets.get(feature);
+		if (bucket == null) {
+			this.buckets.compareAndSet(feature, null, new Bucket(this.idsPerFeature));
+			bucket = this.buckets.get(feature);
+		}
+		return bucket;
+	}
+
+	/*
+	 * The ids of a feature with their approximate counts, guarded by the
+	 * bucket's monitor.
+	 */
+	private static class Bucket {
+
+		private final Object[] ids;
+		private final long[] counts;
+		private int size;
+
+		private Bucket(int capacity) {
+			this.ids = new Object[capacity];
+			this.counts = new long[capacity];
+		}
+
+		/*
+		 * Space-saving update: a new id replaces the least frequent one
+		 * when the bucket is full, inheriting its count plus one.
+		 */
+		private synchronized void record(Object id) {
+			int minimum = 0;
+			for (int i=0; i < this.size; i++) {
+				if (this.ids[i].equals(id)) {
+					this.counts[i]++;
+					return;
+				}
+				if (this.counts[i] < this.counts[minimum]) {
+					minimum = i;
+				}
+			}
+			if (this.size < this.ids.length) {
+				this.ids[this.size] = id;
+				this.counts[this.size++] = 1;
+			} else {
+				this.ids[minimum] = id;
+				this.counts[minimum]++;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,118 @@
+package com.github.maciejkula.dictionarylearning;
+
+import org.apache.mahout.math.map.OpenIntObjectHashMap;
+
+/**
+ * Row-wise index of a dictionary: for every feature, the atoms that have
+ * a nonzero entry for it and the values of those entries.
+ *
+ * The dictionary itself is stored by column, so finding the atoms that
+ * share features with a sparse datapoint would otherwise mean scanning
+ * every atom. With the index, A'y is a sum over the datapoint's nonzeros
+ * of their rows of the dictionary.
+ *
+ * The index is kept up to date by the CompressedDictionary as atoms are
+ * rebuilt. Entries are addressed by their slot in the feature's row,
+ * which the CompressedDictionary keeps alongside every nonzero, so that
+ * changing a value is a single array write. Only features that have had
+ * a nonzero entry at some point take up space.
+ */
+public class FeatureIndex {
+
+	/**
+	 * The atoms with nonzero entries for a feature, in no particular order,
+	 * and their values.
+	 */
+	public static class Row {
+
+		private int[] atoms = new int[4];
+		private double[] values = new double[4];
+		private int size;
+
+		/*
+		 * Only the first size() entries are valid.
+		 */
+		public int[] getAtoms() {
+			return this.atoms;
+		}
+
+		/*
+		 * The entries' values, aligned with getAtoms().
+		 */
+		public double[] getValues() {
+			return this.values;
+		}
+
+		public int size() {
+			return this.size;
+		}
+
+	}
+
+	private final OpenIntObjectHashMap<Row> rows = new OpenIntObjectHashMap<Row>();
+	private long numberOfEntries;
+
+	/*
+	 * The row of the feature, or null if no atom has ever had a
+	 * nonzero entry for it. Must not be modified.
+	 */
+	public Row getRow(int feature) {
+		return this.rows.get(feature);
+	}
+
+	/*
+	 * The total number of (feature, atom) entries, which is the number
+	 * of nonzeros in the dictionary.
+	 */
+	public long getNumberOfEntries() {
+		return this.numberOfEntries;
+	}
+
+	/*
+	 * Add an entry, returning its slot in the feature's row.
+	 */
+	int add(int feature, int atom, double value) {
+		Row row = this.rows.get(feature);
+		if (row == null) {
+			row = new Row();
+			this.rows.put(feature, row);
+		} else if (row.size == row.atoms.length) {
+			int length = 2 * row.size;
+			int[] atoms = new int[length];
+			double[] values = new double[length];
+			System.arraycopy(row.atoms, 0, atoms, 0, row.size);
+			System.arraycopy(row.values, 0, values, 0, row.size);
+			row.atoms = atoms;
+			row.values = values;
+		}
+		row.atoms[row.size] = atom;
+		row.values[row.size] = value;
+		this.numberOfEntries++;
+		return row.size++;
+	}
+
+	void setValue(int feature, int slot, double value) {
+		this.rows.get(feature).values[slot] = value;
+	}
+
+	/*
+	 * Remove the entry in the slot by moving the row's last entry into it.
+	 *
+	 * Returns the atom whose entry was moved, which the caller must give the
+	 * new slot, or -1 if no entry was moved. Emptied rows are kept: atoms tend
+	 * to regain the features they lose, and reallocating rows on every update
+	 * would defeat the point of updating the index in place.
+	 */
+	int remove(int feature, int slot) {
+		Row row = this.rows.get(feature);
+		int last = --row.size;
+		this.numberOfEntries--;
+		if (slot == last) {
+			return -1;
+		}
+		row.atoms[slot] = row.atoms[last];
+		row.values[slot] = row.values[last];
+		return row.atoms[slot];
+	}
+
+}
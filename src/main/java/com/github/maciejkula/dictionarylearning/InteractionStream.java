@@ -0,0 +1,328 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+
+/**
+ * Streams delimited (TSV or CSV) interaction files of
+ * user, item[, value[, ...]] lines as per-user sparse vectors.
+ *
+ * Parsing runs on a producer thread that hands finished users to the
+ * consumer through a bounded queue: when the consumer (typically training)
+ * falls behind, the producer blocks rather than reading ahead, so memory
+ * use is bounded by the queue capacity and not by the size of the file.
+ *
+ * Lines are grouped into users as they are read, so the file must be
+ * grouped by user (as MovieLens files are, or after sort -n -k1,1). A user
+ * whose lines are not contiguous is emitted once per run of lines.
+ *
+ * Items are either integer ids in [0, numberOfFeatures) or, with a
+ * FeatureHasher, arbitrary strings hashed into the features.
+ *
+ * A stream can only be iterated over once.
+ */
+public class InteractionStream implements Iterable<InteractionStream.UserInteractions>, Closeable {
+
+	private static final UserInteractions END_OF_DATA = new UserInteractions(-1, null);
+
+	private final BufferedReader reader;
+	private final int numberOfFeatures;
+
+	private char delimiter = '\t';
+	private boolean oneBasedIds = true;
+	private boolean binary = false;
+	private int queueCapacity = 1024;
+	private FeatureHasher featureHasher;
+
+	private Thread producer;
+	private volatile Throwable failure;
+
+	public InteractionStream(Reader reader, int numberOfFeatures) {
+		this.reader = new BufferedReader(reader);
+		this.numberOfFeatures = numberOfFeatures;
+	}
+
+	public static class UserInteractions {
+
+		private final int userId;
+		private final Vector interactions;
+
+		public UserInteractions(int userId, Vector interactions) {
+			this.userId = userId;
+			this.interactions = interactions;
+		}
+
+		public int getUserId() {
+			return this.userId;
+		}
+
+		public Vector getInteractions() {
+			return this.interactions;
+		}
+
+	}
+
+	public void setDelimiter(char delimiter) {
+		this.delimiter = delimiter;
+	}
+
+	/*
+	 * Whether user and item ids in the file start at 1 (the default) rather than 0.
+	 */
+	public void setOneBasedIds(boolean oneBasedIds) {
+		this.oneBasedIds = oneBasedIds;
+	}
+
+	/*
+	 * Record every interaction as 1.0, ignoring the value column.
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+
+	/*
+	 * Hash the item field, read as a raw string id, instead of parsing it as
+	 * a feature index. The hasher must have numberOfFeatures features.
+	 */
+	public void setFeatureHasher(FeatureHasher featureHasher) {
+		if (featureHasher.getNumberOfFeatures() != this.numberOfFeatures) {
+			throw new IllegalArgumentException("The hasher must have " + this.numberOfFeatures + " features");
+		}
+		this.featureHasher = featureHasher;
+	}
+
+	/*
+	 * The maximum number of users parsed ahead of the consumer.
+	 */
+	public void setQueueCapacity(int capacity) {
+		this.queueCapacity = capacity;
+	}
+
+	@Override
+	public synchronized Iterator<UserInteractions> iterator() {
+		if (this.producer != null) {
+			throw new IllegalStateException("Interaction streams can only be iterated over once");
+		}
+		final BlockingQueue<UserInteractions> queue = new ArrayBlockingQueue<UserInteractions>(this.queueCapacity);
+		this.producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					try {
+						produce(queue);
+					} catch (InterruptedException e) {
+						// Closed by the consumer: nobody is waiting for the end of the data.
+						return;
+					} catch (Throwable e) {
+						failure = e;
+					} finally {
+						closeReader();
+					}
+					queue.put(END_OF_DATA);
+				} catch (InterruptedException e) {
+					// Closed by the consumer.
+				}
+			}
+		}, "interaction-stream-reader");
+		this.producer.setDaemon(true);
+		this.producer.start();
+
+		return new Iterator<UserInteractions>() {
+
+			private UserInteractions next;
+
+			@Override
+			public boolean hasNext() {
+				if (this.next == null) {
+					try {
+						this.next = queue.take();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RuntimeException(e);
+					}
+				}
+				if (this.next == END_OF_DATA) {
+					if (failure != null) {
+						throw new RuntimeException(failure);
+					}
+					return false;
+				}
+				return true;
+			}
+
+			@Override
+			public UserInteractions next() {
+				if (!this.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				UserInteractions current = this.next;
+				this.next = null;
+				return current;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/*
+	 * The users' interaction vectors alone, e.g. for the ParallelTrainer.
+	 */
+	public Iterable<Vector> vectors() {
+		return new Iterable<Vector>() {
+			@Override
+			public Iterator<Vector> iterator() {
+				final Iterator<UserInteractions> users = InteractionStream.this.iterator();
+				return new Iterator<Vector>() {
+					@Override
+					public boolean hasNext() {
+						return users.hasNext();
+					}
+
+					@Override
+					public Vector next() {
+						return users.next().getInteractions();
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/*
+	 * Train the learner on every user in the stream, online when batchSize is 1
+	 * and in mini-batches otherwise. At most queueCapacity + batchSize users are
+	 * held in memory at any time. The stream is closed when training ends,
+	 * whether or not it succeeds.
+	 *
+	 * Returns the number of users trained on.
+	 */
+	public long train(DictionaryLearner dictionaryLearner, int batchSize) {
+		long numberOfUsers = 0;
+		List<Vector> batch = new ArrayList<Vector>(batchSize);
+		try {
+			for (UserInteractions user : this) {
+				numberOfUsers++;
+				if (batchSize == 1) {
+					dictionaryLearner.train(user.getInteractions());
+					continue;
+				}
+				batch.add(user.getInteractions());
+				if (batch.size() == batchSize) {
+					dictionaryLearner.train(batch);
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty()) {
+				dictionaryLearner.train(batch);
+			}
+		} finally {
+			// Also stops a producer blocked on a full queue if training failed.
+			if (this.producer != null) {
+				this.producer.interrupt();
+			}
+			this.closeReader();
+		}
+		return numberOfUsers;
+	}
+
+	private void produce(BlockingQueue<UserInteractions> queue) throws IOException, InterruptedException {
+		int currentUser = 0;
+		Vector currentInteractions = null;
+		int lineNumber = 0;
+		String line;
+		while ((line = this.reader.readLine()) != null) {
+			lineNumber++;
+			if (line.isEmpty()) {
+				continue;
+			}
+			int userEnd = line.indexOf(this.delimiter);
+			int itemEnd = userEnd < 0 ? -1 : line.indexOf(this.delimiter, userEnd + 1);
+			if (userEnd < 0) {
+				throw new IOException(String.format("Line %s has fewer than two fields: %s", lineNumber, line));
+			}
+			int offset = this.oneBasedIds ? 1 : 0;
+			int user;
+			int item = 0;
+			String itemId = line.substring(userEnd + 1, itemEnd < 0 ? line.length() : itemEnd).trim();
+			double value = 1.0;
+			try {
+				user = Integer.parseInt(line.substring(0, userEnd).trim()) - offset;
+				if (this.featureHasher == null) {
+					item = Integer.parseInt(itemId) - offset;
+				}
+				if (!this.binary && itemEnd >= 0) {
+					int valueEnd = line.indexOf(this.delimiter, itemEnd + 1);
+					value = Double.parseDouble(line.substring(itemEnd + 1, valueEnd < 0 ? line.length() : valueEnd).trim());
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException(String.format("Malformed line %s: %s", lineNumber, line), e);
+			}
+			if (user < 0) {
+				throw new IOException(String.format("User on line %s is negative: %s", lineNumber, line));
+			}
+			if (this.featureHasher == null && (item < 0 || item >= this.numberOfFeatures)) {
+				throw new IOException(String.format("Item on line %s is outside the %s features: %s",
+						lineNumber, this.numberOfFeatures, line));
+			}
+
+			if (currentInteractions == null || user != currentUser) {
+				if (currentInteractions != null) {
+					queue.put(new UserInteractions(currentUser, currentInteractions));
+				}
+				currentUser = user;
+				currentInteractions = new RandomAccessSparseVector(this.numberOfFeatures);
+			}
+			if (this.featureHasher != null) {
+				// Colliding items add up (with their signs) rather than overwrite each other.
+				this.featureHasher.add(currentInteractions, itemId, value);
+			} else {
+				currentInteractions.setQuick(item, value);
+			}
+		}
+		if (currentInteractions != null) {
+			queue.put(new UserInteractions(currentUser, currentInteractions));
+		}
+	}
+
+	/*
+	 * Close the reader, once the producer is done with it or has been
+	 * stopped. Failing to close a fully read file is not worth reporting.
+	 */
+	private void closeReader() {
+		try {
+			this.reader.close();
+		} catch (IOException e) {
+			// Ignored.
+		}
+	}
+
+	/*
+	 * Stop the producer and close the underlying reader.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (this.producer != null) {
+			this.producer.interrupt();
+		}
+		this.reader.close();
+	}
+
+}
@@ -3,8 +3,10 @@ package com.github.maciejkula.dictionarylearning;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.hadoop.io.Writable;
+import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.Matrix;
 import org.apache.mahout.math.SparseColumnMatrix;
 import org.apache.mahout.math.Vector;
@@ -12,22 +14,51 @@ import org.apache.mahout.math.solver.LSMR;
 
 public class LSMRTransformer implements Transformer, Writable {
 
-    private final LSMR solver;
-    
-    private Matrix transposedDictionaryTimesDictionaryCache;
+    private final DictionaryCache cache;
+    private MetricsListener metrics = NoOpMetricsListener.INSTANCE;
 
     public LSMRTransformer() {
-        this.solver = new LSMR();
+        this.cache = new DictionaryCache();
     }
 
     /*
      * Solves the linear projection A'Ax = A'y, where A is the dictionary
      * and y is the datapoint.
+     * 
+     * LSMR keeps per-solve state, so a fresh solver is used for every call.
      */
     @Override
     public Vector transform(Vector datapoint, SparseColumnMatrix dictionary) {
-    	return this.solver.solve(this.getTransposedDictionaryTimesDictionary(dictionary), 
-    			MathUtils.transposedDictionaryTimesDatapoint(dictionary, datapoint));
+    	return this.solve(this.cache.getTransposedDictionaryTimesDictionary(dictionary), 
+    			MathUtils.transposedDictionaryTimesDatapoint(this.cache.getCompressedDictionary(dictionary), datapoint));
+    }
+
+    private Vector solve(Matrix gram, Vector correlations) {
+    	LSMR solver = new LSMR();
+    	Vector solution = solver.solve(gram, correlations);
+    	if (this.metrics.isEnabled()) {
+    		this.metrics.solverCompleted(solver.getIterationCount(), solver.getNormalEquationResidual());
+    	}
+    	return solution;
+    }
+
+    /*
+     * LSMR allocates its own work vectors, so this only avoids allocating the output.
+     */
+    @Override
+    public void transform(Vector datapoint, SparseColumnMatrix dictionary, double[] projection) {
+    	Vector solution = this.transform(datapoint, dictionary);
+    	for (int i=0; i < projection.length; i++) {
+    		projection[i] = solution.getQuick(i);
+    	}
+    }
+
+    /*
+     * LSMR always starts from zero: the initial projection is ignored.
+     */
+    @Override
+    public Vector transform(Vector datapoint, Vector initialProjection, SparseColumnMatrix dictionary) {
+    	return this.transform(datapoint, dictionary);
     }
 
     /*
@@ -35,19 +66,61 @@ public class LSMRTransformer implements Transformer, Writable {
      */
     @Override
     public Vector inverseTransform(Vector projection, SparseColumnMatrix dictionary) {
-    	return MathUtils.inverseTransform(dictionary, projection);
+    	return MathUtils.inverseTransform(this.cache.getCompressedDictionary(dictionary), projection);
+    }
+
+    /*
+     * A'Y for blocks of rows at a time, then one LSMR solve per row against the shared A'A.
+     */
+    @Override
+    public Matrix transform(Matrix datapoints, SparseColumnMatrix dictionary, ForkJoinPool pool) {
+    	final Matrix gram = this.cache.getTransposedDictionaryTimesDictionary(dictionary);
+    	return BatchTransforms.transform(this.cache.getCompressedDictionary(dictionary), datapoints, 
+    			new BatchTransforms.CorrelationSolver() {
+    		@Override
+    		public void solveInPlace(double[] correlations) {
+    			Vector solution = solve(gram, new DenseVector(correlations, true));
+    			for (int i=0; i < correlations.length; i++) {
+    				correlations[i] = solution.getQuick(i);
+    			}
+    		}
+    	}, pool);
+    }
+
+    @Override
+    public Matrix inverseTransform(Matrix projections, SparseColumnMatrix dictionary, ForkJoinPool pool) {
+    	return BatchTransforms.inverseTransform(this.cache.getCompressedDictionary(dictionary), projections, pool);
+    }
+
+    @Override
+    public TopK recommend(Vector projection, SparseColumnMatrix dictionary, int k, Vector excluded) {
+    	return MathUtils.recommend(this.cache.getCompressedDictionary(dictionary), projection, k, excluded);
     }
     
+    @Override
+    public void prepare(SparseColumnMatrix dictionary) {
+    	this.cache.getTransposedDictionaryTimesDictionary(dictionary);
+    }
+
     @Override
     public void clearCaches() {
-    	this.transposedDictionaryTimesDictionaryCache = null;
+    	this.cache.clear();
     }
-    
-    private Matrix getTransposedDictionaryTimesDictionary(SparseColumnMatrix dictionary) {
-    	if (this.transposedDictionaryTimesDictionaryCache == null) {
-    		this.transposedDictionaryTimesDictionaryCache = MathUtils.transposedDictionaryTimesDictionary(dictionary);
-    	}
-    	return this.transposedDictionaryTimesDictionaryCache;
+
+    @Override
+    public Transformer copy() {
+        return new LSMRTransformer();
+    }
+
+    @Override
+    public void clearCaches(int atom) {
+    	this.cache.clear(atom);
+    }
+
+    @Override
+    public void setMetricsListener(MetricsListener metrics) {
+    	this.metrics = metrics;
+    	this.cache.setMetricsListener(metrics);
     }
 
     @Override
@@ -0,0 +1,309 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SparseColumnMatrix;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+/**
+ * A read-only dictionary served directly from a memory-mapped model file.
+ *
+ * The file holds the dictionary in compressed sparse column layout, and
+ * optionally the Cholesky factor of A'A + rI, so that a fresh process can
+ * project datapoints as soon as the file is mapped: nothing is deserialized
+ * and the dictionary is never copied onto the heap. When the file has no
+ * factor, it is computed from the mapped dictionary on open.
+ *
+ * Projections are least-squares (or ridge, with r > 0) solutions, as computed
+ * by the CholeskyTransformer. All reads are absolute, so instances are safe
+ * to use from multiple threads.
+ *
+ * File layout (little-endian, version 1):
+ *
+ * int magic, int version, int numberOfFeatures, int numberOfAtoms,
+ * int flags, int numberOfNonZeros, double ridge,
+ * int[numberOfAtoms + 1] column offsets, int[numberOfNonZeros] feature indices
+ * (ascending within each atom), padding to 8 bytes, double[numberOfNonZeros]
+ * values, and, if flags has HAS_FACTORIZATION set, the row-major
+ * numberOfAtoms x numberOfAtoms lower-triangular factor.
+ */
+public class MappedDictionary {
+
+	public static final int MAGIC = 0x444C4D44;
+	public static final int VERSION = 1;
+
+	private static final int HAS_FACTORIZATION = 1;
+	private static final int HEADER_SIZE = 32;
+
+	private final int numberOfFeatures;
+	private final int numberOfAtoms;
+	private final double ridge;
+
+	private final IntBuffer offsets;
+	private final IntBuffer indices;
+	private final DoubleBuffer values;
+	private final CholeskyFactorization factorization;
+
+	private MappedDictionary(ByteBuffer buffer) throws IOException {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a dictionary model file");
+		}
+		int version = buffer.getInt(4);
+		if (version != VERSION) {
+			throw new IOException("Unsupported dictionary model version: " + version);
+		}
+		this.numberOfFeatures = buffer.getInt(8);
+		this.numberOfAtoms = buffer.getInt(12);
+		int flags = buffer.getInt(16);
+		int numberOfNonZeros = buffer.getInt(20);
+		this.ridge = buffer.getDouble(24);
+
+		long expectedSize = fileSize(this.numberOfAtoms, numberOfNonZeros, (flags & HAS_FACTORIZATION) != 0);
+		if (buffer.limit() != expectedSize) {
+			throw new IOException("Truncated dictionary model file: expected "
+					+ expectedSize + " bytes, found " + buffer.limit());
+		}
+
+		int position = HEADER_SIZE;
+		this.offsets = slice(buffer, position, 4 * (this.numberOfAtoms + 1)).asIntBuffer();
+		position += 4 * (this.numberOfAtoms + 1);
+		this.indices = slice(buffer, position, 4 * numberOfNonZeros).asIntBuffer();
+		position = align(position + 4 * numberOfNonZeros);
+		this.values = slice(buffer, position, 8 * numberOfNonZeros).asDoubleBuffer();
+		position += 8 * numberOfNonZeros;
+
+		if ((flags & HAS_FACTORIZATION) != 0) {
+			// The factor is only numberOfAtoms^2 doubles, independent of the number
+			// of features; it is read onto the heap to reuse the existing solver.
+			double[] lower = new double[this.numberOfAtoms * this.numberOfAtoms];
+			slice(buffer, position, 8 * lower.length).asDoubleBuffer().get(lower);
+			this.factorization = new CholeskyFactorization(this.numberOfAtoms, lower);
+		} else {
+			this.factorization = new CholeskyFactorization(this.transposedDictionaryTimesDictionary(), this.ridge);
+		}
+	}
+
+	/*
+	 * Map a model file written by write.
+	 */
+	public static MappedDictionary open(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Dictionary model files larger than 2GB cannot be mapped");
+			}
+			// The mapping stays valid after the channel is closed.
+			return new MappedDictionary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/*
+	 * Write the learner's dictionary, using the CholeskyTransformer's ridge if it has one.
+	 */
+	public static void write(DictionaryLearner dictionaryLearner, File file, boolean includeFactorization) throws IOException {
+		double ridge = 0.0;
+		if (dictionaryLearner.getTransformer() instanceof CholeskyTransformer) {
+			ridge = ((CholeskyTransformer) dictionaryLearner.getTransformer()).getRidge();
+		}
+		dictionaryLearner.flushRegularization();
+		write(dictionaryLearner.getDictionaryMatrix(), ridge, file, includeFactorization);
+	}
+
+	public static void write(SparseColumnMatrix dictionary, double ridge, File file, boolean includeFactorization) throws IOException {
+		CompressedDictionary compressed = CompressedDictionary.fromMatrix(dictionary);
+		int numberOfAtoms = compressed.numberOfAtoms();
+		long numberOfNonZeros = 0;
+		for (int i=0; i < numberOfAtoms; i++) {
+			numberOfNonZeros += compressed.getNumNonZeroElements(i);
+		}
+		long size = fileSize(numberOfAtoms, numberOfNonZeros, includeFactorization);
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Dictionary model files larger than 2GB cannot be mapped");
+		}
+
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.setLength(size);
+			MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(compressed.numberOfFeatures());
+			buffer.putInt(numberOfAtoms);
+			buffer.putInt(includeFactorization ? HAS_FACTORIZATION : 0);
+			buffer.putInt((int) numberOfNonZeros);
+			buffer.putDouble(ridge);
+
+			int offset = 0;
+			buffer.putInt(offset);
+			for (int i=0; i < numberOfAtoms; i++) {
+				offset += compressed.getNumNonZeroElements(i);
+				buffer.putInt(offset);
+			}
+			for (int i=0; i < numberOfAtoms; i++) {
+				buffer.asIntBuffer().put(compressed.getIndices(i), 0, compressed.getNumNonZeroElements(i));
+				buffer.position(buffer.position() + 4 * compressed.getNumNonZeroElements(i));
+			}
+			buffer.position(align(buffer.position()));
+			for (int i=0; i < numberOfAtoms; i++) {
+				buffer.asDoubleBuffer().put(compressed.getValues(i), 0, compressed.getNumNonZeroElements(i));
+				buffer.position(buffer.position() + 8 * compressed.getNumNonZeroElements(i));
+			}
+			if (includeFactorization) {
+				CholeskyFactorization factorization = new CholeskyFactorization(
+						MathUtils.transposedDictionaryTimesDictionary(compressed), ridge);
+				buffer.asDoubleBuffer().put(factorization.getLowerTriangle());
+			}
+			buffer.force();
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private static long fileSize(int numberOfAtoms, long numberOfNonZeros, boolean includeFactorization) {
+		long size = align(HEADER_SIZE + 4L * (numberOfAtoms + 1) + 4L * numberOfNonZeros) + 8L * numberOfNonZeros;
+		if (includeFactorization) {
+			size += 8L * numberOfAtoms * numberOfAtoms;
+		}
+		return size;
+	}
+
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
+	private static int align(int position) {
+		return (position + 7) & ~7;
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(position);
+		view.limit(position + length);
+		// Slices do not inherit the byte order.
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public int getNumberOfAtoms() {
+		return this.numberOfAtoms;
+	}
+
+	public int getNumberOfFeatures() {
+		return this.numberOfFeatures;
+	}
+
+	public double getRidge() {
+		return this.ridge;
+	}
+
+	public int getNumNonZeroElements(int atom) {
+		return this.offsets.get(atom + 1) - this.offsets.get(atom);
+	}
+
+	/*
+	 * Project the datapoint on the dictionary.
+	 */
+	public Vector transform(Vector datapoint) {
+		double[] projection = new double[this.numberOfAtoms];
+		this.transform(datapoint, projection);
+		return new DenseVector(projection, true);
+	}
+
+	/*
+	 * Project the datapoint into a caller-provided array with one entry per atom.
+	 */
+	public void transform(Vector datapoint, double[] projection) {
+		for (int i=0; i < this.numberOfAtoms; i++) {
+			double value = 0.0;
+			for (int j=this.offsets.get(i); j < this.offsets.get(i + 1); j++) {
+				value += this.values.get(j) * datapoint.getQuick(this.indices.get(j));
+			}
+			projection[i] = value;
+		}
+		this.factorization.solveInPlace(projection);
+	}
+
+	/*
+	 * Reconstruct a datapoint from its projection on the dictionary.
+	 */
+	public Vector inverseTransform(Vector projection) {
+		Vector output = new RandomAccessSparseVector(this.numberOfFeatures);
+		for (Element projectionElem : projection.nonZeroes()) {
+			int atom = projectionElem.index();
+			double projectionWeight = projectionElem.get();
+			for (int j=this.offsets.get(atom); j < this.offsets.get(atom + 1); j++) {
+				output.incrementQuick(this.indices.get(j), this.values.get(j) * projectionWeight);
+			}
+		}
+		return output;
+	}
+
+	/*
+	 * Copy the dictionary back into a (heap-backed) matrix.
+	 */
+	public SparseColumnMatrix toMatrix() {
+		RandomAccessSparseVector[] atoms = new RandomAccessSparseVector[this.numberOfAtoms];
+		for (int i=0; i < this.numberOfAtoms; i++) {
+			atoms[i] = new RandomAccessSparseVector(this.numberOfFeatures, Math.max(this.getNumNonZeroElements(i), 1));
+			for (int j=this.offsets.get(i); j < this.offsets.get(i + 1); j++) {
+				atoms[i].setQuick(this.indices.get(j), this.values.get(j));
+			}
+		}
+		return new SparseColumnMatrix(this.numberOfFeatures, this.numberOfAtoms, atoms);
+	}
+
+	private Matrix transposedDictionaryTimesDictionary() {
+		Matrix output = new DenseMatrix(this.numberOfAtoms, this.numberOfAtoms);
+		for (int i=0; i < this.numberOfAtoms; i++) {
+			for (int j=i; j < this.numberOfAtoms; j++) {
+				double value = this.dot(i, j);
+				output.setQuick(i, j, value);
+				output.setQuick(j, i, value);
+			}
+		}
+		return output;
+	}
+
+	/*
+	 * Dot product of two atoms, computed by merging their sorted indices.
+	 */
+	private double dot(int a, int b) {
+		int i = this.offsets.get(a);
+		int j = this.offsets.get(b);
+		int aEnd = this.offsets.get(a + 1);
+		int bEnd = this.offsets.get(b + 1);
+
+		double value = 0.0;
+		while (i < aEnd && j < bEnd) {
+			int aIndex = this.indices.get(i);
+			int bIndex = this.indices.get(j);
+			if (aIndex == bIndex) {
+				value += this.values.get(i++) * this.values.get(j++);
+			} else if (aIndex < bIndex) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return value;
+	}
+
+}
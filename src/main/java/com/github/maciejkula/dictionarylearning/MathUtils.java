@@ -1,5 +1,8 @@
 package com.github.maciejkula.dictionarylearning;
 
+import java.util.Arrays;
+import java.util.BitSet;
+
 import org.apache.mahout.math.DenseMatrix;
 import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.Matrix;
@@ -54,11 +57,331 @@ public class MathUtils {
 		return output;
 	}
 
+	/*
+	 * A'A over compressed column storage, using sorted-merge dot products.
+	 */
+	public static Matrix transposedDictionaryTimesDictionary(CompressedDictionary dictionary) {
+		int numberOfAtoms = dictionary.numberOfAtoms();
+		Matrix output = new DenseMatrix(numberOfAtoms, numberOfAtoms);
+		for (int i=0; i < numberOfAtoms; i++) {
+			for (int j=i; j < numberOfAtoms; j++) {
+				double value = dictionary.dot(i, j);
+				output.setQuick(i, j, value);
+				output.setQuick(j, i, value);
+			}
+		}
+		return output;
+	}
+
+	/*
+	 * Recompute the rows and columns of a previously computed A'A
+	 * corresponding to the atoms that have changed since, over compressed
+	 * column storage.
+	 *
+	 * Costs O(changed atoms x atoms) dot products rather than O(atoms^2).
+	 */
+	public static void updateTransposedDictionaryTimesDictionary(CompressedDictionary dictionary,
+			Matrix output, BitSet changedAtoms) {
+		for (int i = changedAtoms.nextSetBit(0); i >= 0; i = changedAtoms.nextSetBit(i + 1)) {
+			for (int j=0; j < dictionary.numberOfAtoms(); j++) {
+				if (j < i && changedAtoms.get(j)) {
+					continue;
+				}
+				double value = dictionary.dot(i, j);
+				output.setQuick(i, j, value);
+				output.setQuick(j, i, value);
+			}
+		}
+	}
+
+	/*
+	 * A'y over compressed column storage.
+	 */
+	public static Vector transposedDictionaryTimesDatapoint(CompressedDictionary dictionary, Vector datapoint) {
+		double[] output = new double[dictionary.numberOfAtoms()];
+		transposedDictionaryTimesDatapoint(dictionary, datapoint, output);
+		return new DenseVector(output, true);
+	}
+
+	/*
+	 * A'y over compressed column storage, written into the output array.
+	 *
+	 * For sparse datapoints, A'y is accumulated from the dictionary rows (in the
+	 * feature index) of the datapoint's nonzeros, at a cost proportional to the
+	 * number of atom entries sharing features with the datapoint rather than to
+	 * the size of the dictionary.
+	 */
+	public static void transposedDictionaryTimesDatapoint(CompressedDictionary dictionary, Vector datapoint, double[] output) {
+		int numberOfAtoms = dictionary.numberOfAtoms();
+		if (datapoint.isDense()) {
+			for (int i=0; i < numberOfAtoms; i++) {
+				output[i] = atomDot(dictionary, i, datapoint);
+			}
+			return;
+		}
+		FeatureIndex featureIndex = dictionary.getFeatureIndex();
+		Arrays.fill(output, 0, numberOfAtoms, 0.0);
+		for (Element elem : datapoint.nonZeroes()) {
+			FeatureIndex.Row row = featureIndex.getRow(elem.index());
+			if (row == null) {
+				continue;
+			}
+			double value = elem.get();
+			int[] atoms = row.getAtoms();
+			double[] values = row.getValues();
+			for (int j=0; j < row.size(); j++) {
+				output[atoms[j]] += values[j] * value;
+			}
+		}
+	}
+
+	private static double atomDot(CompressedDictionary dictionary, int atom, Vector datapoint) {
+		int[] indices = dictionary.getIndices(atom);
+		double[] values = dictionary.getValues(atom);
+		int size = dictionary.getNumNonZeroElements(atom);
+		double value = 0.0;
+		for (int j=0; j < size; j++) {
+			value += values[j] * datapoint.getQuick(indices[j]);
+		}
+		return value;
+	}
+
+	/*
+	 * A'Y for the rows start to end of Y, written into output[row - start].
+	 *
+	 * The rows are first copied into sorted primitive arrays; every atom is then
+	 * read once and intersected with all rows of the block while it is in cache.
+	 */
+	static void transposedDictionaryTimesDatapoints(CompressedDictionary dictionary, Matrix datapoints,
+			int start, int end, double[][] output) {
+		int blockSize = end - start;
+		int[][] rowIndices = new int[blockSize][];
+		double[][] rowValues = new double[blockSize][];
+		int[] rowSizes = new int[blockSize];
+		for (int i=0; i < blockSize; i++) {
+			Vector row = datapoints.viewRow(start + i);
+			int[] indices = new int[row.getNumNondefaultElements()];
+			int size = 0;
+			for (Element elem : row.nonZeroes()) {
+				if (elem.get() != 0.0) {
+					indices[size++] = elem.index();
+				}
+			}
+			Arrays.sort(indices, 0, size);
+			double[] values = new double[size];
+			for (int j=0; j < size; j++) {
+				values[j] = row.getQuick(indices[j]);
+			}
+			rowIndices[i] = indices;
+			rowValues[i] = values;
+			rowSizes[i] = size;
+		}
+
+		for (int atom=0; atom < dictionary.numberOfAtoms(); atom++) {
+			int[] atomIndices = dictionary.getIndices(atom);
+			double[] atomValues = dictionary.getValues(atom);
+			int atomSize = dictionary.getNumNonZeroElements(atom);
+			for (int i=0; i < blockSize; i++) {
+				output[i][atom] = sparseDot(atomIndices, atomValues, atomSize, rowIndices[i], rowValues[i], rowSizes[i]);
+			}
+		}
+	}
+
+	/*
+	 * Dot product of two sparse vectors held as sorted index arrays. When one is
+	 * much shorter than the other, its entries are binary-searched in the longer
+	 * one instead of merging the two.
+	 */
+	static double sparseDot(int[] aIndices, double[] aValues, int aSize,
+			int[] bIndices, double[] bValues, int bSize) {
+		if (aSize < bSize) {
+			return sparseDot(bIndices, bValues, bSize, aIndices, aValues, aSize);
+		}
+		double value = 0.0;
+		if (bSize * 8 < aSize) {
+			int from = 0;
+			for (int j=0; j < bSize; j++) {
+				int position = Arrays.binarySearch(aIndices, from, aSize, bIndices[j]);
+				if (position >= 0) {
+					value += aValues[position] * bValues[j];
+					from = position + 1;
+				} else {
+					from = -position - 1;
+				}
+			}
+			return value;
+		}
+		int i = 0;
+		int j = 0;
+		while (i < aSize && j < bSize) {
+			int aIndex = aIndices[i];
+			int bIndex = bIndices[j];
+			if (aIndex == bIndex) {
+				value += aValues[i++] * bValues[j++];
+			} else if (aIndex < bIndex) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return value;
+	}
+
+	/*
+	 * Ax over compressed column storage, visiting only atoms with nonzero weights.
+	 */
+	public static Vector inverseTransform(CompressedDictionary dictionary, Vector projection) {
+		Vector output = new RandomAccessSparseVector(dictionary.numberOfFeatures());
+		for (Element projectionElem : projection.nonZeroes()) {
+			int atom = projectionElem.index();
+			double projectionWeight = projectionElem.get();
+			int[] indices = dictionary.getIndices(atom);
+			double[] values = dictionary.getValues(atom);
+			int size = dictionary.getNumNonZeroElements(atom);
+			for (int j=0; j < size; j++) {
+				output.incrementQuick(indices[j], values[j] * projectionWeight);
+			}
+		}
+		return output;
+	}
+
+	/*
+	 * The k features with the highest scores in the reconstruction Ax, ignoring
+	 * features that are nonzero in excluded (which may be null).
+	 *
+	 * The reconstruction is never materialized: the sorted index arrays of the
+	 * atoms with nonzero weights are merged, using a heap of atom cursors keyed
+	 * by their current feature, so each feature's score is complete when it is
+	 * offered to a bounded heap of size k. Features outside every weighted atom
+	 * score zero: the lowest-numbered of them are offered, as they are skipped
+	 * over, only while fewer than k features or a negative score are held, so
+	 * that they rank above negative scores at a cost of at most O(k) offers
+	 * beyond the merge.
+	 */
+	public static TopK recommend(CompressedDictionary dictionary, Vector projection, int k, Vector excluded) {
+		int numberOfActiveAtoms = 0;
+		int[] atoms = new int[dictionary.numberOfAtoms()];
+		double[] weights = new double[dictionary.numberOfAtoms()];
+		for (Element projectionElem : projection.nonZeroes()) {
+			if (projectionElem.get() != 0.0 && dictionary.getNumNonZeroElements(projectionElem.index()) > 0) {
+				atoms[numberOfActiveAtoms] = projectionElem.index();
+				weights[numberOfActiveAtoms] = projectionElem.get();
+				numberOfActiveAtoms++;
+			}
+		}
+
+		// Min-heap of active atom slots by the feature index under their cursor.
+		int[] cursors = new int[numberOfActiveAtoms];
+		int[] heap = new int[numberOfActiveAtoms];
+		int heapSize = 0;
+		for (int slot=0; slot < numberOfActiveAtoms; slot++) {
+			heapSize = pushCursor(dictionary, atoms, cursors, heap, heapSize, slot);
+		}
+
+		TopK topK = new TopK(k);
+		int nextFeature = 0;
+		while (heapSize > 0) {
+			int feature = cursorFeature(dictionary, atoms, cursors, heap[0]);
+			offerUnscoredFeatures(topK, k, nextFeature, feature, excluded);
+			nextFeature = feature + 1;
+			double score = 0.0;
+			while (heapSize > 0 && cursorFeature(dictionary, atoms, cursors, heap[0]) == feature) {
+				int slot = heap[0];
+				score += weights[slot] * dictionary.getValues(atoms[slot])[cursors[slot]];
+				cursors[slot]++;
+				heapSize = popCursor(dictionary, atoms, cursors, heap, heapSize);
+				if (cursors[slot] < dictionary.getNumNonZeroElements(atoms[slot])) {
+					heapSize = pushCursor(dictionary, atoms, cursors, heap, heapSize, slot);
+				}
+			}
+			if (excluded == null || excluded.getQuick(feature) == 0.0) {
+				topK.offer(feature, score);
+			}
+		}
+		offerUnscoredFeatures(topK, k, nextFeature, dictionary.numberOfFeatures(), excluded);
+		return topK;
+	}
+
+	/*
+	 * Offer the features from start (inclusive) to end with a score of zero,
+	 * while they can enter the heap.
+	 */
+	private static void offerUnscoredFeatures(TopK topK, int k, int start, int end, Vector excluded) {
+		for (int feature=start; feature < end && (topK.size() < k || topK.getLowestScore() < 0.0); feature++) {
+			if (excluded == null || excluded.getQuick(feature) == 0.0) {
+				topK.offer(feature, 0.0);
+			}
+		}
+	}
+
+	private static int cursorFeature(CompressedDictionary dictionary, int[] atoms, int[] cursors, int slot) {
+		return dictionary.getIndices(atoms[slot])[cursors[slot]];
+	}
+
+	private static int pushCursor(CompressedDictionary dictionary, int[] atoms, int[] cursors,
+			int[] heap, int heapSize, int slot) {
+		int feature = cursorFeature(dictionary, atoms, cursors, slot);
+		int position = heapSize;
+		while (position > 0) {
+			int parent = (position - 1) >>> 1;
+			if (cursorFeature(dictionary, atoms, cursors, heap[parent]) <= feature) {
+				break;
+			}
+			heap[position] = heap[parent];
+			position = parent;
+		}
+		heap[position] = slot;
+		return heapSize + 1;
+	}
+
+	private static int popCursor(CompressedDictionary dictionary, int[] atoms, int[] cursors,
+			int[] heap, int heapSize) {
+		heapSize--;
+		if (heapSize == 0) {
+			return 0;
+		}
+		int slot = heap[heapSize];
+		int feature = cursorFeature(dictionary, atoms, cursors, slot);
+		int position = 0;
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= heapSize) {
+				break;
+			}
+			if (child + 1 < heapSize && cursorFeature(dictionary, atoms, cursors, heap[child + 1])
+					< cursorFeature(dictionary, atoms, cursors, heap[child])) {
+				child++;
+			}
+			if (cursorFeature(dictionary, atoms, cursors, heap[child]) >= feature) {
+				break;
+			}
+			heap[position] = heap[child];
+			position = child;
+		}
+		heap[position] = slot;
+		return heapSize;
+	}
+
+	/*
+	 * Returns a deep copy of the dictionary.
+	 */
+	public static SparseColumnMatrix copyDictionary(SparseColumnMatrix dictionary) {
+		RandomAccessSparseVector[] atoms = new RandomAccessSparseVector[dictionary.numCols()];
+		for (int i=0; i < dictionary.numCols(); i++) {
+			atoms[i] = new RandomAccessSparseVector(dictionary.viewColumn(i));
+		}
+		return new SparseColumnMatrix(dictionary.numRows(), dictionary.numCols(), atoms);
+	}
+
+	/*
+	 * Returns the reconstruction Ax. Only atoms with nonzero weights
+	 * in x are visited.
+	 */
 	public static Vector inverseTransform(SparseColumnMatrix dictionary, Vector projection) {
 		Vector output = new RandomAccessSparseVector(dictionary.numRows());
-		for (int i=0; i < dictionary.numCols(); i++) {
-			Vector atom = dictionary.viewColumn(i);
-			double projectionWeight = projection.get(i);
+		for (Element projectionElem : projection.nonZeroes()) {
+			Vector atom = dictionary.viewColumn(projectionElem.index());
+			double projectionWeight = projectionElem.get();
 			for (Element elem : atom.nonZeroes()) {
 				output.incrementQuick(elem.index(), elem.get() * projectionWeight);
 			}
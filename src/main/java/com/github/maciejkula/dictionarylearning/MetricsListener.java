@@ -0,0 +1,42 @@
+package com.github.maciejkula.dictionarylearning;
+
+/**
+ * Receives measurements from the training and projection hot paths.
+ *
+ * Callers check isEnabled once per operation and skip timing (and any
+ * other measurement that has a cost of its own) when it returns false,
+ * so the NoOpMetricsListener adds no more than a predictable branch.
+ * Implementations may be called from several threads at once.
+ */
+public interface MetricsListener {
+
+	public enum Phase {
+		TRANSFORM,
+		UPDATE,
+		REGULARIZE
+	}
+
+	public boolean isEnabled();
+	/*
+	 * A training phase took the given number of nanoseconds.
+	 */
+	public void phaseCompleted(Phase phase, long nanos);
+	/*
+	 * An empty atom was replaced with a datapoint.
+	 */
+	public void atomInitialized(int atom);
+	/*
+	 * The number of nonzero entries of an atom after a training step.
+	 */
+	public void atomSize(int atom, int nonZeros);
+	/*
+	 * A'A was read from a transformer's cache, after recomputing the rows
+	 * and columns of the given number of atoms (zero for a cache hit).
+	 */
+	public void gramCacheAccess(int recomputedAtoms);
+	/*
+	 * An iterative solver finished a projection.
+	 */
+	public void solverCompleted(int iterations, double residual);
+
+}
@@ -0,0 +1,537 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+/**
+ * Approximate nearest-neighbour search by cosine similarity over codes,
+ * such as the projections produced by a Transformer, using a hierarchical
+ * navigable small world (HNSW) graph.
+ *
+ * Every entity is a node in a stack of proximity graphs: all nodes are in
+ * the bottom level, and exponentially fewer in each level above. A search
+ * descends greedily through the sparse upper levels to find a good entry
+ * point and then explores the bottom level, keeping the best searchEf
+ * candidates, so that a query visits a small fraction of the nodes.
+ * Higher searchEf values trade speed for recall; exactSearch gives the
+ * exact answer to measure recall against.
+ *
+ * Entities are identified by ints in [0, capacity), for example row
+ * indices of the data matrix. Nodes can be added concurrently, from any
+ * number of threads or in parallel with addAll, and searched while they
+ * are being added. Adding an entity that is already indexed, for example
+ * when a user is re-projected after further training, replaces its code
+ * and reconnects it; links from other nodes to it are kept.
+ */
+public class NeighbourIndex {
+
+	private static final int MAXIMUM_LEVEL = 16;
+	private static final int SEQUENTIAL_THRESHOLD = 64;
+
+	private final int dimensions;
+	private final int capacity;
+	private final int maxConnections;
+	private final int constructionEf;
+	private final double levelMultiplier;
+	private final Random random = new Random(42);
+
+	private final AtomicReferenceArray<Node> nodes;
+	private final AtomicInteger size = new AtomicInteger();
+	private final Object entryPointLock = new Object();
+	private volatile Node entryPoint;
+
+	private volatile int searchEf = 50;
+
+	private final ThreadLocal<SearchContext> searchContexts = new ThreadLocal<SearchContext>() {
+		@Override
+		protected SearchContext initialValue() {
+			return new SearchContext(capacity, 2 * maxConnections);
+		}
+	};
+
+	public NeighbourIndex(int dimensions, int capacity) {
+		this(dimensions, capacity, 16, 100);
+	}
+
+	/*
+	 * Every node links to at most maxConnections others in each upper level,
+	 * and twice that in the bottom level; constructionEf is the number of
+	 * candidates considered when choosing them. Larger values give better
+	 * recall at the cost of memory and build time.
+	 */
+	public NeighbourIndex(int dimensions, int capacity, int maxConnections, int constructionEf) {
+		if (maxConnections < 2) {
+			throw new IllegalArgumentException("Nodes must have at least two connections");
+		}
+		this.dimensions = dimensions;
+		this.capacity = capacity;
+		this.maxConnections = maxConnections;
+		this.constructionEf = constructionEf;
+		this.levelMultiplier = 1.0 / Math.log(maxConnections);
+		this.nodes = new AtomicReferenceArray<Node>(capacity);
+	}
+
+	public int getDimensions() {
+		return this.dimensions;
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/*
+	 * The number of indexed entities.
+	 */
+	public int size() {
+		return this.size.get();
+	}
+
+	public boolean contains(int id) {
+		return this.nodes.get(id) != null;
+	}
+
+	/*
+	 * The number of candidates kept while searching the bottom level.
+	 */
+	public void setSearchEf(int searchEf) {
+		this.searchEf = searchEf;
+	}
+
+	public int getSearchEf() {
+		return this.searchEf;
+	}
+
+	/*
+	 * Index the code, or replace the entity's code if it is already indexed.
+	 */
+	public void add(int id, Vector code) {
+		double[] normalizedCode = this.normalize(code);
+		Node node = this.nodes.get(id);
+		if (node == null) {
+			Node newNode = new Node(id, this.randomLevel(), this.maxConnections, normalizedCode);
+			if (this.nodes.compareAndSet(id, null, newNode)) {
+				this.size.incrementAndGet();
+				synchronized (this.entryPointLock) {
+					if (this.entryPoint == null) {
+						this.entryPoint = newNode;
+						return;
+					}
+				}
+				this.connect(newNode);
+				if (newNode.level > this.entryPoint.level) {
+					synchronized (this.entryPointLock) {
+						if (newNode.level > this.entryPoint.level) {
+							this.entryPoint = newNode;
+						}
+					}
+				}
+				return;
+			}
+			node = this.nodes.get(id);
+		}
+		node.code = normalizedCode;
+		this.connect(node);
+	}
+
+	/*
+	 * Index every row of the matrix in parallel, the row index being the id.
+	 */
+	public void addAll(Matrix codes) {
+		this.addAll(codes, null);
+	}
+
+	/*
+	 * Index every row of the matrix on the pool, or on a temporary pool if it is null.
+	 */
+	public void addAll(Matrix codes, ForkJoinPool pool) {
+		if (pool != null) {
+			pool.invoke(new AddTask(codes, 0, codes.numRows()));
+		} else {
+			ForkJoinPool temporaryPool = new ForkJoinPool();
+			try {
+				temporaryPool.invoke(new AddTask(codes, 0, codes.numRows()));
+			} finally {
+				temporaryPool.shutdown();
+			}
+		}
+	}
+
+	/*
+	 * The (approximately) k most similar entities to the query, most similar first.
+	 */
+	public TopK search(Vector query, int k) {
+		return this.search(this.normalize(query), k, -1);
+	}
+
+	/*
+	 * The (approximately) k most similar entities to an indexed entity, excluding itself.
+	 */
+	public TopK getNeighbours(int id, int k) {
+		Node node = this.nodes.get(id);
+		if (node == null) {
+			throw new IllegalArgumentException("Entity " + id + " is not indexed");
+		}
+		return this.search(node.code, k, id);
+	}
+
+	/*
+	 * The k most similar entities to the query, by scanning all of them.
+	 */
+	public TopK exactSearch(Vector query, int k) {
+		double[] normalizedQuery = this.normalize(query);
+		TopK topK = new TopK(k);
+		for (int i=0; i < this.capacity; i++) {
+			Node node = this.nodes.get(i);
+			if (node != null) {
+				topK.offer(i, similarity(normalizedQuery, node.code));
+			}
+		}
+		return topK;
+	}
+
+	private TopK search(double[] query, int k, int excluded) {
+		TopK topK = new TopK(k);
+		Node entry = this.entryPoint;
+		if (entry == null) {
+			return topK;
+		}
+		SearchContext context = this.searchContexts.get();
+		for (int level=entry.level; level > 0; level--) {
+			entry = this.nodes.get(this.searchLevel(query, entry, 1, level, context).getIndices()[0]);
+		}
+		TopK candidates = this.searchLevel(query, entry, Math.max(this.searchEf, k + 1), 0, context);
+		int[] indices = candidates.getIndices();
+		double[] scores = candidates.getScores();
+		for (int i=0; i < indices.length; i++) {
+			if (indices[i] != excluded) {
+				topK.offer(indices[i], scores[i]);
+			}
+		}
+		return topK;
+	}
+
+	/*
+	 * Choose the node's links from the entry point down to the bottom level,
+	 * and add the reverse links.
+	 */
+	private void connect(Node node) {
+		double[] code = node.code;
+		SearchContext context = this.searchContexts.get();
+		Node entry = this.entryPoint;
+		if (entry == null) {
+			// Re-added before its first addition made it the entry point.
+			return;
+		}
+		for (int level=entry.level; level > node.level; level--) {
+			entry = this.nodes.get(this.searchLevel(code, entry, 1, level, context).getIndices()[0]);
+		}
+		for (int level=Math.min(node.level, entry.level); level >= 0; level--) {
+			TopK candidates = this.searchLevel(code, entry, this.constructionEf, level, context);
+			int[] indices = candidates.getIndices();
+			int[] selected = this.selectNeighbours(node.id, indices, candidates.getScores(),
+					node.neighbours[level].length);
+			synchronized (node) {
+				System.arraycopy(selected, 0, node.neighbours[level], 0, selected.length);
+				node.sizes[level] = selected.length;
+			}
+			for (int neighbour : selected) {
+				this.link(this.nodes.get(neighbour), node.id, level);
+			}
+			entry = this.nodes.get(indices[0]);
+		}
+	}
+
+	/*
+	 * Add a link from the node to the id, replacing the node's links at that
+	 * level with the best selection of the old links and the new one if full.
+	 */
+	private void link(Node node, int id, int level) {
+		synchronized (node) {
+			int[] links = node.neighbours[level];
+			int size = node.sizes[level];
+			for (int i=0; i < size; i++) {
+				if (links[i] == id) {
+					return;
+				}
+			}
+			if (size < links.length) {
+				links[size] = id;
+				node.sizes[level]++;
+				return;
+			}
+			TopK candidates = new TopK(size + 1);
+			for (int i=0; i < size; i++) {
+				candidates.offer(links[i], similarity(node.code, this.nodes.get(links[i]).code));
+			}
+			candidates.offer(id, similarity(node.code, this.nodes.get(id).code));
+			int[] selected = this.selectNeighbours(node.id, candidates.getIndices(), candidates.getScores(), links.length);
+			System.arraycopy(selected, 0, links, 0, selected.length);
+			node.sizes[level] = selected.length;
+		}
+	}
+
+	/*
+	 * Up to maxLinks of the candidates, given most similar first. A candidate
+	 * is preferred if it is more similar to the node than to any candidate
+	 * already selected, so that links reach out in different directions
+	 * rather than all into the nearest cluster; the remaining places are
+	 * filled with the most similar of the other candidates.
+	 */
+	private int[] selectNeighbours(int id, int[] candidates, double[] scores, int maxLinks) {
+		int[] selected = new int[Math.min(maxLinks, candidates.length)];
+		boolean[] isSelected = new boolean[candidates.length];
+		int size = 0;
+		for (int i=0; i < candidates.length && size < selected.length; i++) {
+			if (candidates[i] == id) {
+				continue;
+			}
+			double[] code = this.nodes.get(candidates[i]).code;
+			boolean isDiverse = true;
+			for (int j=0; j < size && isDiverse; j++) {
+				isDiverse = similarity(code, this.nodes.get(selected[j]).code) < scores[i];
+			}
+			if (isDiverse) {
+				selected[size++] = candidates[i];
+				isSelected[i] = true;
+			}
+		}
+		for (int i=0; i < candidates.length && size < selected.length; i++) {
+			if (!isSelected[i] && candidates[i] != id) {
+				selected[size++] = candidates[i];
+			}
+		}
+		return size == selected.length ? selected : Arrays.copyOf(selected, size);
+	}
+
+	/*
+	 * Best-first search of a single level from the entry point, returning
+	 * the ef most similar nodes found.
+	 */
+	private TopK searchLevel(double[] query, Node entry, int ef, int level, SearchContext context) {
+		context.clearVisited();
+		CandidateQueue candidates = context.candidates;
+		candidates.clear();
+		TopK results = new TopK(ef);
+
+		double entrySimilarity = similarity(query, entry.code);
+		context.visit(entry.id);
+		results.offer(entry.id, entrySimilarity);
+		candidates.push(entry.id, entrySimilarity);
+		while (candidates.size() > 0) {
+			if (results.size() == ef && candidates.peekScore() < results.getLowestScore()) {
+				break;
+			}
+			Node current = this.nodes.get(candidates.pop());
+			int count;
+			synchronized (current) {
+				count = current.sizes[level];
+				System.arraycopy(current.neighbours[level], 0, context.links, 0, count);
+			}
+			for (int i=0; i < count; i++) {
+				int neighbour = context.links[i];
+				if (!context.visit(neighbour)) {
+					continue;
+				}
+				double score = similarity(query, this.nodes.get(neighbour).code);
+				if (results.size() < ef || score > results.getLowestScore()) {
+					results.offer(neighbour, score);
+					candidates.push(neighbour, score);
+				}
+			}
+		}
+		return results;
+	}
+
+	private int randomLevel() {
+		double level = -Math.log(1.0 - this.random.nextDouble()) * this.levelMultiplier;
+		return (int) Math.min(level, MAXIMUM_LEVEL);
+	}
+
+	/*
+	 * The code scaled to unit length, so that dot products are cosine similarities.
+	 */
+	private double[] normalize(Vector code) {
+		if (code.size() != this.dimensions) {
+			throw new IllegalArgumentException("Codes must have " + this.dimensions + " dimensions");
+		}
+		double[] normalizedCode = new double[this.dimensions];
+		double norm = code.norm(2);
+		if (norm > 0.0) {
+			for (Element elem : code.nonZeroes()) {
+				normalizedCode[elem.index()] = elem.get() / norm;
+			}
+		}
+		return normalizedCode;
+	}
+
+	private static double similarity(double[] first, double[] second) {
+		double dot = 0.0;
+		for (int i=0; i < first.length; i++) {
+			dot += first[i] * second[i];
+		}
+		return dot;
+	}
+
+	private static class Node {
+
+		private final int id;
+		private final int level;
+		// Links per level, the first sizes[level] of which are valid.
+		// Guarded by the node's monitor.
+		private final int[][] neighbours;
+		private final int[] sizes;
+		private volatile double[] code;
+
+		private Node(int id, int level, int maxConnections, double[] code) {
+			this.id = id;
+			this.level = level;
+			this.neighbours = new int[level + 1][];
+			this.sizes = new int[level + 1];
+			for (int i=0; i <= level; i++) {
+				this.neighbours[i] = new int[i == 0 ? 2 * maxConnections : maxConnections];
+			}
+			this.code = code;
+		}
+
+	}
+
+	/*
+	 * Per-thread search state: nodes are marked as visited by stamping them
+	 * with the current search's number, so that nothing has to be cleared.
+	 */
+	private static class SearchContext {
+
+		private final int[] visited;
+		private int searchNumber;
+		private final CandidateQueue candidates = new CandidateQueue();
+		private final int[] links;
+
+		private SearchContext(int capacity, int maxLinks) {
+			this.visited = new int[capacity];
+			this.links = new int[maxLinks];
+		}
+
+		private void clearVisited() {
+			if (++this.searchNumber == Integer.MAX_VALUE) {
+				Arrays.fill(this.visited, 0);
+				this.searchNumber = 1;
+			}
+		}
+
+		/*
+		 * Returns false if the node has already been visited.
+		 */
+		private boolean visit(int id) {
+			if (this.visited[id] == this.searchNumber) {
+				return false;
+			}
+			this.visited[id] = this.searchNumber;
+			return true;
+		}
+
+	}
+
+	/*
+	 * A max-heap of candidates to expand, most similar on top.
+	 */
+	private static class CandidateQueue {
+
+		private int[] ids = new int[64];
+		private double[] scores = new double[64];
+		private int size;
+
+		private int size() {
+			return this.size;
+		}
+
+		private void clear() {
+			this.size = 0;
+		}
+
+		private double peekScore() {
+			return this.scores[0];
+		}
+
+		private void push(int id, double score) {
+			if (this.size == this.ids.length) {
+				this.ids = Arrays.copyOf(this.ids, 2 * this.size);
+				this.scores = Arrays.copyOf(this.scores, 2 * this.size);
+			}
+			int position = this.size++;
+			while (position > 0) {
+				int parent = (position - 1) >>> 1;
+				if (this.scores[parent] >= score) {
+					break;
+				}
+				this.ids[position] = this.ids[parent];
+				this.scores[position] = this.scores[parent];
+				position = parent;
+			}
+			this.ids[position] = id;
+			this.scores[position] = score;
+		}
+
+		private int pop() {
+			int top = this.ids[0];
+			int last = --this.size;
+			int id = this.ids[last];
+			double score = this.scores[last];
+			int position = 0;
+			while (true) {
+				int child = 2 * position + 1;
+				if (child >= last) {
+					break;
+				}
+				if (child + 1 < last && this.scores[child + 1] > this.scores[child]) {
+					child++;
+				}
+				if (this.scores[child] <= score) {
+					break;
+				}
+				this.ids[position] = this.ids[child];
+				this.scores[position] = this.scores[child];
+				position = child;
+			}
+			this.ids[position] = id;
+			this.scores[position] = score;
+			return top;
+		}
+
+	}
+
+	private class AddTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Matrix codes;
+		private final int start;
+		private final int end;
+
+		private AddTask(Matrix codes, int start, int end) {
+			this.codes = codes;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.end - this.start <= SEQUENTIAL_THRESHOLD) {
+				for (int i=this.start; i < this.end; i++) {
+					add(i, this.codes.viewRow(i));
+				}
+			} else {
+				int middle = (this.start + this.end) >>> 1;
+				invokeAll(new AddTask(this.codes, this.start, middle), new AddTask(this.codes, middle, this.end));
+			}
+		}
+	}
+
+}
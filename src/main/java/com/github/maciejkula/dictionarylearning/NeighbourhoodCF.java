@@ -0,0 +1,232 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+/**
+ * Neighbourhood-based collaborative filtering: recommendations for a user
+ * are the sum of the rows of the user's most similar users, weighted by the
+ * cosine of the angle between their rows and the user's row.
+ *
+ * Similarities are computed from item-major co-occurrences: for every user,
+ * the columns of the items the user interacted with are scanned and their
+ * products accumulated per co-occurring user, so users that share no items
+ * are never visited. Blocks of users are processed in parallel, each thread
+ * with its own accumulator, and only the top numberOfNeighbours neighbours
+ * of every user are kept, so memory is linear in the number of users.
+ *
+ * The data is copied into primitive row- and column-major arrays on
+ * construction; the matrix itself is not kept.
+ */
+public class NeighbourhoodCF {
+
+	private static final int SEQUENTIAL_THRESHOLD = 64;
+
+	private final int numberOfUsers;
+	private final int numberOfItems;
+	private final int numberOfNeighbours;
+
+	private final int[][] userItems;
+	private final double[][] userValues;
+	private final int[][] itemUsers;
+	private final double[][] itemValues;
+	private final double[] norms;
+
+	private final int[][] neighbours;
+	private final double[][] similarities;
+
+	private final ThreadLocal<Accumulator> accumulators = new ThreadLocal<Accumulator>() {
+		@Override
+		protected Accumulator initialValue() {
+			return new Accumulator(numberOfUsers);
+		}
+	};
+
+	public NeighbourhoodCF(Matrix dataMatrix, int numberOfNeighbours) {
+		this(dataMatrix, numberOfNeighbours, null);
+	}
+
+	/*
+	 * Compute the neighbours on the pool, or on a temporary pool if it is null.
+	 */
+	public NeighbourhoodCF(Matrix dataMatrix, int numberOfNeighbours, ForkJoinPool pool) {
+		this.numberOfUsers = dataMatrix.numRows();
+		this.numberOfItems = dataMatrix.numCols();
+		this.numberOfNeighbours = numberOfNeighbours;
+
+		this.userItems = new int[this.numberOfUsers][];
+		this.userValues = new double[this.numberOfUsers][];
+		this.norms = new double[this.numberOfUsers];
+		int[] itemCounts = new int[this.numberOfItems];
+		for (int i=0; i < this.numberOfUsers; i++) {
+			Vector row = dataMatrix.viewRow(i);
+			int[] items = new int[row.getNumNondefaultElements()];
+			double[] values = new double[items.length];
+			int size = 0;
+			for (Element elem : row.nonZeroes()) {
+				if (elem.get() != 0.0) {
+					items[size] = elem.index();
+					values[size] = elem.get();
+					this.norms[i] += elem.get() * elem.get();
+					itemCounts[elem.index()]++;
+					size++;
+				}
+			}
+			this.userItems[i] = size == items.length ? items : Arrays.copyOf(items, size);
+			this.userValues[i] = size == values.length ? values : Arrays.copyOf(values, size);
+			this.norms[i] = Math.sqrt(this.norms[i]);
+		}
+
+		this.itemUsers = new int[this.numberOfItems][];
+		this.itemValues = new double[this.numberOfItems][];
+		for (int j=0; j < this.numberOfItems; j++) {
+			this.itemUsers[j] = new int[itemCounts[j]];
+			this.itemValues[j] = new double[itemCounts[j]];
+			itemCounts[j] = 0;
+		}
+		for (int i=0; i < this.numberOfUsers; i++) {
+			for (int j=0; j < this.userItems[i].length; j++) {
+				int item = this.userItems[i][j];
+				this.itemUsers[item][itemCounts[item]] = i;
+				this.itemValues[item][itemCounts[item]++] = this.userValues[i][j];
+			}
+		}
+
+		this.neighbours = new int[this.numberOfUsers][];
+		this.similarities = new double[this.numberOfUsers][];
+		if (pool != null) {
+			pool.invoke(new NeighbourTask(0, this.numberOfUsers));
+		} else {
+			ForkJoinPool temporaryPool = new ForkJoinPool();
+			try {
+				temporaryPool.invoke(new NeighbourTask(0, this.numberOfUsers));
+			} finally {
+				temporaryPool.shutdown();
+			}
+		}
+	}
+
+	public int getNumberOfNeighbours() {
+		return this.numberOfNeighbours;
+	}
+
+	/*
+	 * The user's nearest neighbours, most similar first.
+	 */
+	public int[] getNeighbours(int user) {
+		return this.neighbours[user];
+	}
+
+	/*
+	 * The cosine similarities of the user's neighbours, aligned with getNeighbours(user).
+	 */
+	public double[] getSimilarities(int user) {
+		return this.similarities[user];
+	}
+
+	/*
+	 * The sum of the neighbours' rows weighted by their similarities: nonzero
+	 * only for items that at least one neighbour interacted with.
+	 */
+	public Vector getRecommendations(int user) {
+		Vector recommendations = new RandomAccessSparseVector(this.numberOfItems);
+		int[] userNeighbours = this.neighbours[user];
+		double[] userSimilarities = this.similarities[user];
+		for (int i=0; i < userNeighbours.length; i++) {
+			int[] items = this.userItems[userNeighbours[i]];
+			double[] values = this.userValues[userNeighbours[i]];
+			for (int j=0; j < items.length; j++) {
+				recommendations.incrementQuick(items[j], userSimilarities[i] * values[j]);
+			}
+		}
+		return recommendations;
+	}
+
+	/*
+	 * Dot products of one user with all users, accumulated sparsely: only
+	 * the entries of users listed in touched are nonzero.
+	 */
+	private static class Accumulator {
+
+		private final double[] dots;
+		private final boolean[] isTouched;
+		private final int[] touched;
+		private int size;
+
+		private Accumulator(int numberOfUsers) {
+			this.dots = new double[numberOfUsers];
+			this.isTouched = new boolean[numberOfUsers];
+			this.touched = new int[numberOfUsers];
+		}
+
+	}
+
+	private void computeNeighbours(int user, Accumulator accumulator) {
+		double[] dots = accumulator.dots;
+		boolean[] isTouched = accumulator.isTouched;
+		int[] touched = accumulator.touched;
+		int[] items = this.userItems[user];
+		double[] values = this.userValues[user];
+		for (int j=0; j < items.length; j++) {
+			int[] users = this.itemUsers[items[j]];
+			double[] userValues = this.itemValues[items[j]];
+			for (int k=0; k < users.length; k++) {
+				int other = users[k];
+				if (other == user) {
+					continue;
+				}
+				if (!isTouched[other]) {
+					isTouched[other] = true;
+					touched[accumulator.size++] = other;
+				}
+				dots[other] += values[j] * userValues[k];
+			}
+		}
+
+		TopK topK = new TopK(this.numberOfNeighbours);
+		for (int k=0; k < accumulator.size; k++) {
+			int other = touched[k];
+			if (dots[other] != 0.0) {
+				topK.offer(other, dots[other] / (this.norms[user] * this.norms[other]));
+			}
+			dots[other] = 0.0;
+			isTouched[other] = false;
+		}
+		accumulator.size = 0;
+		this.neighbours[user] = topK.getIndices();
+		this.similarities[user] = topK.getScores();
+	}
+
+	private class NeighbourTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int start;
+		private final int end;
+
+		private NeighbourTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.end - this.start <= SEQUENTIAL_THRESHOLD) {
+				Accumulator accumulator = accumulators.get();
+				for (int i=this.start; i < this.end; i++) {
+					computeNeighbours(i, accumulator);
+				}
+			} else {
+				int middle = (this.start + this.end) >>> 1;
+				invokeAll(new NeighbourTask(this.start, middle), new NeighbourTask(middle, this.end));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,38 @@
+package com.github.maciejkula.dictionarylearning;
+
+/**
+ * The default MetricsListener: records nothing.
+ */
+public final class NoOpMetricsListener implements MetricsListener {
+
+	public static final NoOpMetricsListener INSTANCE = new NoOpMetricsListener();
+
+	private NoOpMetricsListener() {
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	public void phaseCompleted(Phase phase, long nanos) {
+	}
+
+	@Override
+	public void atomInitialized(int atom) {
+	}
+
+	@Override
+	public void atomSize(int atom, int nonZeros) {
+	}
+
+	@Override
+	public void gramCacheAccess(int recomputedAtoms) {
+	}
+
+	@Override
+	public void solverCompleted(int iterations, double residual) {
+	}
+
+}
@@ -0,0 +1,305 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SparseColumnMatrix;
+import org.apache.mahout.math.Vector;
+
+/**
+ * Hogwild-style multi-threaded online training of a DictionaryLearner.
+ *
+ * Worker threads pull datapoints from a bounded queue and update the
+ * dictionary concurrently. There is no global lock: each atom has its
+ * own lock, held only while that atom is updated or regularized, so
+ * workers contend only when they write the same atom at the same time.
+ *
+ * Projections are computed against a shared immutable snapshot of the
+ * dictionary that is refreshed every snapshotInterval samples (and
+ * whenever an atom is initialized), so the expensive A'A computation is
+ * shared between workers and projections never read atoms that are being
+ * written. As in Hogwild, updates are therefore computed from slightly
+ * stale parameters.
+ *
+ * The work done per sample is proportional to the atoms it updates. Atoms
+ * are regularized as in the learner's lazy mode: the steps an atom missed
+ * are applied in closed form when it is next updated, and to all atoms
+ * when train returns. For every atom, the step by which the pending
+ * shrinkage may have emptied it is kept, so that samples only look for an
+ * atom to initialize once the earliest of these steps has been reached.
+ *
+ * The learner must not be trained from other threads while train runs.
+ */
+public class ParallelTrainer {
+
+	private static final Vector END_OF_DATA = new RandomAccessSparseVector(0);
+
+	private final DictionaryLearner dictionaryLearner;
+	private final int numberOfThreads;
+	private final Object[] atomLocks;
+
+	private int snapshotInterval = 100;
+	private int queueCapacity;
+
+	private volatile DictionarySnapshot snapshot;
+	private volatile boolean snapshotStale;
+	private final AtomicLong samplesSinceSnapshot = new AtomicLong();
+	private final AtomicBoolean refreshingSnapshot = new AtomicBoolean();
+
+	// The number of samples started in the current call to train, and for every
+	// atom (guarded by its lock) the number of regularization steps applied to it
+	// and the step from which it may be empty.
+	private final AtomicLong steps = new AtomicLong();
+	private long[] regularizedSteps;
+	private long[] emptySteps;
+	private final AtomicLong earliestEmptyStep = new AtomicLong();
+	private final Object initializationLock = new Object();
+
+	private double samplesPerSecond;
+
+	public ParallelTrainer(DictionaryLearner dictionaryLearner, int numberOfThreads) {
+		this.dictionaryLearner = dictionaryLearner;
+		this.numberOfThreads = numberOfThreads;
+		this.queueCapacity = 16 * numberOfThreads;
+		this.atomLocks = new Object[dictionaryLearner.getNumberOfAtoms()];
+		for (int i=0; i < this.atomLocks.length; i++) {
+			this.atomLocks[i] = new Object();
+		}
+	}
+
+	public void setSnapshotInterval(int samples) {
+		this.snapshotInterval = samples;
+	}
+
+	public int getSnapshotInterval() {
+		return this.snapshotInterval;
+	}
+
+	public void setQueueCapacity(int capacity) {
+		this.queueCapacity = capacity;
+	}
+
+	public int getQueueCapacity() {
+		return this.queueCapacity;
+	}
+
+	/*
+	 * Returns the throughput of the last call to train, in samples per second.
+	 */
+	public double getSamplesPerSecond() {
+		return this.samplesPerSecond;
+	}
+
+	/*
+	 * Train on all datapoints, blocking until they have all been processed.
+	 *
+	 * Returns the number of datapoints trained on.
+	 */
+	public long train(Iterable<Vector> data) {
+		this.dictionaryLearner.flushRegularization();
+		this.steps.set(0);
+		this.regularizedSteps = new long[this.atomLocks.length];
+		this.emptySteps = new long[this.atomLocks.length];
+		this.earliestEmptyStep.set(0);
+		final BlockingQueue<Vector> queue = new ArrayBlockingQueue<Vector>(this.queueCapacity);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final AtomicLong samples = new AtomicLong();
+
+		this.snapshotStale = true;
+		this.refreshSnapshot();
+
+		Thread[] workers = new Thread[this.numberOfThreads];
+		for (int i=0; i < workers.length; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					TrainingWorkspace workspace = new TrainingWorkspace();
+					try {
+						Vector datapoint;
+						while ((datapoint = queue.take()) != END_OF_DATA) {
+							if (failure.get() != null) {
+								// Keep draining the queue so that the producer does not block.
+								continue;
+							}
+							try {
+								trainOnDatapoint(datapoint, workspace);
+								samples.incrementAndGet();
+							} catch (Throwable e) {
+								failure.compareAndSet(null, e);
+							}
+						}
+					} catch (InterruptedException e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			}, "dictionary-trainer-" + i);
+			workers[i].setDaemon(true);
+		}
+
+		long startTime = System.nanoTime();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		try {
+			for (Vector datapoint : data) {
+				queue.put(datapoint);
+			}
+			for (int i=0; i < workers.length; i++) {
+				queue.put(END_OF_DATA);
+			}
+			for (Thread worker : workers) {
+				worker.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			TrainingWorkspace workspace = new TrainingWorkspace();
+			for (int i=0; i < this.atomLocks.length; i++) {
+				this.dictionaryLearner.catchUpRegularization(i, this.steps.get() - this.regularizedSteps[i], workspace);
+			}
+			this.dictionaryLearner.getTransformer().clearCaches();
+			this.dictionaryLearner.setNumberOfSteps(this.dictionaryLearner.getNumberOfSteps() + this.steps.get());
+			this.snapshot = null;
+		}
+		this.samplesPerSecond = samples.get() / ((System.nanoTime() - startTime) / 1e9);
+
+		if (failure.get() != null) {
+			throw new RuntimeException(failure.get());
+		}
+		return samples.get();
+	}
+
+	private void trainOnDatapoint(Vector datapoint, TrainingWorkspace workspace) {
+		MetricsListener metrics = this.dictionaryLearner.getMetricsListener();
+		boolean recording = metrics.isEnabled();
+		long startTime = recording ? System.nanoTime() : 0L;
+		long step = this.steps.getAndIncrement();
+
+		if (step >= this.earliestEmptyStep.get()) {
+			this.initializeAtoms(datapoint, step, workspace);
+		}
+
+		if (this.snapshotStale || this.samplesSinceSnapshot.get() >= this.snapshotInterval) {
+			this.refreshSnapshot();
+		}
+		double[] projection = workspace.getProjection(this.atomLocks.length);
+		this.snapshot.transform(datapoint, projection);
+		if (recording) {
+			long time = System.nanoTime();
+			metrics.phaseCompleted(MetricsListener.Phase.TRANSFORM, time - startTime);
+			startTime = time;
+		}
+
+		workspace.setDatapoint(datapoint);
+		for (int i=0; i < projection.length; i++) {
+			if (!this.dictionaryLearner.isActiveAtom(projection[i])) {
+				continue;
+			}
+			synchronized (this.atomLocks[i]) {
+				this.dictionaryLearner.catchUpRegularization(i, step - this.regularizedSteps[i], workspace);
+				this.dictionaryLearner.updateAtom(i, projection[i], workspace);
+			}
+		}
+		if (recording) {
+			long time = System.nanoTime();
+			metrics.phaseCompleted(MetricsListener.Phase.UPDATE, time - startTime);
+			startTime = time;
+		}
+		for (int i=0; i < projection.length; i++) {
+			if (!this.dictionaryLearner.isActiveAtom(projection[i])) {
+				continue;
+			}
+			synchronized (this.atomLocks[i]) {
+				this.dictionaryLearner.regularizeAtom(i, workspace);
+				// Samples finish out of order: never undo a later sample's step.
+				this.regularizedSteps[i] = Math.max(this.regularizedSteps[i], step + 1);
+				this.updateEmptyStep(i);
+				if (recording) {
+					metrics.atomSize(i, this.dictionaryLearner.getDictionaryMatrix().viewColumn(i).getNumNondefaultElements());
+				}
+			}
+		}
+		if (recording) {
+			metrics.phaseCompleted(MetricsListener.Phase.REGULARIZE, System.nanoTime() - startTime);
+		}
+		this.samplesSinceSnapshot.incrementAndGet();
+	}
+
+	/*
+	 * Bring every atom that may have been emptied up to date, initialize the
+	 * first empty one with the datapoint, and recompute the earliest step at
+	 * which an atom may be empty. Workers scan one at a time, and only if the
+	 * scans before them have not already brought every atom up to date.
+	 */
+	private void initializeAtoms(Vector datapoint, long step, TrainingWorkspace workspace) {
+		synchronized (this.initializationLock) {
+			if (step < this.earliestEmptyStep.get()) {
+				return;
+			}
+			MetricsListener metrics = this.dictionaryLearner.getMetricsListener();
+			SparseColumnMatrix dictionary = this.dictionaryLearner.getDictionaryMatrix();
+			boolean initialized = false;
+			this.earliestEmptyStep.set(Long.MAX_VALUE);
+			for (int i=0; i < this.atomLocks.length; i++) {
+				synchronized (this.atomLocks[i]) {
+					if (step >= this.emptySteps[i] && step > this.regularizedSteps[i]) {
+						this.dictionaryLearner.catchUpRegularization(i, step - this.regularizedSteps[i], workspace);
+						this.regularizedSteps[i] = step;
+					}
+					if (!initialized && dictionary.viewColumn(i).getNumNondefaultElements() == 0
+							&& this.dictionaryLearner.initializeAtom(i, datapoint)) {
+						initialized = true;
+						this.snapshotStale = true;
+						metrics.atomInitialized(i);
+					}
+					this.updateEmptyStep(i);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Recompute the step from which the atom may be empty, with its lock held.
+	 */
+	private void updateEmptyStep(int i) {
+		long stepsUntilEmpty = this.dictionaryLearner.stepsUntilEmpty(i);
+		long emptyStep = stepsUntilEmpty > Long.MAX_VALUE - this.regularizedSteps[i]
+				? Long.MAX_VALUE : this.regularizedSteps[i] + stepsUntilEmpty;
+		this.emptySteps[i] = emptyStep;
+		long earliest = this.earliestEmptyStep.get();
+		while (emptyStep < earliest && !this.earliestEmptyStep.compareAndSet(earliest, emptyStep)) {
+			earliest = this.earliestEmptyStep.get();
+		}
+	}
+
+	/*
+	 * Replace the shared snapshot, unless another worker is already doing so
+	 * (in which case the caller carries on with the current one).
+	 */
+	private void refreshSnapshot() {
+		if (!this.refreshingSnapshot.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			this.snapshotStale = false;
+			this.samplesSinceSnapshot.set(0);
+			SparseColumnMatrix dictionary = this.dictionaryLearner.getDictionaryMatrix();
+			RandomAccessSparseVector[] atoms = new RandomAccessSparseVector[this.atomLocks.length];
+			for (int i=0; i < this.atomLocks.length; i++) {
+				synchronized (this.atomLocks[i]) {
+					atoms[i] = new RandomAccessSparseVector(dictionary.viewColumn(i));
+				}
+			}
+			this.snapshot = new DictionarySnapshot(new SparseColumnMatrix(dictionary.numRows(), atoms.length, atoms),
+					this.dictionaryLearner.getTransformer());
+		} finally {
+			this.refreshingSnapshot.set(false);
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.Vector;
+
+/**
+ * Converts a trained learner's dictionary to every QuantizedDictionary
+ * precision and compares them: memory, single-threaded latency of a
+ * transform followed by a reconstruction, and ranking accuracy as
+ * computed by EvaluationUtils.evaluate.
+ *
+ * Changes are reported relative to the double precision copy, which
+ * uses the same layout and kernels, so that only the effect of the
+ * precision is measured.
+ */
+public class QuantizationReport {
+
+	public static class Entry {
+
+		private final QuantizedDictionary.Precision precision;
+		private final long sizeInBytes;
+		private final double nanosPerDatapoint;
+		private final EvaluationUtils.Evaluation evaluation;
+
+		public Entry(QuantizedDictionary.Precision precision, long sizeInBytes, double nanosPerDatapoint,
+				EvaluationUtils.Evaluation evaluation) {
+			this.precision = precision;
+			this.sizeInBytes = sizeInBytes;
+			this.nanosPerDatapoint = nanosPerDatapoint;
+			this.evaluation = evaluation;
+		}
+
+		public QuantizedDictionary.Precision getPrecision() {
+			return this.precision;
+		}
+
+		public long getSizeInBytes() {
+			return this.sizeInBytes;
+		}
+
+		/*
+		 * The mean time to transform a training datapoint and reconstruct it.
+		 */
+		public double getNanosPerDatapoint() {
+			return this.nanosPerDatapoint;
+		}
+
+		public EvaluationUtils.Evaluation getEvaluation() {
+			return this.evaluation;
+		}
+
+	}
+
+	private final List<Entry> entries;
+
+	private QuantizationReport(List<Entry> entries) {
+		this.entries = Collections.unmodifiableList(entries);
+	}
+
+	/*
+	 * Quantize the learner's dictionary at every precision and evaluate
+	 * each copy on the data, with precision and recall at k.
+	 */
+	public static QuantizationReport create(DictionaryLearner dictionaryLearner, Matrix trainingData, Matrix testData, int k) {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (QuantizedDictionary.Precision precision : QuantizedDictionary.Precision.values()) {
+			final QuantizedDictionary dictionary = QuantizedDictionary.create(dictionaryLearner, precision);
+			EvaluationUtils.Evaluation evaluation = EvaluationUtils.evaluate(trainingData, testData, new EvaluationUtils.Scorer() {
+				@Override
+				public Vector score(int row, Vector trainingRow) {
+					return dictionary.inverseTransform(dictionary.transform(trainingRow));
+				}
+			}, k);
+			entries.add(new Entry(precision, dictionary.getSizeInBytes(), measureLatency(dictionary, trainingData), evaluation));
+		}
+		return new QuantizationReport(entries);
+	}
+
+	/*
+	 * Mean nanoseconds per transform and reconstruction over the rows of the
+	 * data, timed on a second pass so that the kernels have been compiled.
+	 */
+	private static double measureLatency(QuantizedDictionary dictionary, Matrix data) {
+		double[] projection = new double[dictionary.getNumberOfAtoms()];
+		double[] reconstruction = new double[dictionary.getNumberOfFeatures()];
+		long elapsed = 0L;
+		for (int pass=0; pass < 2; pass++) {
+			long startTime = System.nanoTime();
+			for (int i=0; i < data.numRows(); i++) {
+				dictionary.transform(data.viewRow(i), projection);
+				dictionary.inverseTransform(new DenseVector(projection, true), reconstruction);
+			}
+			elapsed = System.nanoTime() - startTime;
+		}
+		return elapsed / (double) Math.max(data.numRows(), 1);
+	}
+
+	public List<Entry> getEntries() {
+		return this.entries;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		Entry reference = this.entries.get(0);
+		for (Entry entry : this.entries) {
+			builder.append(String.format("%s: %s bytes (%.1f%%), %.1f us per datapoint (%.2fx), "
+					+ "average rank in test set: %.5f (%+.5f), precision@%s: %.4f (%+.4f)%n",
+					entry.precision, entry.sizeInBytes, 100.0 * entry.sizeInBytes / reference.sizeInBytes,
+					entry.nanosPerDatapoint / 1000.0, entry.nanosPerDatapoint / reference.nanosPerDatapoint,
+					entry.evaluation.getTestSetAveragePercentageRank(),
+					entry.evaluation.getTestSetAveragePercentageRank() - reference.evaluation.getTestSetAveragePercentageRank(),
+					entry.evaluation.getK(), entry.evaluation.getPrecisionAtK(),
+					entry.evaluation.getPrecisionAtK() - reference.evaluation.getPrecisionAtK()));
+		}
+		return builder.toString();
+	}
+
+}
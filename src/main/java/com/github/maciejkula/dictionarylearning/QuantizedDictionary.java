@@ -0,0 +1,355 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.Arrays;
+
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SparseColumnMatrix;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+/**
+ * A read-only, reduced-precision copy of a dictionary for serving.
+ *
+ * Values are stored as doubles, floats, or bytes with one scale per atom
+ * (value = byte * scale, the atom's largest magnitude mapping to 127), and
+ * atom indices as 16-bit chars, so that a nonzero's value takes 10, 6 or
+ * 3 bytes rather than the 12 of a CompressedDictionary, plus 8 bytes of
+ * atom-major index.
+ * Entries that round to zero in int8 are dropped.
+ *
+ * The dictionary is stored by feature, so A'y reads only the rows of the
+ * datapoint's nonzeros. An atom-major index of the same entries (a feature
+ * and a position per nonzero) lets reconstruction read only the columns of
+ * the projection's nonzero atoms. Per-atom scales are applied to the k
+ * accumulated correlations, or to the projection weights, rather than to
+ * every value. Accumulation is in double precision.
+ *
+ * As with the MappedDictionary, projections are least-squares (or ridge,
+ * with r > 0) solutions as computed by the CholeskyTransformer, here
+ * against the quantized atoms. Instances are safe to use from multiple
+ * threads.
+ */
+public class QuantizedDictionary {
+
+	public enum Precision {
+		DOUBLE(8), FLOAT(4), INT8(1);
+
+		private final int bytesPerValue;
+
+		private Precision(int bytesPerValue) {
+			this.bytesPerValue = bytesPerValue;
+		}
+
+		public int getBytesPerValue() {
+			return this.bytesPerValue;
+		}
+	}
+
+	private static final int MAXIMUM_ATOMS = Character.MAX_VALUE + 1;
+
+	private final Precision precision;
+	private final int numberOfFeatures;
+	private final int numberOfAtoms;
+	private final double ridge;
+
+	// Row f holds positions offsets[f] to offsets[f + 1] of atoms and the values array in use.
+	private final int[] offsets;
+	private final char[] atoms;
+	private final double[] doubleValues;
+	private final float[] floatValues;
+	private final byte[] byteValues;
+	private final double[] scales;
+
+	// Atom i holds positions atomOffsets[i] to atomOffsets[i + 1] of atomFeatures and atomPositions,
+	// the latter pointing into the arrays above.
+	private final int[] atomOffsets;
+	private final int[] atomFeatures;
+	private final int[] atomPositions;
+
+	private final CholeskyFactorization factorization;
+
+	private QuantizedDictionary(SparseColumnMatrix dictionary, double ridge, Precision precision) {
+		this.precision = precision;
+		this.numberOfFeatures = dictionary.numRows();
+		this.numberOfAtoms = dictionary.numCols();
+		this.ridge = ridge;
+		if (this.numberOfAtoms > MAXIMUM_ATOMS) {
+			throw new IllegalArgumentException("Quantized dictionaries can have at most " + MAXIMUM_ATOMS + " atoms");
+		}
+
+		this.scales = new double[this.numberOfAtoms];
+		for (int i=0; i < this.numberOfAtoms; i++) {
+			this.scales[i] = precision == Precision.INT8 ? dictionary.viewColumn(i).norm(Double.POSITIVE_INFINITY) / 127.0 : 1.0;
+		}
+
+		this.offsets = new int[this.numberOfFeatures + 1];
+		for (int i=0; i < this.numberOfAtoms; i++) {
+			for (Element elem : dictionary.viewColumn(i).nonZeroes()) {
+				if (this.isStored(i, elem.get())) {
+					this.offsets[elem.index() + 1]++;
+				}
+			}
+		}
+		for (int f=0; f < this.numberOfFeatures; f++) {
+			this.offsets[f + 1] += this.offsets[f];
+		}
+
+		int numberOfNonZeros = this.offsets[this.numberOfFeatures];
+		this.atoms = new char[numberOfNonZeros];
+		this.doubleValues = precision == Precision.DOUBLE ? new double[numberOfNonZeros] : null;
+		this.floatValues = precision == Precision.FLOAT ? new float[numberOfNonZeros] : null;
+		this.byteValues = precision == Precision.INT8 ? new byte[numberOfNonZeros] : null;
+		int[] positions = Arrays.copyOf(this.offsets, this.numberOfFeatures);
+		for (int i=0; i < this.numberOfAtoms; i++) {
+			for (Element elem : dictionary.viewColumn(i).nonZeroes()) {
+				if (!this.isStored(i, elem.get())) {
+					continue;
+				}
+				int position = positions[elem.index()]++;
+				this.atoms[position] = (char) i;
+				switch (precision) {
+				case DOUBLE:
+					this.doubleValues[position] = elem.get();
+					break;
+				case FLOAT:
+					this.floatValues[position] = (float) elem.get();
+					break;
+				case INT8:
+					this.byteValues[position] = (byte) Math.round(elem.get() / this.scales[i]);
+					break;
+				}
+			}
+		}
+
+		this.atomOffsets = new int[this.numberOfAtoms + 1];
+		for (int j=0; j < numberOfNonZeros; j++) {
+			this.atomOffsets[this.atoms[j] + 1]++;
+		}
+		for (int i=0; i < this.numberOfAtoms; i++) {
+			this.atomOffsets[i + 1] += this.atomOffsets[i];
+		}
+		this.atomFeatures = new int[numberOfNonZeros];
+		this.atomPositions = new int[numberOfNonZeros];
+		int[] atomPositions = Arrays.copyOf(this.atomOffsets, this.numberOfAtoms);
+		for (int f=0; f < this.numberOfFeatures; f++) {
+			for (int j=this.offsets[f]; j < this.offsets[f + 1]; j++) {
+				int position = atomPositions[this.atoms[j]]++;
+				this.atomFeatures[position] = f;
+				this.atomPositions[position] = j;
+			}
+		}
+
+		this.factorization = new CholeskyFactorization(this.transposedDictionaryTimesDictionary(), ridge);
+	}
+
+	/*
+	 * Quantize the learner's dictionary, using the CholeskyTransformer's ridge if it has one.
+	 */
+	public static QuantizedDictionary create(DictionaryLearner dictionaryLearner, Precision precision) {
+		double ridge = 0.0;
+		if (dictionaryLearner.getTransformer() instanceof CholeskyTransformer) {
+			ridge = ((CholeskyTransformer) dictionaryLearner.getTransformer()).getRidge();
+		}
+		dictionaryLearner.flushRegularization();
+		return create(dictionaryLearner.getDictionaryMatrix(), ridge, precision);
+	}
+
+	public static QuantizedDictionary create(SparseColumnMatrix dictionary, double ridge, Precision precision) {
+		return new QuantizedDictionary(dictionary, ridge, precision);
+	}
+
+	private boolean isStored(int atom, double value) {
+		if (this.precision == Precision.INT8) {
+			return Math.round(value / this.scales[atom]) != 0;
+		}
+		return value != 0.0;
+	}
+
+	public Precision getPrecision() {
+		return this.precision;
+	}
+
+	public int getNumberOfAtoms() {
+		return this.numberOfAtoms;
+	}
+
+	public int getNumberOfFeatures() {
+		return this.numberOfFeatures;
+	}
+
+	public double getRidge() {
+		return this.ridge;
+	}
+
+	public int getNumNonZeroElements() {
+		return this.atoms.length;
+	}
+
+	/*
+	 * The memory taken by the dictionary and its factorization, excluding object headers.
+	 */
+	public long getSizeInBytes() {
+		long size = 4L * this.offsets.length + 2L * this.atoms.length
+				+ (long) this.precision.getBytesPerValue() * this.atoms.length
+				+ 4L * this.atomOffsets.length + 8L * this.atoms.length;
+		if (this.precision == Precision.INT8) {
+			size += 8L * this.numberOfAtoms;
+		}
+		return size + 8L * this.numberOfAtoms * this.numberOfAtoms;
+	}
+
+	/*
+	 * Project the datapoint on the dictionary.
+	 */
+	public Vector transform(Vector datapoint) {
+		double[] projection = new double[this.numberOfAtoms];
+		this.transform(datapoint, projection);
+		return new DenseVector(projection, true);
+	}
+
+	/*
+	 * Project the datapoint into a caller-provided array with one entry per atom.
+	 */
+	public void transform(Vector datapoint, double[] projection) {
+		Arrays.fill(projection, 0, this.numberOfAtoms, 0.0);
+		if (datapoint.isDense()) {
+			for (int f=0; f < this.numberOfFeatures; f++) {
+				double value = datapoint.getQuick(f);
+				if (value != 0.0) {
+					this.accumulateRow(f, value, projection);
+				}
+			}
+		} else {
+			for (Element elem : datapoint.nonZeroes()) {
+				this.accumulateRow(elem.index(), elem.get(), projection);
+			}
+		}
+		if (this.precision == Precision.INT8) {
+			for (int i=0; i < this.numberOfAtoms; i++) {
+				projection[i] *= this.scales[i];
+			}
+		}
+		this.factorization.solveInPlace(projection);
+	}
+
+	/*
+	 * Add value times the (unscaled) row of the feature to the output.
+	 */
+	private void accumulateRow(int feature, double value, double[] output) {
+		int end = this.offsets[feature + 1];
+		switch (this.precision) {
+		case DOUBLE:
+			for (int j=this.offsets[feature]; j < end; j++) {
+				output[this.atoms[j]] += this.doubleValues[j] * value;
+			}
+			break;
+		case FLOAT:
+			for (int j=this.offsets[feature]; j < end; j++) {
+				output[this.atoms[j]] += this.floatValues[j] * value;
+			}
+			break;
+		case INT8:
+			for (int j=this.offsets[feature]; j < end; j++) {
+				output[this.atoms[j]] += this.byteValues[j] * value;
+			}
+			break;
+		}
+	}
+
+	/*
+	 * Reconstruct a datapoint from its projection on the dictionary.
+	 *
+	 * The reconstruction is returned as a dense vector: every feature with
+	 * a nonzero entry in any atom used by the projection has a score.
+	 * Only the columns of the projection's nonzero atoms are read.
+	 */
+	public Vector inverseTransform(Vector projection) {
+		double[] output = new double[this.numberOfFeatures];
+		this.inverseTransform(projection, output);
+		return new DenseVector(output, true);
+	}
+
+	/*
+	 * Reconstruct a datapoint into a caller-provided array with one entry per feature.
+	 */
+	public void inverseTransform(Vector projection, double[] output) {
+		Arrays.fill(output, 0, this.numberOfFeatures, 0.0);
+		for (Element elem : projection.nonZeroes()) {
+			this.accumulateColumn(elem.index(), elem.get() * this.scales[elem.index()], output);
+		}
+	}
+
+	/*
+	 * Add weight times the (unscaled) column of the atom to the output.
+	 */
+	private void accumulateColumn(int atom, double weight, double[] output) {
+		int end = this.atomOffsets[atom + 1];
+		switch (this.precision) {
+		case DOUBLE:
+			for (int j=this.atomOffsets[atom]; j < end; j++) {
+				output[this.atomFeatures[j]] += this.doubleValues[this.atomPositions[j]] * weight;
+			}
+			break;
+		case FLOAT:
+			for (int j=this.atomOffsets[atom]; j < end; j++) {
+				output[this.atomFeatures[j]] += this.floatValues[this.atomPositions[j]] * weight;
+			}
+			break;
+		case INT8:
+			for (int j=this.atomOffsets[atom]; j < end; j++) {
+				output[this.atomFeatures[j]] += this.byteValues[this.atomPositions[j]] * weight;
+			}
+			break;
+		}
+	}
+
+	private double getValue(int position) {
+		switch (this.precision) {
+		case FLOAT:
+			return this.floatValues[position];
+		case INT8:
+			return this.byteValues[position] * this.scales[this.atoms[position]];
+		default:
+			return this.doubleValues[position];
+		}
+	}
+
+	/*
+	 * Copy the dequantized dictionary into a matrix.
+	 */
+	public SparseColumnMatrix toMatrix() {
+		RandomAccessSparseVector[] columns = new RandomAccessSparseVector[this.numberOfAtoms];
+		for (int i=0; i < this.numberOfAtoms; i++) {
+			columns[i] = new RandomAccessSparseVector(this.numberOfFeatures);
+		}
+		for (int f=0; f < this.numberOfFeatures; f++) {
+			for (int j=this.offsets[f]; j < this.offsets[f + 1]; j++) {
+				columns[this.atoms[j]].setQuick(f, this.getValue(j));
+			}
+		}
+		return new SparseColumnMatrix(this.numberOfFeatures, this.numberOfAtoms, columns);
+	}
+
+	/*
+	 * A'A of the dequantized dictionary, as a sum of the outer products of its rows.
+	 */
+	private Matrix transposedDictionaryTimesDictionary() {
+		Matrix output = new DenseMatrix(this.numberOfAtoms, this.numberOfAtoms);
+		for (int f=0; f < this.numberOfFeatures; f++) {
+			int end = this.offsets[f + 1];
+			for (int j=this.offsets[f]; j < end; j++) {
+				double value = this.getValue(j);
+				for (int l=this.offsets[f]; l < end; l++) {
+					int a = this.atoms[j];
+					int b = this.atoms[l];
+					output.setQuick(a, b, output.getQuick(a, b) + value * this.getValue(l));
+				}
+			}
+		}
+		return output;
+	}
+
+}
@@ -0,0 +1,198 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe MetricsListener keeping counters, per-phase latency
+ * histograms and the current size of every atom.
+ *
+ * Histograms have one bucket per power of two nanoseconds, so recording
+ * is a single atomic increment and percentiles are accurate to within a
+ * factor of two.
+ */
+public class RecordingMetricsListener implements MetricsListener {
+
+	private final int numberOfFeatures;
+
+	private final LatencyHistogram[] phaseLatencies;
+	private final AtomicLong atomsInitialized = new AtomicLong();
+	private final AtomicIntegerArray atomSizes;
+	private final AtomicLong gramCacheHits = new AtomicLong();
+	private final AtomicLong gramCacheMisses = new AtomicLong();
+	private final AtomicLong gramRecomputedAtoms = new AtomicLong();
+	private final AtomicLong solves = new AtomicLong();
+	private final AtomicLong solverIterations = new AtomicLong();
+	private volatile double lastSolverResidual;
+
+	public RecordingMetricsListener(int numberOfAtoms, int numberOfFeatures) {
+		this.numberOfFeatures = numberOfFeatures;
+		this.atomSizes = new AtomicIntegerArray(numberOfAtoms);
+		this.phaseLatencies = new LatencyHistogram[Phase.values().length];
+		for (int i=0; i < this.phaseLatencies.length; i++) {
+			this.phaseLatencies[i] = new LatencyHistogram();
+		}
+	}
+
+	public static class LatencyHistogram {
+
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		public void record(long nanos) {
+			// Bucket i holds latencies in [2^(i-1), 2^i).
+			this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)));
+			this.count.incrementAndGet();
+			this.totalNanos.addAndGet(nanos);
+		}
+
+		public long getCount() {
+			return this.count.get();
+		}
+
+		public double getMeanNanos() {
+			long count = this.count.get();
+			return count == 0 ? 0.0 : this.totalNanos.get() / (double) count;
+		}
+
+		/*
+		 * An upper bound on the given quantile (between 0 and 1) of the recorded latencies.
+		 */
+		public long getPercentileNanos(double quantile) {
+			long count = this.count.get();
+			long seen = 0;
+			for (int i=0; i < 64; i++) {
+				seen += this.buckets.get(i);
+				if (count > 0 && seen >= quantile * count) {
+					return i == 0 ? 0 : (1L << i) - 1;
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return true;
+	}
+
+	@Override
+	public void phaseCompleted(Phase phase, long nanos) {
+		this.phaseLatencies[phase.ordinal()].record(nanos);
+	}
+
+	@Override
+	public void atomInitialized(int atom) {
+		this.atomsInitialized.incrementAndGet();
+	}
+
+	@Override
+	public void atomSize(int atom, int nonZeros) {
+		this.atomSizes.set(atom, nonZeros);
+	}
+
+	@Override
+	public void gramCacheAccess(int recomputedAtoms) {
+		if (recomputedAtoms == 0) {
+			this.gramCacheHits.incrementAndGet();
+		} else {
+			this.gramCacheMisses.incrementAndGet();
+			this.gramRecomputedAtoms.addAndGet(recomputedAtoms);
+		}
+	}
+
+	@Override
+	public void solverCompleted(int iterations, double residual) {
+		this.solves.incrementAndGet();
+		this.solverIterations.addAndGet(iterations);
+		this.lastSolverResidual = residual;
+	}
+
+	public LatencyHistogram getLatencies(Phase phase) {
+		return this.phaseLatencies[phase.ordinal()];
+	}
+
+	public long getAtomsInitialized() {
+		return this.atomsInitialized.get();
+	}
+
+	public int getAtomNonZeros(int atom) {
+		return this.atomSizes.get(atom);
+	}
+
+	/*
+	 * The fraction of the atom's entries that are zero.
+	 */
+	public double getAtomSparsity(int atom) {
+		return 1.0 - this.atomSizes.get(atom) / (double) this.numberOfFeatures;
+	}
+
+	public long getDictionaryNonZeros() {
+		long nonZeros = 0;
+		for (int i=0; i < this.atomSizes.length(); i++) {
+			nonZeros += this.atomSizes.get(i);
+		}
+		return nonZeros;
+	}
+
+	/*
+	 * The fraction of the dictionary's entries that are nonzero.
+	 */
+	public double getDictionaryDensity() {
+		return this.getDictionaryNonZeros() / ((double) this.numberOfFeatures * this.atomSizes.length());
+	}
+
+	public long getGramCacheHits() {
+		return this.gramCacheHits.get();
+	}
+
+	public long getGramCacheMisses() {
+		return this.gramCacheMisses.get();
+	}
+
+	public double getGramCacheHitRate() {
+		long accesses = this.gramCacheHits.get() + this.gramCacheMisses.get();
+		return accesses == 0 ? 0.0 : this.gramCacheHits.get() / (double) accesses;
+	}
+
+	/*
+	 * The total number of atoms whose rows and columns of A'A were recomputed.
+	 */
+	public long getGramRecomputedAtoms() {
+		return this.gramRecomputedAtoms.get();
+	}
+
+	public long getSolves() {
+		return this.solves.get();
+	}
+
+	public double getMeanSolverIterations() {
+		long solves = this.solves.get();
+		return solves == 0 ? 0.0 : this.solverIterations.get() / (double) solves;
+	}
+
+	public double getLastSolverResidual() {
+		return this.lastSolverResidual;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder report = new StringBuilder();
+		for (Phase phase : Phase.values()) {
+			LatencyHistogram latencies = this.getLatencies(phase);
+			report.append(String.format("%s: count %s, mean %.0f ns, p99 < %s ns%n", phase,
+					latencies.getCount(), latencies.getMeanNanos(), latencies.getPercentileNanos(0.99)));
+		}
+		report.append(String.format("atoms initialized: %s, dictionary nonzeros: %s (density %.6f)%n",
+				this.getAtomsInitialized(), this.getDictionaryNonZeros(), this.getDictionaryDensity()));
+		report.append(String.format("A'A cache hit rate: %.3f, recomputed atoms: %s%n",
+				this.getGramCacheHitRate(), this.getGramRecomputedAtoms()));
+		report.append(String.format("solves: %s, mean iterations: %.1f, last residual: %s",
+				this.getSolves(), this.getMeanSolverIterations(), this.getLastSolverResidual()));
+		return report.toString();
+	}
+
+}
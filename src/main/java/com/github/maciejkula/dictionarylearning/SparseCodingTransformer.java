@@ -0,0 +1,243 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SparseColumnMatrix;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+/**
+ * Computes sparse codes by solving the Lasso problem
+ *
+ *   min_x 0.5 * ||y - Ax||^2 + l1Penalty * ||x||_1
+ *
+ * with cyclic coordinate descent over the cached Gram matrix A'A.
+ * Only atoms with nonzero codes contribute to reconstructions, and
+ * a previous code for the same datapoint can be used as a warm start.
+ */
+public class SparseCodingTransformer implements Transformer {
+
+	private double l1Penalty;
+	private int maxIterations = 100;
+	private double tolerance = 1e-6;
+
+	private final DictionaryCache cache;
+	private MetricsListener metrics = NoOpMetricsListener.INSTANCE;
+
+	public SparseCodingTransformer() {
+		this(0.0);
+	}
+
+	public SparseCodingTransformer(double l1Penalty) {
+		this.l1Penalty = l1Penalty;
+		this.cache = new DictionaryCache();
+	}
+
+	public double getL1Penalty() {
+		return this.l1Penalty;
+	}
+
+	public void setMaxIterations(int iterations) {
+		this.maxIterations = iterations;
+	}
+
+	public int getMaxIterations() {
+		return this.maxIterations;
+	}
+
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	public double getTolerance() {
+		return this.tolerance;
+	}
+
+	@Override
+	public Vector transform(Vector datapoint, SparseColumnMatrix dictionary) {
+		return this.transform(datapoint, null, dictionary);
+	}
+
+	/*
+	 * Runs coordinate descent starting from the initial projection (or from zero
+	 * if it is null), maintaining the gradient A'y - A'Ax as coordinates change.
+	 */
+	@Override
+	public Vector transform(Vector datapoint, Vector initialProjection, SparseColumnMatrix dictionary) {
+		int numberOfAtoms = dictionary.numCols();
+		double[] code = new double[numberOfAtoms];
+		if (initialProjection != null) {
+			for (Element elem : initialProjection.nonZeroes()) {
+				code[elem.index()] = elem.get();
+			}
+		}
+		this.solve(datapoint, dictionary, code);
+
+		Vector projection = new RandomAccessSparseVector(numberOfAtoms);
+		for (int i=0; i < numberOfAtoms; i++) {
+			if (code[i] != 0.0) {
+				projection.setQuick(i, code[i]);
+			}
+		}
+		return projection;
+	}
+
+	@Override
+	public void transform(Vector datapoint, SparseColumnMatrix dictionary, double[] projection) {
+		Arrays.fill(projection, 0.0);
+		this.solve(datapoint, dictionary, projection);
+	}
+
+	/*
+	 * Coordinate descent starting from, and overwriting, the given code.
+	 */
+	private void solve(Vector datapoint, SparseColumnMatrix dictionary, double[] code) {
+		Matrix gram = this.cache.getTransposedDictionaryTimesDictionary(dictionary);
+		double[] gradient = new double[code.length];
+		MathUtils.transposedDictionaryTimesDatapoint(this.cache.getCompressedDictionary(dictionary), datapoint, gradient);
+		this.solve(gram, gradient, code);
+	}
+
+	/*
+	 * Coordinate descent from the given code, with the gradient initially holding A'y.
+	 */
+	private void solve(Matrix gram, double[] gradient, double[] code) {
+		int numberOfAtoms = code.length;
+		for (int i=0; i < numberOfAtoms; i++) {
+			if (code[i] != 0.0) {
+				this.updateGradient(gram, gradient, i, code[i]);
+			}
+		}
+
+		int iterations = 0;
+		double maxChange = 0.0;
+		while (iterations < this.maxIterations) {
+			iterations++;
+			maxChange = 0.0;
+			double maxValue = 0.0;
+			for (int j=0; j < numberOfAtoms; j++) {
+				double diagonal = gram.getQuick(j, j);
+				if (diagonal == 0.0) {
+					code[j] = 0.0;
+					continue;
+				}
+				double oldValue = code[j];
+				double newValue = softThreshold(gradient[j] + diagonal * oldValue, this.l1Penalty) / diagonal;
+				if (newValue != oldValue) {
+					code[j] = newValue;
+					this.updateGradient(gram, gradient, j, newValue - oldValue);
+					maxChange = Math.max(maxChange, Math.abs(newValue - oldValue));
+				}
+				maxValue = Math.max(maxValue, Math.abs(newValue));
+			}
+			if (maxChange <= this.tolerance * Math.max(1.0, maxValue)) {
+				break;
+			}
+		}
+		if (this.metrics.isEnabled()) {
+			// The size of the last coordinate step stands in for the residual.
+			this.metrics.solverCompleted(iterations, maxChange);
+		}
+	}
+
+	/*
+	 * Adjust the gradient A'y - A'Ax for a change of delta in x[atom].
+	 */
+	private void updateGradient(Matrix gram, double[] gradient, int atom, double delta) {
+		for (int i=0; i < gradient.length; i++) {
+			gradient[i] -= gram.getQuick(i, atom) * delta;
+		}
+	}
+
+	private static double softThreshold(double value, double threshold) {
+		if (value > threshold) {
+			return value - threshold;
+		} else if (value < -threshold) {
+			return value + threshold;
+		}
+		return 0.0;
+	}
+
+	@Override
+	public Vector inverseTransform(Vector projection, SparseColumnMatrix dictionary) {
+		return MathUtils.inverseTransform(this.cache.getCompressedDictionary(dictionary), projection);
+	}
+
+	/*
+	 * A'Y for blocks of rows at a time, then coordinate descent per row over the shared A'A.
+	 */
+	@Override
+	public Matrix transform(Matrix datapoints, SparseColumnMatrix dictionary, ForkJoinPool pool) {
+		final Matrix gram = this.cache.getTransposedDictionaryTimesDictionary(dictionary);
+		return BatchTransforms.transform(this.cache.getCompressedDictionary(dictionary), datapoints,
+				new BatchTransforms.CorrelationSolver() {
+			@Override
+			public void solveInPlace(double[] correlations) {
+				double[] code = new double[correlations.length];
+				solve(gram, correlations, code);
+				System.arraycopy(code, 0, correlations, 0, code.length);
+			}
+		}, pool);
+	}
+
+	@Override
+	public Matrix inverseTransform(Matrix projections, SparseColumnMatrix dictionary, ForkJoinPool pool) {
+		return BatchTransforms.inverseTransform(this.cache.getCompressedDictionary(dictionary), projections, pool);
+	}
+
+	@Override
+	public TopK recommend(Vector projection, SparseColumnMatrix dictionary, int k, Vector excluded) {
+		return MathUtils.recommend(this.cache.getCompressedDictionary(dictionary), projection, k, excluded);
+	}
+
+	@Override
+	public void prepare(SparseColumnMatrix dictionary) {
+		this.cache.getTransposedDictionaryTimesDictionary(dictionary);
+	}
+
+	@Override
+	public void clearCaches() {
+		this.cache.clear();
+	}
+
+	@Override
+	public Transformer copy() {
+		SparseCodingTransformer copy = new SparseCodingTransformer(this.l1Penalty);
+		copy.setMaxIterations(this.maxIterations);
+		copy.setTolerance(this.tolerance);
+		return copy;
+	}
+
+	@Override
+	public void clearCaches(int atom) {
+		this.cache.clear(atom);
+	}
+
+	@Override
+	public void setMetricsListener(MetricsListener metrics) {
+		this.metrics = metrics;
+		this.cache.setMetricsListener(metrics);
+	}
+
+	@Override
+	public void readFields(DataInput input) throws IOException {
+		this.l1Penalty = input.readDouble();
+		this.maxIterations = input.readInt();
+		this.tolerance = input.readDouble();
+		this.cache.clear();
+	}
+
+	@Override
+	public void write(DataOutput output) throws IOException {
+		output.writeDouble(this.l1Penalty);
+		output.writeInt(this.maxIterations);
+		output.writeDouble(this.tolerance);
+	}
+
+}
@@ -0,0 +1,287 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SparseColumnMatrix;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+/**
+ * Online training of a DictionaryLearner in the style of Mairal et al.'s
+ * online dictionary learning, as an alternative to the learner's own
+ * fixed-rate SGD updates.
+ *
+ * Rather than moving atoms a small step towards every datapoint, the trainer
+ * accumulates the sufficient statistics of all datapoints seen so far,
+ *
+ *   A = sum(a * a')  (atoms x atoms, dense)
+ *   B = sum(x * a')  (features x atoms, sparse)
+ *
+ * where a is a datapoint's projection (computed by the learner's transformer),
+ * and after every datapoint or mini-batch updates each atom in turn to the
+ * exact minimizer of the accumulated objective
+ *
+ *   0.5 * tr(D'DA) - tr(D'B) + n * (0.5 * l2Penalty * ||D||^2 + l1Penalty * |D|)
+ *
+ * given the other atoms, n being the (effective) number of datapoints seen.
+ * There is no learning rate to tune, and the dictionary typically reaches a
+ * given reconstruction error after far fewer datapoints.
+ *
+ * With a forgetting factor below 1, the statistics are decayed by that factor
+ * for every new datapoint, so that the dictionary tracks recent data in
+ * non-stationary streams.
+ *
+ * As with the learner itself, empty atoms are initialized from datapoints
+ * (one per datapoint); their statistics are reset when they are.
+ *
+ * Every call to train makes a pass over all atoms, and every atom that
+ * changes invalidates the transformer's cached factorization of D'D, so
+ * training on mini-batches (of tens to hundreds of datapoints) rather than
+ * on single datapoints amortizes that cost over the batch.
+ */
+public class SufficientStatisticsTrainer {
+
+	// Below this, the lazy scale of B is folded into its entries.
+	private static final double MINIMUM_SCALE = 1e-100;
+
+	private final DictionaryLearner dictionaryLearner;
+	private final int numberOfAtoms;
+	private final int numberOfFeatures;
+
+	private final double[][] atomCorrelations;
+	// Columns of B, stored divided by dataCorrelationScale so that
+	// forgetting does not have to touch every entry.
+	private final Vector[] dataCorrelations;
+	private double dataCorrelationScale = 1.0;
+	private double effectiveSamples;
+
+	private double forgettingFactor = 1.0;
+
+	// Scratch space for the residual of the atom being updated, and its replacement.
+	private final TrainingWorkspace workspace = new TrainingWorkspace();
+	private final Vector updatedAtom;
+
+	public SufficientStatisticsTrainer(DictionaryLearner dictionaryLearner) {
+		this.dictionaryLearner = dictionaryLearner;
+		this.numberOfAtoms = dictionaryLearner.getNumberOfAtoms();
+		this.numberOfFeatures = dictionaryLearner.getNumberOfFeatures();
+		this.atomCorrelations = new double[this.numberOfAtoms][this.numberOfAtoms];
+		this.dataCorrelations = new Vector[this.numberOfAtoms];
+		for (int i=0; i < this.numberOfAtoms; i++) {
+			this.dataCorrelations[i] = new RandomAccessSparseVector(this.numberOfFeatures);
+		}
+		this.updatedAtom = new RandomAccessSparseVector(this.numberOfFeatures);
+	}
+
+	/*
+	 * The weight, between 0 (exclusive) and 1 (no forgetting, the default), that
+	 * the statistics of past datapoints retain for every new datapoint.
+	 */
+	public void setForgettingFactor(double forgettingFactor) {
+		if (forgettingFactor <= 0.0 || forgettingFactor > 1.0) {
+			throw new IllegalArgumentException("The forgetting factor must be in (0, 1]");
+		}
+		this.forgettingFactor = forgettingFactor;
+	}
+
+	public double getForgettingFactor() {
+		return this.forgettingFactor;
+	}
+
+	/*
+	 * The number of datapoints the statistics represent, after forgetting.
+	 */
+	public double getEffectiveSamples() {
+		return this.effectiveSamples;
+	}
+
+	/*
+	 * Update the dictionary using a single datapoint.
+	 *
+	 * Returns the datapoint's projection on the dictionary atoms.
+	 */
+	public Vector train(Vector datapoint) {
+		return this.train(Collections.singletonList(datapoint)).get(0);
+	}
+
+	/*
+	 * Add the datapoints to the statistics, all projected on the same
+	 * dictionary, and then update every atom once.
+	 *
+	 * Returns the datapoints' projections on the dictionary atoms.
+	 */
+	public List<Vector> train(List<Vector> batch) {
+		List<Vector> projections = new ArrayList<Vector>(batch.size());
+		if (batch.isEmpty()) {
+			return projections;
+		}
+		MetricsListener metrics = this.dictionaryLearner.getMetricsListener();
+		boolean recording = metrics.isEnabled();
+		long startTime = recording ? System.nanoTime() : 0L;
+
+		this.dictionaryLearner.flushRegularization();
+		for (Vector datapoint : batch) {
+			this.initializeAtoms(datapoint);
+		}
+		for (Vector datapoint : batch) {
+			projections.add(this.dictionaryLearner.transform(datapoint));
+		}
+		if (recording) {
+			long time = System.nanoTime();
+			metrics.phaseCompleted(MetricsListener.Phase.TRANSFORM, time - startTime);
+			startTime = time;
+		}
+
+		this.accumulate(batch, projections);
+		this.updateAtoms();
+		if (recording) {
+			metrics.phaseCompleted(MetricsListener.Phase.UPDATE, System.nanoTime() - startTime);
+			for (int i=0; i < this.numberOfAtoms; i++) {
+				metrics.atomSize(i, this.dictionaryLearner.getDictionaryMatrix().viewColumn(i).getNumNondefaultElements());
+			}
+		}
+		return projections;
+	}
+
+	/*
+	 * Initialize the first empty atom, if any, with the datapoint and
+	 * discard the statistics accumulated for it.
+	 */
+	private void initializeAtoms(Vector datapoint) {
+		SparseColumnMatrix dictionary = this.dictionaryLearner.getDictionaryMatrix();
+		for (int i=0; i < this.numberOfAtoms; i++) {
+			if (dictionary.viewColumn(i).getNumNondefaultElements() == 0) {
+				this.dictionaryLearner.setAtom(i, datapoint);
+				this.resetStatistics(i);
+				this.dictionaryLearner.getMetricsListener().atomInitialized(i);
+				break;
+			}
+		}
+	}
+
+	private void resetStatistics(int atom) {
+		for (int i=0; i < this.numberOfAtoms; i++) {
+			this.atomCorrelations[atom][i] = 0.0;
+			this.atomCorrelations[i][atom] = 0.0;
+		}
+		this.dataCorrelations[atom] = new RandomAccessSparseVector(this.numberOfFeatures);
+	}
+
+	/*
+	 * Decay the statistics for the batch and add the batch's
+	 * outer products to them.
+	 */
+	private void accumulate(List<Vector> batch, List<Vector> projections) {
+		double decay = Math.pow(this.forgettingFactor, batch.size());
+		if (decay != 1.0) {
+			for (double[] row : this.atomCorrelations) {
+				for (int j=0; j < this.numberOfAtoms; j++) {
+					row[j] *= decay;
+				}
+			}
+			this.dataCorrelationScale *= decay;
+			if (this.dataCorrelationScale < MINIMUM_SCALE) {
+				this.rescaleDataCorrelations();
+			}
+		}
+		this.effectiveSamples = decay * this.effectiveSamples + batch.size();
+
+		for (int k=0; k < batch.size(); k++) {
+			Vector projection = projections.get(k);
+			for (Element first : projection.nonZeroes()) {
+				double firstWeight = first.get();
+				if (firstWeight == 0.0) {
+					continue;
+				}
+				double[] row = this.atomCorrelations[first.index()];
+				for (Element second : projection.nonZeroes()) {
+					row[second.index()] += firstWeight * second.get();
+				}
+				Vector column = this.dataCorrelations[first.index()];
+				double weight = firstWeight / this.dataCorrelationScale;
+				for (Element elem : batch.get(k).nonZeroes()) {
+					column.incrementQuick(elem.index(), weight * elem.get());
+				}
+			}
+		}
+	}
+
+	private void rescaleDataCorrelations() {
+		for (Vector column : this.dataCorrelations) {
+			for (Element elem : column.nonZeroes()) {
+				elem.set(elem.get() * this.dataCorrelationScale);
+			}
+		}
+		this.dataCorrelationScale = 1.0;
+	}
+
+	/*
+	 * A single pass of block-coordinate descent over the atoms. Each atom d_j
+	 * is replaced, using the already updated preceding atoms, by
+	 *
+	 *   softThreshold(b_j - sum_{k != j} A_kj * d_k, n * l1Penalty) / (A_jj + n * l2Penalty)
+	 *
+	 * Atoms that no datapoint has used since their initialization, and atoms whose
+	 * update leaves them exactly as they are, are not set on the learner, so that
+	 * the transformer's caches for them stay valid.
+	 */
+	private void updateAtoms() {
+		SparseColumnMatrix dictionary = this.dictionaryLearner.getDictionaryMatrix();
+		double l1Threshold = this.effectiveSamples * this.dictionaryLearner.getL1Penalty();
+		double l2Weight = this.effectiveSamples * this.dictionaryLearner.getL2Penalty();
+		for (int j=0; j < this.numberOfAtoms; j++) {
+			double diagonal = this.atomCorrelations[j][j];
+			if (diagonal == 0.0) {
+				continue;
+			}
+			this.workspace.clearFeatures(this.numberOfFeatures);
+			for (Element elem : this.dataCorrelations[j].nonZeroes()) {
+				this.workspace.incrementFeature(elem.index(), this.dataCorrelationScale * elem.get());
+			}
+			for (int k=0; k < this.numberOfAtoms; k++) {
+				double correlation = this.atomCorrelations[k][j];
+				if (k == j || correlation == 0.0) {
+					continue;
+				}
+				for (Element elem : dictionary.viewColumn(k).nonZeroes()) {
+					this.workspace.incrementFeature(elem.index(), -correlation * elem.get());
+				}
+			}
+
+			Vector current = dictionary.viewColumn(j);
+			int[] features = this.workspace.getFeatureIndices();
+			double[] residual = this.workspace.getFeatureValues();
+			int numberOfResidualFeatures = this.workspace.getFeatureSize();
+			double denominator = diagonal + l2Weight;
+			int numberOfNonZeros = 0;
+			boolean unchanged = true;
+			for (int f=0; f < numberOfResidualFeatures; f++) {
+				double value = softThreshold(residual[features[f]], l1Threshold) / denominator;
+				if (value != 0.0) {
+					this.updatedAtom.setQuick(features[f], value);
+					numberOfNonZeros++;
+				}
+				unchanged = unchanged && value == current.getQuick(features[f]);
+			}
+			if (!unchanged || numberOfNonZeros != current.getNumNondefaultElements()) {
+				this.dictionaryLearner.setAtom(j, this.updatedAtom);
+			}
+			for (int f=0; f < numberOfResidualFeatures; f++) {
+				this.updatedAtom.setQuick(features[f], 0.0);
+			}
+		}
+	}
+
+	private static double softThreshold(double value, double threshold) {
+		if (value > threshold) {
+			return value - threshold;
+		} else if (value < -threshold) {
+			return value + threshold;
+		}
+		return 0.0;
+	}
+
+}
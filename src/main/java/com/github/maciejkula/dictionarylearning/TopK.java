@@ -0,0 +1,120 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.Arrays;
+
+/**
+ * The k highest-scoring indices offered to it, kept in a bounded min-heap
+ * of primitive arrays so that each offer costs at most O(log k) and nothing
+ * is allocated after construction.
+ */
+public class TopK {
+
+	private final int k;
+	private final int[] indices;
+	private final double[] scores;
+	private int size;
+
+	public TopK(int k) {
+		if (k < 0) {
+			throw new IllegalArgumentException("k must be non-negative: " + k);
+		}
+		this.k = k;
+		this.indices = new int[k];
+		this.scores = new double[k];
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/*
+	 * Returns true if the index is (for now) among the top k.
+	 */
+	public boolean offer(int index, double score) {
+		if (this.size < this.k) {
+			int position = this.size++;
+			while (position > 0) {
+				int parent = (position - 1) >>> 1;
+				if (this.scores[parent] <= score) {
+					break;
+				}
+				this.indices[position] = this.indices[parent];
+				this.scores[position] = this.scores[parent];
+				position = parent;
+			}
+			this.indices[position] = index;
+			this.scores[position] = score;
+			return true;
+		}
+		if (this.k == 0 || score <= this.scores[0]) {
+			return false;
+		}
+		siftDown(this.indices, this.scores, this.size, index, score);
+		return true;
+	}
+
+	/*
+	 * The lowest of the retained scores, which an offer has to beat
+	 * once size() == k. Only valid if size() > 0.
+	 */
+	public double getLowestScore() {
+		return this.scores[0];
+	}
+
+	/*
+	 * The indices, highest score first.
+	 */
+	public int[] getIndices() {
+		int[] sortedIndices = Arrays.copyOf(this.indices, this.size);
+		this.sortDescending(sortedIndices, Arrays.copyOf(this.scores, this.size));
+		return sortedIndices;
+	}
+
+	/*
+	 * The scores, aligned with getIndices.
+	 */
+	public double[] getScores() {
+		double[] sortedScores = Arrays.copyOf(this.scores, this.size);
+		this.sortDescending(Arrays.copyOf(this.indices, this.size), sortedScores);
+		return sortedScores;
+	}
+
+	/*
+	 * Heapsort of a copy of the heap: moving the minimum to the end of the
+	 * shrinking heap leaves the arrays in descending order.
+	 */
+	private void sortDescending(int[] heapIndices, double[] heapScores) {
+		for (int end=this.size - 1; end > 0; end--) {
+			int index = heapIndices[end];
+			double score = heapScores[end];
+			heapIndices[end] = heapIndices[0];
+			heapScores[end] = heapScores[0];
+			siftDown(heapIndices, heapScores, end, index, score);
+		}
+	}
+
+	/*
+	 * Place the element at the root of a heap of the given size, moving it down to its position.
+	 */
+	private static void siftDown(int[] heapIndices, double[] heapScores, int size, int index, double score) {
+		int position = 0;
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && heapScores[child + 1] < heapScores[child]) {
+				child++;
+			}
+			if (heapScores[child] >= score) {
+				break;
+			}
+			heapIndices[position] = heapIndices[child];
+			heapScores[position] = heapScores[child];
+			position = child;
+		}
+		heapIndices[position] = index;
+		heapScores[position] = score;
+	}
+
+}
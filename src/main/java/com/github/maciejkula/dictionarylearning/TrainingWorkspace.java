@@ -0,0 +1,183 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.Arrays;
+
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+/**
+ * Scratch buffers reused across training steps, so that the training
+ * hot path does not allocate. A workspace must only be used by one
+ * thread at a time.
+ */
+class TrainingWorkspace {
+
+	private double[] projection = new double[0];
+	private boolean[] updatedAtoms = new boolean[0];
+	private int[] indices = new int[0];
+
+	private int[] datapointIndices = new int[0];
+	private double[] datapointValues = new double[0];
+	private int datapointSize;
+
+	// The batch datapoints using each atom, with their projection weights.
+	private int[] atomBatchSizes = new int[0];
+	private int[][] atomDatapoints = new int[0][];
+	private double[][] atomProjectionWeights = new double[0][];
+
+	// A sparse accumulator over features: values, and the indices touched since clearing.
+	private double[] featureValues = new double[0];
+	private boolean[] touchedFeatures = new boolean[0];
+	private int[] featureIndices = new int[0];
+	private int featureSize;
+
+	/*
+	 * Returns a buffer with one entry per atom.
+	 */
+	double[] getProjection(int numberOfAtoms) {
+		if (this.projection.length != numberOfAtoms) {
+			this.projection = new double[numberOfAtoms];
+		}
+		return this.projection;
+	}
+
+	/*
+	 * Returns a cleared flag per atom, for marking the atoms a step updates.
+	 */
+	boolean[] getUpdatedAtoms(int numberOfAtoms) {
+		if (this.updatedAtoms.length != numberOfAtoms) {
+			this.updatedAtoms = new boolean[numberOfAtoms];
+		} else {
+			Arrays.fill(this.updatedAtoms, false);
+		}
+		return this.updatedAtoms;
+	}
+
+	/*
+	 * Copy the datapoint's nonzeros into primitive arrays, so that they can be
+	 * read once per atom without going through the vector's iterators.
+	 */
+	void setDatapoint(Vector datapoint) {
+		int capacity = datapoint.getNumNondefaultElements();
+		if (this.datapointIndices.length < capacity) {
+			this.datapointIndices = new int[Math.max(capacity, 2 * this.datapointIndices.length)];
+			this.datapointValues = new double[this.datapointIndices.length];
+		}
+		int size = 0;
+		for (Element elem : datapoint.nonZeroes()) {
+			if (elem.get() != 0.0) {
+				this.datapointIndices[size] = elem.index();
+				this.datapointValues[size] = elem.get();
+				size++;
+			}
+		}
+		this.datapointSize = size;
+	}
+
+	int[] getDatapointIndices() {
+		return this.datapointIndices;
+	}
+
+	double[] getDatapointValues() {
+		return this.datapointValues;
+	}
+
+	int getDatapointSize() {
+		return this.datapointSize;
+	}
+
+	/*
+	 * Returns an index buffer of at least the given size.
+	 */
+	int[] getIndices(int minimumSize) {
+		if (this.indices.length < minimumSize) {
+			this.indices = new int[Math.max(minimumSize, 2 * this.indices.length)];
+		}
+		return this.indices;
+	}
+
+	/*
+	 * Forget the datapoints recorded against each atom.
+	 */
+	void clearBatch(int numberOfAtoms) {
+		if (this.atomBatchSizes.length != numberOfAtoms) {
+			this.atomBatchSizes = new int[numberOfAtoms];
+			this.atomDatapoints = new int[numberOfAtoms][];
+			this.atomProjectionWeights = new double[numberOfAtoms][];
+			for (int i=0; i < numberOfAtoms; i++) {
+				this.atomDatapoints[i] = new int[0];
+				this.atomProjectionWeights[i] = new double[0];
+			}
+		} else {
+			Arrays.fill(this.atomBatchSizes, 0);
+		}
+	}
+
+	/*
+	 * Record that the batch datapoint uses the atom with the given projection weight.
+	 */
+	void addToBatch(int atom, int datapoint, double projectionWeight) {
+		int size = this.atomBatchSizes[atom];
+		if (this.atomDatapoints[atom].length == size) {
+			int capacity = Math.max(4, 2 * size);
+			this.atomDatapoints[atom] = Arrays.copyOf(this.atomDatapoints[atom], capacity);
+			this.atomProjectionWeights[atom] = Arrays.copyOf(this.atomProjectionWeights[atom], capacity);
+		}
+		this.atomDatapoints[atom][size] = datapoint;
+		this.atomProjectionWeights[atom][size] = projectionWeight;
+		this.atomBatchSizes[atom] = size + 1;
+	}
+
+	int getAtomBatchSize(int atom) {
+		return this.atomBatchSizes[atom];
+	}
+
+	int[] getAtomDatapoints(int atom) {
+		return this.atomDatapoints[atom];
+	}
+
+	double[] getAtomProjectionWeights(int atom) {
+		return this.atomProjectionWeights[atom];
+	}
+
+	/*
+	 * Zero the feature accumulator, touching only the entries set since it was last cleared.
+	 */
+	void clearFeatures(int numberOfFeatures) {
+		if (this.featureValues.length != numberOfFeatures) {
+			this.featureValues = new double[numberOfFeatures];
+			this.touchedFeatures = new boolean[numberOfFeatures];
+			this.featureIndices = new int[Math.min(numberOfFeatures, 16)];
+		} else {
+			for (int i=0; i < this.featureSize; i++) {
+				this.featureValues[this.featureIndices[i]] = 0.0;
+				this.touchedFeatures[this.featureIndices[i]] = false;
+			}
+		}
+		this.featureSize = 0;
+	}
+
+	void incrementFeature(int feature, double value) {
+		if (!this.touchedFeatures[feature]) {
+			if (this.featureIndices.length == this.featureSize) {
+				this.featureIndices = Arrays.copyOf(this.featureIndices, Math.max(1, 2 * this.featureSize));
+			}
+			this.touchedFeatures[feature] = true;
+			this.featureIndices[this.featureSize++] = feature;
+		}
+		this.featureValues[feature] += value;
+	}
+
+	double[] getFeatureValues() {
+		return this.featureValues;
+	}
+
+	int[] getFeatureIndices() {
+		return this.featureIndices;
+	}
+
+	int getFeatureSize() {
+		return this.featureSize;
+	}
+
+}
@@ -1,14 +1,61 @@
 package com.github.maciejkula.dictionarylearning;
 
+import java.util.concurrent.ForkJoinPool;
+
 import org.apache.hadoop.io.Writable;
+import org.apache.mahout.math.Matrix;
 import org.apache.mahout.math.SparseColumnMatrix;
 import org.apache.mahout.math.Vector;
 
 public interface Transformer extends Writable{
     
     public Vector transform(Vector datapoint, SparseColumnMatrix dictionary);
+    /*
+     * Project the datapoint, starting from a previous projection of the same
+     * entity where the solver can make use of it.
+     */
+    public Vector transform(Vector datapoint, Vector initialProjection, SparseColumnMatrix dictionary);
+    /*
+     * Project the datapoint into a caller-provided array with one entry per
+     * atom, so that repeated projections need not allocate their output.
+     */
+    public void transform(Vector datapoint, SparseColumnMatrix dictionary, double[] projection);
     public Vector inverseTransform(Vector projection, SparseColumnMatrix dictionary);
+    /*
+     * Project every row of the matrix, processing blocks of rows in parallel
+     * on the pool. Returns one row of projections per datapoint.
+     */
+    public Matrix transform(Matrix datapoints, SparseColumnMatrix dictionary, ForkJoinPool pool);
+    /*
+     * Reconstruct every row of the matrix of projections, in parallel on the pool.
+     */
+    public Matrix inverseTransform(Matrix projections, SparseColumnMatrix dictionary, ForkJoinPool pool);
+    /*
+     * The k highest-scoring features of the reconstruction from the projection,
+     * skipping features that are nonzero in excluded (which may be null),
+     * without materializing the reconstruction.
+     */
+    public TopK recommend(Vector projection, SparseColumnMatrix dictionary, int k, Vector excluded);
+    /*
+     * Bring any cached state up to date with the dictionary. Until the
+     * dictionary or the caches are next modified, transform and
+     * inverseTransform can then be called from multiple threads without
+     * locking.
+     */
+    public void prepare(SparseColumnMatrix dictionary);
     public void clearCaches();
+    /*
+     * Returns a transformer with the same configuration and empty caches.
+     */
+    public Transformer copy();
+    /*
+     * Invalidate only the cached state derived from a single atom.
+     */
+    public void clearCaches(int atom);
+    /*
+     * Report cache accesses and solver statistics to the listener.
+     */
+    public void setMetricsListener(MetricsListener metrics);
     
 
 }
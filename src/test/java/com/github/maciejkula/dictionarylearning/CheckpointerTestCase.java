@@ -0,0 +1,124 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.Vector;
+
+public class CheckpointerTestCase extends TestCase {
+
+	private static List<Vector> randomData(Random random) {
+		List<Vector> data = new ArrayList<Vector>();
+		for (int n=0; n < 400; n++) {
+			data.add(MappedDictionaryTestCase.randomDatapoint(300, random));
+		}
+		return data;
+	}
+
+	private static DictionaryLearner createLearner() {
+		DictionaryLearner dictionaryLearner = new DictionaryLearner(10, 300, new CholeskyTransformer(0.1));
+		dictionaryLearner.setLearningRate(0.05);
+		dictionaryLearner.setL1Penalty(0.001);
+		dictionaryLearner.setL2Penalty(0.01);
+		dictionaryLearner.setLazyRegularization(true);
+		dictionaryLearner.setUpdateThreshold(0.01);
+		return dictionaryLearner;
+	}
+
+	private static File[] listFiles(File directory, final String prefix) {
+		List<File> files = new ArrayList<File>();
+		for (File file : directory.listFiles()) {
+			if (file.getName().startsWith(prefix)) {
+				files.add(file);
+			}
+		}
+		return files.toArray(new File[files.size()]);
+	}
+
+	/*
+	 * Train on half of the data with checkpoints ending in a delta, and
+	 * return the checkpoint directory.
+	 */
+	private static File trainWithCheckpoints(DictionaryLearner dictionaryLearner, List<Vector> data) throws IOException {
+		File directory = Files.createTempDirectory("checkpoints").toFile();
+		directory.deleteOnExit();
+		Checkpointer checkpointer = new Checkpointer(dictionaryLearner, directory);
+		checkpointer.setCheckpointInterval(20);
+		checkpointer.setSnapshotInterval(4);
+		for (Vector datapoint : data.subList(0, 190)) {
+			checkpointer.train(datapoint);
+		}
+		// Checkpoints after 20, ..., 180 datapoints and this one: a snapshot
+		// at 180 and a delta.
+		checkpointer.checkpoint();
+		checkpointer.close();
+		assertEquals(190, checkpointer.getSamples());
+		for (File file : directory.listFiles()) {
+			file.deleteOnExit();
+		}
+		return directory;
+	}
+
+	public void testResume() throws IOException {
+		List<Vector> data = randomData(new Random(42));
+		DictionaryLearner dictionaryLearner = createLearner();
+		File directory = trainWithCheckpoints(dictionaryLearner, data);
+
+		// Older snapshots are deleted.
+		assertEquals(1, listFiles(directory, "snapshot-").length);
+		assertTrue(listFiles(directory, "deltas-")[0].length() > 0);
+
+		DictionaryLearner restored = createLearner();
+		restored.setLearningRate(1.0);
+		assertTrue(Checkpointer.hasCheckpoint(directory));
+		assertEquals(190, Checkpointer.restore(directory, restored));
+		assertEquals(dictionaryLearner.getNumberOfSteps(), restored.getNumberOfSteps());
+		assertEquals(0.05, restored.getLearningRate());
+		assertEquals(dictionaryLearner, restored);
+
+		// Training continues exactly as it would have without interruption.
+		for (Vector datapoint : data.subList(190, data.size())) {
+			dictionaryLearner.train(datapoint);
+			restored.train(datapoint);
+		}
+		assertEquals(dictionaryLearner, restored);
+	}
+
+	public void testIgnoresTornDeltaRecord() throws IOException {
+		List<Vector> data = randomData(new Random(42));
+		DictionaryLearner dictionaryLearner = createLearner();
+		File directory = trainWithCheckpoints(dictionaryLearner, data);
+
+		// A crash in the middle of appending a record.
+		FileOutputStream output = new FileOutputStream(listFiles(directory, "deltas-")[0], true);
+		output.write(new byte[] {0, 0, 1, 0, 1, 2, 3});
+		output.close();
+
+		DictionaryLearner restored = createLearner();
+		assertEquals(190, Checkpointer.restore(directory, restored));
+		assertEquals(dictionaryLearner, restored);
+	}
+
+	public void testIgnoresCorruptRecordLength() throws IOException {
+		List<Vector> data = randomData(new Random(42));
+		DictionaryLearner dictionaryLearner = createLearner();
+		File directory = trainWithCheckpoints(dictionaryLearner, data);
+
+		// A length field that would otherwise be allocated as is.
+		FileOutputStream output = new FileOutputStream(listFiles(directory, "deltas-")[0], true);
+		output.write(new byte[] {0x7f, -1, -1, -1, 0, 0, 0, 0, 0, 0, 0, 0, 1, 2, 3});
+		output.close();
+
+		DictionaryLearner restored = createLearner();
+		assertEquals(190, Checkpointer.restore(directory, restored));
+		assertEquals(dictionaryLearner, restored);
+	}
+
+}
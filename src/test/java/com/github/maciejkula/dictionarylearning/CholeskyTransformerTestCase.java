@@ -0,0 +1,77 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.SparseColumnMatrix;
+import org.apache.mahout.math.SparseRowMatrix;
+import org.apache.mahout.math.Vector;
+
+public class CholeskyTransformerTestCase extends TestCase {
+
+	public void testMatchesLSMR() {
+		Random random = new Random(42);
+		SparseColumnMatrix dictionary = MathUtilsTestCase.createRandomMatrix(200, 20, 0.3, random);
+		Vector datapoint = MathUtilsTestCase.createRandomVector(200, 0.2, random);
+
+		Vector expected = new LSMRTransformer().transform(datapoint, dictionary);
+		Vector actual = new CholeskyTransformer().transform(datapoint, dictionary);
+		assertTrue(expected.getDistanceSquared(actual) < 0.000001);
+	}
+
+	public void testRidge() {
+		Random random = new Random(42);
+		double ridge = 0.5;
+		SparseColumnMatrix dictionary = MathUtilsTestCase.createRandomMatrix(200, 20, 0.3, random);
+		Vector datapoint = MathUtilsTestCase.createRandomVector(200, 0.2, random);
+
+		Vector projection = new CholeskyTransformer(ridge).transform(datapoint, dictionary);
+		Matrix regularizedGram = new DenseMatrix(20, 20).assign(dictionary.transpose().times(dictionary));
+		for (int i=0; i < 20; i++) {
+			regularizedGram.setQuick(i, i, regularizedGram.getQuick(i, i) + ridge);
+		}
+		Vector residual = regularizedGram.times(projection).minus(dictionary.transpose().times(datapoint));
+		assertTrue(residual.norm(2) < 0.000001);
+	}
+
+	public void testRankDeficientDictionary() {
+		Random random = new Random(42);
+		SparseColumnMatrix dictionary = MathUtilsTestCase.createRandomMatrix(200, 20, 0.3, random);
+		dictionary.viewColumn(3).assign(0.0);
+		dictionary.viewColumn(7).assign(dictionary.viewColumn(5));
+		Vector datapoint = dictionary.viewColumn(5).plus(dictionary.viewColumn(9));
+
+		CholeskyTransformer transformer = new CholeskyTransformer();
+		Vector projection = transformer.transform(datapoint, dictionary);
+		assertEquals(0.0, projection.get(3));
+		assertTrue(datapoint.getDistanceSquared(transformer.inverseTransform(projection, dictionary)) < 0.000001);
+	}
+
+	public void testBatchTransform() {
+		Random random = new Random(42);
+		SparseColumnMatrix dictionary = MathUtilsTestCase.createRandomMatrix(200, 20, 0.3, random);
+		Matrix datapoints = new SparseRowMatrix(150, 200);
+		for (int i=0; i < datapoints.numRows(); i++) {
+			// Both sparser and denser datapoints than the atoms.
+			datapoints.assignRow(i, MathUtilsTestCase.createRandomVector(200, i % 2 == 0 ? 0.01 : 0.8, random));
+		}
+
+		CholeskyTransformer transformer = new CholeskyTransformer();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		Matrix projections = transformer.transform(datapoints, dictionary, pool);
+		Matrix reconstructions = transformer.inverseTransform(projections, dictionary, pool);
+		pool.shutdown();
+
+		for (int i=0; i < datapoints.numRows(); i++) {
+			Vector projection = transformer.transform(datapoints.viewRow(i), dictionary);
+			assertTrue(projection.getDistanceSquared(projections.viewRow(i)) < 0.000001);
+			assertTrue(transformer.inverseTransform(projection, dictionary)
+					.getDistanceSquared(reconstructions.viewRow(i)) < 0.000001);
+		}
+	}
+
+}
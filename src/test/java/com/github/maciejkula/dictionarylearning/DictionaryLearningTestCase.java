@@ -6,8 +6,11 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
@@ -25,7 +28,7 @@ import com.google.common.io.Resources;
 
 public class DictionaryLearningTestCase extends TestCase {
 
-	private static Matrix readData() {
+	static Matrix readData() {
 		URL url = Resources.getResource("data.csv");
 		String text = "";
 		try {
@@ -41,7 +44,7 @@ public class DictionaryLearningTestCase extends TestCase {
 		return new SparseRowMatrix(vectors.size(), vectors.get(0).size(), vectors.toArray(new Vector[3]));
 	}
 
-	private static Matrix sparsifyData(Matrix denseData, int cardinality) {
+	static Matrix sparsifyData(Matrix denseData, int cardinality) {
 		ArrayList<Vector> vectors = new ArrayList<Vector>();
 		for (Vector denseVector : denseData) {
 			Vector sparsefiedVector = new RandomAccessSparseVector(cardinality);
@@ -77,6 +80,157 @@ public class DictionaryLearningTestCase extends TestCase {
 		assertTrue(squareError < 0.000001);
 	}
 
+	public void testCholeskyAccuracy() {
+		Matrix matrix = sparsifyData(readData(), 1048576);
+		DictionaryLearner dictionaryLearner = new DictionaryLearner(20, matrix.columnSize(), new CholeskyTransformer());
+		dictionaryLearner.setL1Penalty(0.15);
+		dictionaryLearner.setL2Penalty(0.01);
+		for (Vector row : matrix) {
+			dictionaryLearner.train(row);
+		}
+
+		double squareError = 0.0;
+		for (Vector datapoint : matrix) {
+			squareError = squareError + datapoint.getDistanceSquared(dictionaryLearner.inverseTransform(dictionaryLearner.transform(datapoint)));
+		}
+		System.out.println(String.format("Cholesky error: %s", squareError));
+		assertTrue(squareError < 0.000001);
+	}
+
+	public void testSparseCodingTraining() {
+		Matrix matrix = sparsifyData(readData(), 1048576);
+		DictionaryLearner dictionaryLearner = new DictionaryLearner(20, matrix.columnSize(), new SparseCodingTransformer(0.001));
+		dictionaryLearner.setL1Penalty(0.15);
+		dictionaryLearner.setL2Penalty(0.01);
+		for (Vector row : matrix) {
+			dictionaryLearner.train(row);
+		}
+
+		double squareError = 0.0;
+		double squareNorm = 0.0;
+		for (Vector datapoint : matrix) {
+			squareError = squareError + datapoint.getDistanceSquared(dictionaryLearner.inverseTransform(dictionaryLearner.transform(datapoint)));
+			squareNorm = squareNorm + datapoint.getLengthSquared();
+		}
+		System.out.println(String.format("Sparse coding relative error: %s", squareError / squareNorm));
+		assertTrue(squareError / squareNorm < 0.05);
+	}
+
+	public void testLazyRegularization() {
+		Matrix matrix = sparsifyData(readData(), 1048576);
+		double[] relativeErrors = new double[2];
+		for (int mode=0; mode < 2; mode++) {
+			DictionaryLearner dictionaryLearner = new DictionaryLearner(20, matrix.columnSize(), new SparseCodingTransformer(0.001));
+			dictionaryLearner.setLazyRegularization(mode == 1);
+			dictionaryLearner.setLearningRate(0.1);
+			dictionaryLearner.setL1Penalty(0.01);
+			dictionaryLearner.setL2Penalty(0.01);
+			for (int epoch=0; epoch < 3; epoch++) {
+				for (Vector row : matrix) {
+					dictionaryLearner.train(row);
+				}
+			}
+
+			double squareError = 0.0;
+			double squareNorm = 0.0;
+			for (Vector datapoint : matrix) {
+				squareError = squareError + datapoint.getDistanceSquared(dictionaryLearner.inverseTransform(dictionaryLearner.transform(datapoint)));
+				squareNorm = squareNorm + datapoint.getLengthSquared();
+			}
+			relativeErrors[mode] = squareError / squareNorm;
+		}
+		System.out.println(String.format("Eager regularization relative error: %s, lazy: %s", relativeErrors[0], relativeErrors[1]));
+		assertTrue(relativeErrors[1] < 0.05);
+		assertEquals(relativeErrors[0], relativeErrors[1], 0.01);
+	}
+
+	public void testUpdateThreshold() {
+		Matrix matrix = sparsifyData(readData(), 1048576);
+		DictionaryLearner dictionaryLearner = new DictionaryLearner(20, matrix.columnSize(), new LSMRTransformer());
+		for (Vector row : matrix) {
+			dictionaryLearner.train(row);
+		}
+		double threshold = 0.5;
+		dictionaryLearner.setUpdateThreshold(threshold);
+		Matrix dictionary = MathUtils.copyDictionary(dictionaryLearner.getDictionaryMatrix());
+		Vector projection = dictionaryLearner.train(matrix.viewRow(0));
+
+		int skipped = 0;
+		for (int i=0; i < dictionaryLearner.getNumberOfAtoms(); i++) {
+			boolean unchanged = dictionary.viewColumn(i).equals(dictionaryLearner.getDictionary().viewColumn(i));
+			if (Math.abs(projection.get(i)) <= threshold) {
+				assertTrue(unchanged);
+				skipped++;
+			} else {
+				assertFalse(unchanged);
+			}
+		}
+		assertTrue(skipped > 0);
+	}
+
+	public void testMiniBatchAccuracy() {
+		Matrix matrix = sparsifyData(readData(), 1048576);
+		int numAtoms = 20;
+		int batchSize = 10;
+		DictionaryLearner dictionaryLearner = new DictionaryLearner(numAtoms, matrix.columnSize(), new LSMRTransformer());
+		dictionaryLearner.setL1Penalty(0.15);
+		dictionaryLearner.setL2Penalty(0.01);
+		List<Vector> batch = new ArrayList<Vector>();
+		for (Vector row : matrix) {
+			batch.add(row);
+			if (batch.size() == batchSize) {
+				assertEquals(batchSize, dictionaryLearner.train(batch).size());
+				batch.clear();
+			}
+		}
+
+		double squareError = 0.0;
+		for (Vector datapoint : matrix) {
+			squareError = squareError + datapoint.getDistanceSquared(dictionaryLearner.inverseTransform(dictionaryLearner.transform(datapoint)));
+		}
+		System.out.println(String.format("Mini-batch error: %s", squareError));
+		assertTrue(squareError < 0.000001);
+	}
+
+	public void testTrainingAllocation() {
+		Random random = new Random(42);
+		List<Vector> rows = new ArrayList<Vector>();
+		for (int i=0; i < 50; i++) {
+			Vector row = new RandomAccessSparseVector(1048576);
+			for (int j=0; j < 200; j++) {
+				row.setQuick(random.nextInt(1000), random.nextDouble());
+			}
+			rows.add(row);
+		}
+		int numAtoms = 20;
+		DictionaryLearner dictionaryLearner = new DictionaryLearner(numAtoms, 1048576, new CholeskyTransformer());
+		dictionaryLearner.setL1Penalty(0.15);
+		dictionaryLearner.setL2Penalty(0.01);
+		// Warm up: fill the atoms, size the buffers and let the JIT compile the hot path.
+		for (int epoch=0; epoch < 20; epoch++) {
+			for (Vector row : rows) {
+				dictionaryLearner.train(row);
+			}
+		}
+
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		int samples = 0;
+		long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+		for (int epoch=0; epoch < 10; epoch++) {
+			for (Vector row : rows) {
+				dictionaryLearner.train(row);
+				samples++;
+			}
+		}
+		double bytesPerSample = (threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore) / (double) samples;
+		System.out.println(String.format("Allocated bytes per training sample: %s", bytesPerSample));
+		// Mahout's sparse vector iterators allocate a small, constant amount per
+		// traversal, so allocation cannot be zero: but it should not grow with the
+		// size of the datapoints or atoms (200 nonzeros here).
+		assertTrue(bytesPerSample < 400 * numAtoms);
+	}
+
 	public void testSerialization() {
 
 		Matrix data = readData();        
@@ -102,4 +256,24 @@ public class DictionaryLearningTestCase extends TestCase {
 		}
 		assertTrue(dictionaryLearner.equals(deserializedLearner));
 	}
+
+	public void testBatchTransform() {
+		Matrix matrix = sparsifyData(readData(), 1048576);
+		for (Transformer transformer : new Transformer[] {new LSMRTransformer(), new SparseCodingTransformer(0.01)}) {
+			DictionaryLearner dictionaryLearner = new DictionaryLearner(20, matrix.columnSize(), transformer);
+			dictionaryLearner.setL1Penalty(0.15);
+			for (Vector row : matrix) {
+				dictionaryLearner.train(row);
+			}
+
+			Matrix projections = dictionaryLearner.transform(matrix);
+			Matrix reconstructions = dictionaryLearner.inverseTransform(projections);
+			for (int i=0; i < matrix.numRows(); i++) {
+				Vector projection = dictionaryLearner.transform(matrix.viewRow(i));
+				assertTrue(projection.getDistanceSquared(projections.viewRow(i)) < 0.000001);
+				assertTrue(dictionaryLearner.inverseTransform(projection).getDistanceSquared(reconstructions.viewRow(i)) < 0.000001);
+			}
+		}
+	}
+
 }
@@ -0,0 +1,81 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+
+public class DictionarySnapshotTestCase extends TestCase {
+
+	private static List<Vector> createRandomData(int rows, int cardinality, double density, Random random) {
+		List<Vector> data = new ArrayList<Vector>();
+		for (int i=0; i < rows; i++) {
+			Vector row = new RandomAccessSparseVector(cardinality);
+			for (int j=0; j < density * cardinality; j++) {
+				row.setQuick(random.nextInt(cardinality), random.nextDouble());
+			}
+			data.add(row);
+		}
+		return data;
+	}
+
+	public void testSnapshotIsIsolatedFromTraining() {
+		List<Vector> data = createRandomData(50, 100, 0.1, new Random(42));
+		DictionaryLearner dictionaryLearner = new DictionaryLearner(10, 100, new CholeskyTransformer());
+		for (Vector row : data.subList(0, 25)) {
+			dictionaryLearner.train(row);
+		}
+		DictionarySnapshot snapshot = dictionaryLearner.publishSnapshot();
+		Vector before = snapshot.transform(data.get(0));
+		for (Vector row : data.subList(25, 50)) {
+			dictionaryLearner.train(row);
+		}
+		assertSame(snapshot, dictionaryLearner.getServingSnapshot());
+		assertEquals(0.0, before.getDistanceSquared(snapshot.transform(data.get(0))));
+	}
+
+	public void testConcurrentServing() throws Exception {
+		final List<Vector> data = createRandomData(200, 100, 0.1, new Random(42));
+		final DictionaryLearner dictionaryLearner = new DictionaryLearner(10, 100, new LSMRTransformer());
+		for (Vector row : data.subList(0, 20)) {
+			dictionaryLearner.train(row);
+		}
+		dictionaryLearner.publishSnapshot();
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int thread=0; thread < 4; thread++) {
+			results.add(executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					for (Vector row : data) {
+						DictionarySnapshot snapshot = dictionaryLearner.getServingSnapshot();
+						Vector first = snapshot.inverseTransform(snapshot.transform(row));
+						Vector second = snapshot.inverseTransform(snapshot.transform(row));
+						if (first.getDistanceSquared(second) != 0.0) {
+							return false;
+						}
+					}
+					return true;
+				}
+			}));
+		}
+		for (Vector row : data.subList(20, 200)) {
+			dictionaryLearner.train(row);
+			dictionaryLearner.publishSnapshot();
+		}
+		for (Future<Boolean> result : results) {
+			assertTrue(result.get());
+		}
+		executor.shutdown();
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.Vector;
+
+public class DistributedTrainerTestCase extends TestCase {
+
+	static double computeError(DictionaryLearner dictionaryLearner, Matrix matrix) {
+		double squareError = 0.0;
+		for (Vector datapoint : matrix) {
+			squareError += datapoint.getDistanceSquared(dictionaryLearner.inverseTransform(dictionaryLearner.transform(datapoint)));
+		}
+		return squareError;
+	}
+
+	public void testAveragedTraining() {
+		Matrix matrix = DictionaryLearningTestCase.sparsifyData(DictionaryLearningTestCase.readData(), 1048576);
+		int numberOfShards = 3;
+		List<List<Vector>> shards = new ArrayList<List<Vector>>();
+		for (int i=0; i < numberOfShards; i++) {
+			shards.add(new ArrayList<Vector>());
+		}
+		for (int epoch=0; epoch < 5; epoch++) {
+			for (int i=0; i < matrix.numRows(); i++) {
+				shards.get(i % numberOfShards).add(matrix.viewRow(i));
+			}
+		}
+
+		// With fewer atoms than features the reconstruction is not exact, so
+		// compare against a single learner trained on all shards in turn.
+		DictionaryLearner serialLearner = new DictionaryLearner(2, matrix.columnSize(), new LSMRTransformer());
+		for (List<Vector> shard : shards) {
+			for (Vector row : shard) {
+				serialLearner.train(row);
+			}
+		}
+
+		DictionaryLearner dictionaryLearner = new DictionaryLearner(2, matrix.columnSize(), new LSMRTransformer());
+		DistributedTrainer trainer = new DistributedTrainer(dictionaryLearner, 10);
+		long samples = trainer.train(shards);
+
+		assertEquals(5 * matrix.numRows(), samples);
+		assertTrue(trainer.getRounds() > 1);
+		double squareError = computeError(dictionaryLearner, matrix);
+		double serialSquareError = computeError(serialLearner, matrix);
+		System.out.println(String.format("Distributed training error: %s after %s rounds, serial training error: %s",
+				squareError, trainer.getRounds(), serialSquareError));
+		assertTrue(squareError < 1.1 * serialSquareError);
+	}
+
+	public void testWorkerFailure() {
+		List<List<Vector>> shards = new ArrayList<List<Vector>>();
+		Matrix matrix = DictionaryLearningTestCase.sparsifyData(DictionaryLearningTestCase.readData(), 1048576);
+		List<Vector> rows = new ArrayList<Vector>();
+		for (Vector row : matrix) {
+			rows.add(row);
+		}
+		shards.add(rows);
+		List<Vector> badShard = new ArrayList<Vector>(rows);
+		badShard.add(null);
+		shards.add(badShard);
+
+		DistributedTrainer trainer = new DistributedTrainer(new DictionaryLearner(20, matrix.columnSize(), new LSMRTransformer()), 5);
+		try {
+			trainer.train(shards);
+			fail("Worker failure not reported");
+		} catch (RuntimeException e) {
+			// Expected, and the other worker must not have deadlocked.
+		}
+	}
+
+}
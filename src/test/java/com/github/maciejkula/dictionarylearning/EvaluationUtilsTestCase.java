@@ -2,7 +2,10 @@ package com.github.maciejkula.dictionarylearning;
 
 import junit.framework.TestCase;
 
+import org.apache.mahout.math.Matrix;
 import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SparseRowMatrix;
+import org.apache.mahout.math.Vector;
 
 public class EvaluationUtilsTestCase extends TestCase {
     
@@ -20,4 +23,70 @@ public class EvaluationUtilsTestCase extends TestCase {
         assertTrue(rankMap.get(3) == 9);
     }
 
+    public void testHitsAtK() {
+        RandomAccessSparseVector scores = new RandomAccessSparseVector(10);
+        scores.setQuick(1, 10);
+        scores.setQuick(2, 5);
+        scores.setQuick(3, 4);
+        scores.setQuick(4, 3);
+        RandomAccessSparseVector relevant = new RandomAccessSparseVector(10);
+        relevant.setQuick(3, 1);
+        relevant.setQuick(4, 1);
+        RandomAccessSparseVector excluded = new RandomAccessSparseVector(10);
+        excluded.setQuick(1, 1);
+
+        EvaluationUtils.RankMap rankMap = EvaluationUtils.getRankMap(scores);
+
+        assertEquals(1, rankMap.getRankedIndex(0));
+        assertEquals(4, rankMap.getRankedIndex(3));
+        assertEquals(1, EvaluationUtils.computeHitsAtK(rankMap, relevant, excluded, 2));
+        assertEquals(2, EvaluationUtils.computeHitsAtK(rankMap, relevant, excluded, 3));
+    }
+
+    public void testHitsAtKRanksZeroesAboveNegatives() {
+        RandomAccessSparseVector scores = new RandomAccessSparseVector(5);
+        scores.setQuick(0, 2);
+        scores.setQuick(1, -1);
+        scores.setQuick(2, -3);
+        RandomAccessSparseVector excluded = new RandomAccessSparseVector(5);
+        excluded.setQuick(3, 1);
+        RandomAccessSparseVector relevant = new RandomAccessSparseVector(5);
+        relevant.setQuick(1, 1);
+        relevant.setQuick(4, 1);
+
+        EvaluationUtils.RankMap rankMap = EvaluationUtils.getRankMap(scores);
+
+        // One positive item, then the only zero-scored item that is not excluded.
+        assertEquals(1, EvaluationUtils.computeHitsAtK(rankMap, relevant, excluded, 2));
+        assertEquals(2, EvaluationUtils.computeHitsAtK(rankMap, relevant, excluded, 3));
+        relevant.setQuick(4, 0);
+        assertEquals(0, EvaluationUtils.computeHitsAtK(rankMap, relevant, excluded, 2));
+    }
+    
+    public void testEvaluate() {
+        Matrix trainingData = new SparseRowMatrix(3, 10);
+        Matrix testData = new SparseRowMatrix(3, 10);
+        trainingData.setQuick(0, 0, 1);
+        testData.setQuick(0, 1, 1);
+        trainingData.setQuick(1, 0, 1);
+        testData.setQuick(1, 9, 1);
+        
+        // Scores every item by its index, so that low indices rank last.
+        EvaluationUtils.Evaluation evaluation = EvaluationUtils.evaluate(trainingData, testData, new EvaluationUtils.Scorer() {
+            @Override
+            public Vector score(int row, Vector trainingRow) {
+                Vector scores = new RandomAccessSparseVector(10);
+                for (int i=0; i < 10; i++) {
+                    scores.setQuick(i, i + 1);
+                }
+                return scores;
+            }
+        }, 1);
+        
+        assertEquals(0.9, evaluation.getTrainingSetAveragePercentageRank(), 1e-9);
+        assertEquals((0.8 + 0.0) / 2, evaluation.getTestSetAveragePercentageRank(), 1e-9);
+        assertEquals(0.5, evaluation.getPrecisionAtK(), 1e-9);
+        assertEquals(0.5, evaluation.getRecallAtK(), 1e-9);
+    }
+
 }
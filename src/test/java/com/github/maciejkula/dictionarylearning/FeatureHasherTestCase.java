@@ -0,0 +1,72 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.Vector;
+
+public class FeatureHasherTestCase extends TestCase {
+
+	public void testSignedHashing() {
+		FeatureHasher featureHasher = new FeatureHasher(1024);
+		int positive = 0;
+		for (int i=0; i < 10000; i++) {
+			String id = "item-" + i;
+			int feature = featureHasher.getFeature(id);
+			assertTrue(feature >= 0 && feature < 1024);
+			assertEquals(feature, new FeatureHasher(1024).getFeature(id));
+			if (featureHasher.getSign(id) > 0) {
+				positive++;
+			}
+			assertTrue(featureHasher.getFeature((long) i) >= 0);
+		}
+		assertEquals(5000, positive, 200);
+
+		// Hashed dot products estimate the originals: disjoint sets are nearly
+		// orthogonal, overlapping ones are not.
+		List<String> first = new ArrayList<String>();
+		List<String> second = new ArrayList<String>();
+		for (int i=0; i < 200; i++) {
+			first.add("a" + i);
+			second.add("b" + i);
+		}
+		Vector firstVector = featureHasher.vectorize(first);
+		assertEquals(200.0, firstVector.dot(firstVector), 40.0);
+		assertEquals(0.0, firstVector.dot(featureHasher.vectorize(second)), 40.0);
+	}
+
+	public void testReverseLookup() {
+		// Many more ids than features, with a few popular ones.
+		FeatureHasher featureHasher = new FeatureHasher(64, 2, 0L);
+		Random random = new Random(42);
+		List<String> popular = Arrays.asList("popular-0", "popular-1", "popular-2");
+		for (int i=0; i < 2000; i++) {
+			Vector vector = featureHasher.newVector();
+			featureHasher.add(vector, popular.get(random.nextInt(popular.size())), 1.0);
+			featureHasher.add(vector, "rare-" + i, 1.0);
+		}
+		for (String id : popular) {
+			assertEquals(id, featureHasher.getIds(featureHasher.getFeature(id)).get(0));
+		}
+
+		// Scores for the popular ids, as a reconstruction would give them.
+		Vector scores = featureHasher.newVector();
+		for (int i=0; i < popular.size(); i++) {
+			featureHasher.add(scores, popular.get(i), 3.0 - i);
+		}
+		List<FeatureHasher.ScoredId> recommendations = featureHasher.recommend(scores, 2, null);
+		assertEquals(2, recommendations.size());
+		assertEquals("popular-0", recommendations.get(0).getId());
+		// Most, but not all, of the feature's score is attributed to the popular id.
+		assertEquals(3.0, recommendations.get(0).getScore(), 0.3);
+		assertEquals("popular-1", recommendations.get(1).getId());
+
+		recommendations = featureHasher.recommend(scores, 1, Arrays.asList("popular-0"));
+		assertEquals("popular-1", recommendations.get(0).getId());
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.Vector;
+
+public class InteractionStreamTestCase extends TestCase {
+
+	private static List<InteractionStream.UserInteractions> readAll(InteractionStream stream) {
+		List<InteractionStream.UserInteractions> users = new ArrayList<InteractionStream.UserInteractions>();
+		for (InteractionStream.UserInteractions user : stream) {
+			users.add(user);
+		}
+		return users;
+	}
+
+	public void testGroupsUsers() {
+		String data = "1\t1\t5\t881250949\n1\t3\t2\t881250949\n\n2\t2\t4\t881250949\n";
+		List<InteractionStream.UserInteractions> users = readAll(new InteractionStream(new StringReader(data), 3));
+
+		assertEquals(2, users.size());
+		assertEquals(0, users.get(0).getUserId());
+		assertEquals(5.0, users.get(0).getInteractions().get(0));
+		assertEquals(2.0, users.get(0).getInteractions().get(2));
+		assertEquals(2, users.get(0).getInteractions().getNumNonZeroElements());
+		assertEquals(1, users.get(1).getUserId());
+		assertEquals(4.0, users.get(1).getInteractions().get(1));
+	}
+
+	public void testBinaryCsv() {
+		InteractionStream stream = new InteractionStream(new StringReader("0,1,3.5\n0,2\n"), 3);
+		stream.setDelimiter(',');
+		stream.setOneBasedIds(false);
+		stream.setBinary(true);
+		Vector interactions = readAll(stream).get(0).getInteractions();
+
+		assertEquals(1.0, interactions.get(1));
+		assertEquals(1.0, interactions.get(2));
+	}
+
+	public void testHashedItems() {
+		FeatureHasher featureHasher = new FeatureHasher(16);
+		InteractionStream stream = new InteractionStream(new StringReader("1\tsku-a\t5\n1\tsku-b\t2\n"), 16);
+		stream.setFeatureHasher(featureHasher);
+		Vector interactions = readAll(stream).get(0).getInteractions();
+
+		Vector expected = featureHasher.newVector();
+		featureHasher.add(expected, "sku-a", 5.0);
+		featureHasher.add(expected, "sku-b", 2.0);
+		assertEquals(expected, interactions);
+		assertEquals(5.0, featureHasher.getScore(interactions, "sku-a"),
+				featureHasher.getFeature("sku-a") == featureHasher.getFeature("sku-b") ? 2.0 : 0.0);
+	}
+
+	public void testReportsMalformedInput() {
+		try {
+			readAll(new InteractionStream(new StringReader("1\t1\t1\n1\t4\t1\n"), 3));
+			fail("Out of range item accepted");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause().getMessage().contains("line 2"));
+		}
+		try {
+			readAll(new InteractionStream(new StringReader("0\t1\t1\n"), 3));
+			fail("User 0 accepted in a one-based file");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause().getMessage().contains("line 1"));
+		}
+	}
+
+	public void testBoundedQueueDeliversEverything() {
+		StringBuilder data = new StringBuilder();
+		for (int i=1; i <= 1000; i++) {
+			data.append(i).append('\t').append(i % 50 + 1).append("\t1\n");
+		}
+		InteractionStream stream = new InteractionStream(new StringReader(data.toString()), 50);
+		stream.setQueueCapacity(2);
+
+		DictionaryLearner dictionaryLearner = new DictionaryLearner(10, 50, new CholeskyTransformer());
+		assertEquals(1000, stream.train(dictionaryLearner, 16));
+		try {
+			stream.iterator();
+			fail("Stream iterated over twice");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+	}
+
+	public void testFailedTrainingClosesReader() throws InterruptedException {
+		StringBuilder data = new StringBuilder();
+		for (int i=1; i <= 1000; i++) {
+			data.append(i).append("\t1\t1\n");
+		}
+		final CountDownLatch closed = new CountDownLatch(1);
+		InteractionStream stream = new InteractionStream(new StringReader(data.toString()) {
+			@Override
+			public void close() {
+				super.close();
+				closed.countDown();
+			}
+		}, 50);
+		stream.setQueueCapacity(2);
+
+		DictionaryLearner dictionaryLearner = new DictionaryLearner(10, 50, new CholeskyTransformer()) {
+			@Override
+			public Vector train(Vector datapoint) {
+				throw new IllegalStateException("Training failed");
+			}
+		};
+		try {
+			stream.train(dictionaryLearner, 1);
+			fail("Training failure swallowed");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+		// The producer, blocked on the full queue, is stopped and the reader closed.
+		assertTrue(closed.await(10, TimeUnit.SECONDS));
+	}
+
+}
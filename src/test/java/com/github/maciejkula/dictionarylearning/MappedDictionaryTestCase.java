@@ -0,0 +1,87 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+
+public class MappedDictionaryTestCase extends TestCase {
+
+	static Vector randomDatapoint(int numberOfFeatures, Random random) {
+		Vector datapoint = new RandomAccessSparseVector(numberOfFeatures);
+		for (int i=0; i < 20; i++) {
+			datapoint.setQuick(random.nextInt(numberOfFeatures), random.nextDouble());
+		}
+		return datapoint;
+	}
+
+	static DictionaryLearner trainLearner(Random random) {
+		DictionaryLearner dictionaryLearner = new DictionaryLearner(10, 300, new CholeskyTransformer(0.1));
+		for (int i=0; i < 200; i++) {
+			dictionaryLearner.train(randomDatapoint(300, random));
+		}
+		return dictionaryLearner;
+	}
+
+	private void assertMatchesLearner(DictionaryLearner dictionaryLearner, MappedDictionary mapped, Random random) {
+		assertEquals(dictionaryLearner.getNumberOfAtoms(), mapped.getNumberOfAtoms());
+		assertEquals(dictionaryLearner.getNumberOfFeatures(), mapped.getNumberOfFeatures());
+		assertEquals(0.1, mapped.getRidge());
+		for (int i=0; i < 20; i++) {
+			Vector datapoint = randomDatapoint(300, random);
+			Vector projection = dictionaryLearner.transform(datapoint);
+			assertTrue(projection.getDistanceSquared(mapped.transform(datapoint)) < 0.000001);
+			assertTrue(dictionaryLearner.inverseTransform(projection)
+					.getDistanceSquared(mapped.inverseTransform(projection)) < 0.000001);
+		}
+	}
+
+	public void testRoundTrip() throws IOException {
+		Random random = new Random(42);
+		DictionaryLearner dictionaryLearner = trainLearner(random);
+
+		for (boolean includeFactorization : new boolean[] {true, false}) {
+			File file = File.createTempFile("dictionary", ".model");
+			file.deleteOnExit();
+			MappedDictionary.write(dictionaryLearner, file, includeFactorization);
+			MappedDictionary mapped = MappedDictionary.open(file);
+
+			assertMatchesLearner(dictionaryLearner, mapped, random);
+			for (int i=0; i < dictionaryLearner.getNumberOfAtoms(); i++) {
+				assertEquals(dictionaryLearner.getDictionary().viewColumn(i), mapped.toMatrix().viewColumn(i));
+			}
+		}
+	}
+
+	public void testRejectsInvalidFiles() throws IOException {
+		File file = File.createTempFile("dictionary", ".model");
+		file.deleteOnExit();
+		MappedDictionary.write(trainLearner(new Random(42)), file, true);
+
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.setLength(randomAccessFile.length() - 8);
+		randomAccessFile.close();
+		try {
+			MappedDictionary.open(file);
+			fail("Truncated file accepted");
+		} catch (IOException e) {
+			// Expected.
+		}
+
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.writeInt(0);
+		randomAccessFile.close();
+		try {
+			MappedDictionary.open(file);
+			fail("File without magic number accepted");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+}
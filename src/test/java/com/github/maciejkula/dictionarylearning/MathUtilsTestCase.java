@@ -1,18 +1,29 @@
 package com.github.maciejkula.dictionarylearning;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 
 import junit.framework.TestCase;
 
+import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.Matrix;
 import org.apache.mahout.math.RandomAccessSparseVector;
 import org.apache.mahout.math.SparseColumnMatrix;
 import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+import org.apache.mahout.math.function.Functions;
 
 public class MathUtilsTestCase extends TestCase {
 	
 	private static Vector createRandomVector(int cardinality, double density) {
-		Random randomGenerator = new Random();
+		return createRandomVector(cardinality, density, new Random());
+	}
+
+	static Vector createRandomVector(int cardinality, double density, Random randomGenerator) {
 		Vector vector = new RandomAccessSparseVector(cardinality);
 		for (int j=0; j < Math.min(density * cardinality, cardinality); j++) {
 			vector.setQuick(randomGenerator.nextInt(cardinality), randomGenerator.nextDouble());
@@ -21,10 +32,14 @@ public class MathUtilsTestCase extends TestCase {
 	}
 	
 	private static SparseColumnMatrix createRandomMatrix(int rows, int cols, double density) {
+		return createRandomMatrix(rows, cols, density, new Random());
+	}
+
+	static SparseColumnMatrix createRandomMatrix(int rows, int cols, double density, Random randomGenerator) {
 		SparseColumnMatrix matrix = new SparseColumnMatrix(rows, cols);
 		for (int i=0; i < cols; i++) {
 			Vector column = matrix.viewColumn(i);
-			column.assign(createRandomVector(rows, density));
+			column.assign(createRandomVector(rows, density, randomGenerator));
 		}
 		return matrix;
 	}
@@ -70,4 +85,125 @@ public class MathUtilsTestCase extends TestCase {
 		assertTrue(assertVectorsEqual(MathUtils.inverseTransform(matrix, vector),
 				matrix.times(vector)));
 	}
+	
+	public void testCompressedDictionaryKernels() {
+		SparseColumnMatrix matrix = createRandomMatrix(100, 20, 0.2);
+		CompressedDictionary compressed = CompressedDictionary.fromMatrix(matrix);
+		Vector datapoint = createRandomVector(100, 0.3);
+		Vector projection = createRandomVector(20, 0.3);
+		assertTrue(assertMatricesEqual(compressed.toMatrix(), matrix));
+		assertTrue(assertMatricesEqual(MathUtils.transposedDictionaryTimesDictionary(compressed),
+				matrix.transpose().times(matrix)));
+		assertTrue(assertVectorsEqual(MathUtils.transposedDictionaryTimesDatapoint(compressed, datapoint),
+				matrix.transpose().times(datapoint)));
+		assertTrue(assertVectorsEqual(MathUtils.inverseTransform(compressed, projection),
+				matrix.times(projection)));
+
+		Matrix output = MathUtils.transposedDictionaryTimesDictionary(compressed);
+		BitSet changedAtoms = new BitSet();
+		for (int i : new int[] {1, 2, 17}) {
+			matrix.viewColumn(i).assign(createRandomVector(100, 0.4));
+			compressed.setAtom(i, matrix.viewColumn(i));
+			changedAtoms.set(i);
+		}
+		MathUtils.updateTransposedDictionaryTimesDictionary(compressed, output, changedAtoms);
+		assertTrue(assertMatricesEqual(output, matrix.transpose().times(matrix)));
+	}
+
+	private static void assertFeatureIndexConsistent(CompressedDictionary compressed, SparseColumnMatrix matrix) {
+		long entries = 0;
+		for (int feature=0; feature < matrix.numRows(); feature++) {
+			Vector expected = new RandomAccessSparseVector(matrix.numCols());
+			for (int atom=0; atom < matrix.numCols(); atom++) {
+				expected.setQuick(atom, matrix.viewColumn(atom).getQuick(feature));
+			}
+			Vector actual = new RandomAccessSparseVector(matrix.numCols());
+			FeatureIndex.Row row = compressed.getFeatureIndex().getRow(feature);
+			for (int j=0; row != null && j < row.size(); j++) {
+				assertEquals(0.0, actual.getQuick(row.getAtoms()[j]));
+				actual.setQuick(row.getAtoms()[j], row.getValues()[j]);
+			}
+			assertEquals(expected, actual);
+			entries += expected.getNumNonZeroElements();
+		}
+		assertEquals(entries, compressed.getNumNonZeroElements());
+	}
+
+	public void testFeatureIndex() {
+		SparseColumnMatrix matrix = createRandomMatrix(1000, 20, 0.01);
+		CompressedDictionary compressed = CompressedDictionary.fromMatrix(matrix);
+		assertFeatureIndexConsistent(compressed, matrix);
+
+		for (int i : new int[] {0, 3, 3, 19}) {
+			matrix.assignColumn(i, createRandomVector(1000, 0.02));
+			compressed.setAtom(i, matrix.viewColumn(i));
+		}
+		// Same nonzero features, different values.
+		matrix.viewColumn(7).assign(Functions.mult(2.0));
+		compressed.setAtom(7, matrix.viewColumn(7));
+		matrix.assignColumn(5, new RandomAccessSparseVector(1000));
+		compressed.setAtom(5, matrix.viewColumn(5));
+		assertFeatureIndexConsistent(compressed, matrix);
+
+		// Sparse datapoints go through the index, dense ones do not.
+		for (Vector datapoint : new Vector[] {createRandomVector(1000, 0.005), 
+				new DenseVector(createRandomVector(1000, 0.005)), new RandomAccessSparseVector(1000)}) {
+			assertTrue(assertVectorsEqual(MathUtils.transposedDictionaryTimesDatapoint(compressed, datapoint),
+					matrix.transpose().times(datapoint)));
+		}
+	}
+
+	public void testRecommend() {
+		SparseColumnMatrix dictionary = createRandomMatrix(500, 20, 0.05);
+		Vector projection = createRandomVector(20, 0.5);
+		projection.setQuick(3, -1.5);
+		Vector excluded = createRandomVector(500, 0.1);
+		int k = 10;
+
+		TopK topK = MathUtils.recommend(CompressedDictionary.fromMatrix(dictionary), projection, k, excluded);
+
+		Vector reconstruction = MathUtils.inverseTransform(dictionary, projection);
+		List<Double> expectedScores = new ArrayList<Double>();
+		for (Element elem : reconstruction.nonZeroes()) {
+			if (excluded.getQuick(elem.index()) == 0.0) {
+				expectedScores.add(elem.get());
+			}
+		}
+		Collections.sort(expectedScores, Collections.reverseOrder());
+
+		int[] indices = topK.getIndices();
+		double[] scores = topK.getScores();
+		assertEquals(k, topK.size());
+		for (int i=0; i < k; i++) {
+			assertEquals(expectedScores.get(i), scores[i], 0.000001);
+			assertEquals(reconstruction.getQuick(indices[i]), scores[i], 0.000001);
+			assertEquals(0.0, excluded.getQuick(indices[i]));
+		}
+	}
+
+	public void testRecommendRanksUnscoredFeaturesAboveNegative() {
+		SparseColumnMatrix dictionary = new SparseColumnMatrix(10, 2);
+		dictionary.setQuick(0, 0, 1.0);
+		dictionary.setQuick(2, 0, 1.0);
+		dictionary.setQuick(4, 1, 1.0);
+		Vector projection = new DenseVector(new double[] {-1.0, 2.0});
+		Vector excluded = new RandomAccessSparseVector(10);
+		excluded.setQuick(1, 1.0);
+
+		TopK topK = MathUtils.recommend(CompressedDictionary.fromMatrix(dictionary), projection, 4, excluded);
+
+		// The lowest-numbered unscored features that are not excluded, in any order.
+		int[] indices = topK.getIndices();
+		assertEquals(4, indices[0]);
+		Arrays.sort(indices, 1, indices.length);
+		assertTrue(Arrays.equals(new int[] {4, 3, 5, 6}, indices));
+		assertTrue(Arrays.equals(new double[] {2.0, 0.0, 0.0, 0.0}, topK.getScores()));
+		try {
+			MathUtils.recommend(CompressedDictionary.fromMatrix(dictionary), projection, -1, null);
+			fail("Negative k accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
 }
@@ -0,0 +1,91 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.Vector;
+
+public class NeighbourIndexTestCase extends TestCase {
+
+	/*
+	 * Codes scattered around a number of random centres, as codes of
+	 * users with similar tastes are.
+	 */
+	private static Matrix createClusteredCodes(Random random, int numberOfCodes, int dimensions, int numberOfClusters) {
+		Matrix centres = new DenseMatrix(numberOfClusters, dimensions);
+		for (int i=0; i < numberOfClusters; i++) {
+			for (int j=0; j < dimensions; j++) {
+				centres.setQuick(i, j, random.nextGaussian());
+			}
+		}
+		Matrix codes = new DenseMatrix(numberOfCodes, dimensions);
+		for (int i=0; i < numberOfCodes; i++) {
+			Vector centre = centres.viewRow(random.nextInt(numberOfClusters));
+			for (int j=0; j < dimensions; j++) {
+				codes.setQuick(i, j, centre.getQuick(j) + 0.5 * random.nextGaussian());
+			}
+		}
+		return codes;
+	}
+
+	private static double computeRecall(NeighbourIndex index, Matrix queries, int k) {
+		int found = 0;
+		for (Vector query : queries) {
+			int[] exact = index.exactSearch(query, k).getIndices();
+			int[] approximate = index.search(query, k).getIndices();
+			for (int id : exact) {
+				for (int other : approximate) {
+					if (id == other) {
+						found++;
+						break;
+					}
+				}
+			}
+		}
+		return found / (double) (queries.numRows() * k);
+	}
+
+	public void testRecall() {
+		Random random = new Random(42);
+		Matrix codes = createClusteredCodes(random, 5000, 20, 50);
+		NeighbourIndex index = new NeighbourIndex(20, codes.numRows());
+		index.addAll(codes);
+		assertEquals(codes.numRows(), index.size());
+
+		Matrix queries = createClusteredCodes(random, 100, 20, 50);
+		double recall = computeRecall(index, queries, 10);
+		System.out.println(String.format("Neighbour index recall@10: %s", recall));
+		assertTrue(recall > 0.9);
+
+		TopK neighbours = index.getNeighbours(7, 10);
+		assertEquals(10, neighbours.size());
+		for (int id : neighbours.getIndices()) {
+			assertTrue(id != 7);
+		}
+	}
+
+	public void testReplacingCodes() {
+		Random random = new Random(42);
+		Matrix codes = createClusteredCodes(random, 2000, 10, 20);
+		NeighbourIndex index = new NeighbourIndex(10, codes.numRows());
+		for (int i=0; i < codes.numRows(); i++) {
+			index.add(i, codes.viewRow(i));
+		}
+
+		// Move some entities to other entities' positions.
+		for (int i=0; i < 100; i++) {
+			Vector code = new DenseVector(codes.viewRow(1000 + i));
+			index.add(i, code.times(1.0 + 1e-6 * random.nextGaussian()));
+		}
+		assertEquals(codes.numRows(), index.size());
+		for (int i=0; i < 100; i++) {
+			int[] neighbours = index.getNeighbours(i, 1).getIndices();
+			assertEquals(1000 + i, neighbours[0]);
+		}
+	}
+
+}
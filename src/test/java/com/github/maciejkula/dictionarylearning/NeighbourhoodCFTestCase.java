@@ -0,0 +1,62 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SparseRowMatrix;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.function.Functions;
+
+public class NeighbourhoodCFTestCase extends TestCase {
+
+	private static Matrix createRandomInteractions(int numberOfUsers, int numberOfItems, int interactionsPerUser) {
+		Random random = new Random(42);
+		Matrix matrix = new SparseRowMatrix(numberOfUsers, numberOfItems);
+		for (int i=0; i < numberOfUsers; i++) {
+			for (int j=0; j < interactionsPerUser; j++) {
+				// Skewed towards low item ids, so that users share items.
+				int item = (int) (numberOfItems * Math.pow(random.nextDouble(), 3));
+				matrix.setQuick(i, item, 1.0 + random.nextInt(5));
+			}
+		}
+		return matrix;
+	}
+
+	private static double cosine(Vector a, Vector b) {
+		return a.dot(b) / (a.norm(2) * b.norm(2));
+	}
+
+	public void testNeighboursAndRecommendations() {
+		Matrix matrix = createRandomInteractions(500, 200, 10);
+		int numberOfNeighbours = 20;
+		NeighbourhoodCF neighbourhoodCF = new NeighbourhoodCF(matrix, numberOfNeighbours);
+
+		for (int user=0; user < matrix.numRows(); user += 7) {
+			// All-pairs similarities for the user, ranked.
+			Vector similarities = new RandomAccessSparseVector(matrix.numRows());
+			for (int other=0; other < matrix.numRows(); other++) {
+				if (other != user) {
+					similarities.setQuick(other, cosine(matrix.viewRow(user), matrix.viewRow(other)));
+				}
+			}
+			EvaluationUtils.RankMap rankMap = EvaluationUtils.getRankMap(similarities);
+
+			int[] neighbours = neighbourhoodCF.getNeighbours(user);
+			double[] neighbourSimilarities = neighbourhoodCF.getSimilarities(user);
+			assertEquals(Math.min(numberOfNeighbours, rankMap.getNumberOfRankedElements()), neighbours.length);
+			Vector expectedRecommendations = new RandomAccessSparseVector(matrix.numCols());
+			for (int i=0; i < neighbours.length; i++) {
+				assertEquals(similarities.getQuick(neighbours[i]), neighbourSimilarities[i], 1e-9);
+				// Ties may be broken differently, so compare similarities rather than users.
+				assertEquals(similarities.getQuick(rankMap.getRankedIndex(i)), neighbourSimilarities[i], 1e-9);
+				expectedRecommendations.assign(matrix.viewRow(neighbours[i]).times(neighbourSimilarities[i]),
+						Functions.PLUS);
+			}
+			assertTrue(expectedRecommendations.getDistanceSquared(neighbourhoodCF.getRecommendations(user)) < 1e-9);
+		}
+	}
+
+}
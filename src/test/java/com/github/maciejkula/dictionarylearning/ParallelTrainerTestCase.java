@@ -0,0 +1,41 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.Vector;
+
+public class ParallelTrainerTestCase extends TestCase {
+
+	public void testAccuracyAndThroughput() {
+		Matrix matrix = DictionaryLearningTestCase.sparsifyData(DictionaryLearningTestCase.readData(), 1048576);
+		List<Vector> rows = new ArrayList<Vector>();
+		for (int epoch=0; epoch < 10; epoch++) {
+			for (Vector row : matrix) {
+				rows.add(row);
+			}
+		}
+
+		for (int numberOfThreads : new int[] {1, 2, 4}) {
+			DictionaryLearner dictionaryLearner = new DictionaryLearner(20, matrix.columnSize(), new CholeskyTransformer());
+			dictionaryLearner.setL1Penalty(0.15);
+			dictionaryLearner.setL2Penalty(0.01);
+			ParallelTrainer trainer = new ParallelTrainer(dictionaryLearner, numberOfThreads);
+			trainer.setSnapshotInterval(10);
+			assertEquals(rows.size(), trainer.train(rows));
+			assertEquals(rows.size(), dictionaryLearner.getNumberOfSteps());
+
+			double squareError = 0.0;
+			for (Vector datapoint : matrix) {
+				squareError = squareError + datapoint.getDistanceSquared(dictionaryLearner.inverseTransform(dictionaryLearner.transform(datapoint)));
+			}
+			System.out.println(String.format("Threads: %s, samples/sec: %.1f, error: %s", 
+					numberOfThreads, trainer.getSamplesPerSecond(), squareError));
+			assertTrue(squareError < 0.000001);
+		}
+	}
+
+}
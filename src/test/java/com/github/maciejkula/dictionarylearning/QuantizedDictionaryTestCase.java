@@ -0,0 +1,84 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.SparseColumnMatrix;
+import org.apache.mahout.math.SparseRowMatrix;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+public class QuantizedDictionaryTestCase extends TestCase {
+
+	private static double maximumRelativeError(DictionaryLearner dictionaryLearner, QuantizedDictionary quantized, Random random) {
+		double error = 0.0;
+		for (int i=0; i < 20; i++) {
+			Vector datapoint = MappedDictionaryTestCase.randomDatapoint(300, random);
+			Vector projection = dictionaryLearner.transform(datapoint);
+			Vector reconstruction = dictionaryLearner.inverseTransform(projection);
+			error = Math.max(error, Math.sqrt(projection.getDistanceSquared(quantized.transform(datapoint))) / projection.norm(2));
+			error = Math.max(error, Math.sqrt(reconstruction.getDistanceSquared(quantized.inverseTransform(projection)))
+					/ reconstruction.norm(2));
+		}
+		return error;
+	}
+
+	public void testPrecisions() {
+		Random random = new Random(42);
+		DictionaryLearner dictionaryLearner = MappedDictionaryTestCase.trainLearner(random);
+		SparseColumnMatrix dictionary = dictionaryLearner.getDictionaryMatrix();
+
+		QuantizedDictionary doubles = QuantizedDictionary.create(dictionaryLearner, QuantizedDictionary.Precision.DOUBLE);
+		QuantizedDictionary floats = QuantizedDictionary.create(dictionaryLearner, QuantizedDictionary.Precision.FLOAT);
+		QuantizedDictionary bytes = QuantizedDictionary.create(dictionaryLearner, QuantizedDictionary.Precision.INT8);
+		assertEquals(0.1, bytes.getRidge());
+		for (int i=0; i < dictionary.numCols(); i++) {
+			assertEquals(dictionary.viewColumn(i), doubles.toMatrix().viewColumn(i));
+		}
+
+		double doubleError = maximumRelativeError(dictionaryLearner, doubles, random);
+		double floatError = maximumRelativeError(dictionaryLearner, floats, random);
+		double byteError = maximumRelativeError(dictionaryLearner, bytes, random);
+		System.out.println(String.format("Quantization relative errors: double %s, float %s, int8 %s",
+				doubleError, floatError, byteError));
+		assertTrue(doubleError < 1e-9);
+		assertTrue(floatError < 1e-5);
+		assertTrue(byteError < 0.05);
+
+		// Int8 values are within half a step of the originals.
+		SparseColumnMatrix dequantized = bytes.toMatrix();
+		for (int i=0; i < dictionary.numCols(); i++) {
+			double step = dictionary.viewColumn(i).norm(Double.POSITIVE_INFINITY) / 127.0;
+			for (Element elem : dictionary.viewColumn(i).nonZeroes()) {
+				assertEquals(elem.get(), dequantized.getQuick(elem.index(), i), 0.5 * step + 1e-12);
+			}
+		}
+
+		assertTrue(floats.getSizeInBytes() < doubles.getSizeInBytes());
+		assertTrue(bytes.getSizeInBytes() < floats.getSizeInBytes());
+	}
+
+	public void testReport() {
+		Random random = new Random(42);
+		DictionaryLearner dictionaryLearner = MappedDictionaryTestCase.trainLearner(random);
+		Matrix trainingData = new SparseRowMatrix(100, 300);
+		Matrix testData = new SparseRowMatrix(100, 300);
+		for (int i=0; i < 100; i++) {
+			trainingData.assignRow(i, MappedDictionaryTestCase.randomDatapoint(300, random));
+			testData.assignRow(i, MappedDictionaryTestCase.randomDatapoint(300, random));
+		}
+
+		QuantizationReport report = QuantizationReport.create(dictionaryLearner, trainingData, testData, 10);
+		System.out.print(report);
+		assertEquals(QuantizedDictionary.Precision.values().length, report.getEntries().size());
+		QuantizationReport.Entry doubles = report.getEntries().get(0);
+		QuantizationReport.Entry bytes = report.getEntries().get(2);
+		assertEquals(QuantizedDictionary.Precision.INT8, bytes.getPrecision());
+		assertTrue(bytes.getSizeInBytes() < doubles.getSizeInBytes());
+		assertEquals(doubles.getEvaluation().getTrainingSetAveragePercentageRank(),
+				bytes.getEvaluation().getTrainingSetAveragePercentageRank(), 0.01);
+	}
+
+}
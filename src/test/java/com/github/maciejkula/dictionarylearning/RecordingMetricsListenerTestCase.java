@@ -0,0 +1,51 @@
+package com.github.maciejkula.dictionarylearning;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.Vector;
+
+public class RecordingMetricsListenerTestCase extends TestCase {
+
+	public void testTrainingMetrics() {
+		Matrix matrix = DictionaryLearningTestCase.sparsifyData(DictionaryLearningTestCase.readData(), 1048576);
+		int numAtoms = 20;
+		DictionaryLearner dictionaryLearner = new DictionaryLearner(numAtoms, matrix.columnSize(), new LSMRTransformer());
+		dictionaryLearner.setL1Penalty(0.15);
+		RecordingMetricsListener metrics = new RecordingMetricsListener(numAtoms, matrix.columnSize());
+		dictionaryLearner.setMetricsListener(metrics);
+
+		for (Vector row : matrix) {
+			dictionaryLearner.train(row);
+		}
+		System.out.println(metrics);
+
+		for (MetricsListener.Phase phase : MetricsListener.Phase.values()) {
+			assertEquals(matrix.numRows(), metrics.getLatencies(phase).getCount());
+			assertTrue(metrics.getLatencies(phase).getPercentileNanos(0.5) <= metrics.getLatencies(phase).getPercentileNanos(1.0));
+		}
+		assertTrue(metrics.getAtomsInitialized() >= 1);
+		assertEquals(matrix.numRows(), metrics.getSolves());
+		assertEquals(matrix.numRows(), metrics.getGramCacheHits() + metrics.getGramCacheMisses());
+		long nonZeros = 0;
+		for (int i=0; i < numAtoms; i++) {
+			assertEquals(dictionaryLearner.getDictionary().viewColumn(i).getNumNondefaultElements(), metrics.getAtomNonZeros(i));
+			nonZeros += metrics.getAtomNonZeros(i);
+		}
+		assertEquals(nonZeros, metrics.getDictionaryNonZeros());
+	}
+
+	public void testHistogram() {
+		RecordingMetricsListener.LatencyHistogram histogram = new RecordingMetricsListener.LatencyHistogram();
+		for (int i=0; i < 99; i++) {
+			histogram.record(100);
+		}
+		histogram.record(10000);
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(199.0, histogram.getMeanNanos());
+		assertEquals(127, histogram.getPercentileNanos(0.5));
+		assertEquals(16383, histogram.getPercentileNanos(1.0));
+	}
+
+}
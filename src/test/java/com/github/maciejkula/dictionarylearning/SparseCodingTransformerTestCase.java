@@ -0,0 +1,64 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SparseColumnMatrix;
+import org.apache.mahout.math.Vector;
+
+public class SparseCodingTransformerTestCase extends TestCase {
+
+	public void testNoPenaltyMatchesLeastSquares() {
+		Random random = new Random(42);
+		SparseColumnMatrix dictionary = MathUtilsTestCase.createRandomMatrix(200, 10, 0.3, random);
+		Vector datapoint = MathUtilsTestCase.createRandomVector(200, 0.2, random);
+
+		SparseCodingTransformer transformer = new SparseCodingTransformer(0.0);
+		transformer.setMaxIterations(10000);
+		transformer.setTolerance(1e-12);
+		Vector expected = new CholeskyTransformer().transform(datapoint, dictionary);
+		Vector actual = transformer.transform(datapoint, dictionary);
+		assertTrue(expected.getDistanceSquared(actual) < 0.000001);
+	}
+
+	public void testOptimalityConditions() {
+		Random random = new Random(42);
+		double penalty = 0.5;
+		SparseColumnMatrix dictionary = MathUtilsTestCase.createRandomMatrix(200, 20, 0.3, random);
+		Vector datapoint = dictionary.viewColumn(2).times(2.0).plus(dictionary.viewColumn(11));
+
+		SparseCodingTransformer transformer = new SparseCodingTransformer(penalty);
+		transformer.setMaxIterations(10000);
+		transformer.setTolerance(1e-12);
+		Vector projection = transformer.transform(datapoint, dictionary);
+		assertTrue(projection instanceof RandomAccessSparseVector);
+		assertTrue(projection.getNumNonZeroElements() < 20);
+
+		Vector residual = datapoint.minus(transformer.inverseTransform(projection, dictionary));
+		Vector gradient = dictionary.transpose().times(residual);
+		for (int i=0; i < 20; i++) {
+			if (projection.get(i) != 0.0) {
+				assertEquals(penalty * Math.signum(projection.get(i)), gradient.get(i), 0.0001);
+			} else {
+				assertTrue(Math.abs(gradient.get(i)) <= penalty + 0.0001);
+			}
+		}
+	}
+
+	public void testWarmStart() {
+		Random random = new Random(42);
+		SparseColumnMatrix dictionary = MathUtilsTestCase.createRandomMatrix(200, 20, 0.3, random);
+		Vector datapoint = dictionary.viewColumn(2).times(2.0).plus(dictionary.viewColumn(11));
+
+		SparseCodingTransformer transformer = new SparseCodingTransformer(0.5);
+		transformer.setTolerance(1e-12);
+		transformer.setMaxIterations(10000);
+		Vector projection = transformer.transform(datapoint, dictionary);
+		transformer.setMaxIterations(1);
+		Vector warmStarted = transformer.transform(datapoint, projection, dictionary);
+		assertTrue(projection.getDistanceSquared(warmStarted) < 0.000001);
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.github.maciejkula.dictionarylearning;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.Vector;
+
+public class SufficientStatisticsTrainerTestCase extends TestCase {
+
+	/*
+	 * Datapoints in a 10-dimensional subspace with decaying variances, so that a
+	 * dictionary of fewer atoms has to find the dominant directions rather than
+	 * reproducing the subspace spanned by the datapoints it was initialized with.
+	 */
+	private static Matrix createLowRankData(int numberOfRows, int numberOfFeatures) {
+		Random random = new Random(42);
+		int rank = 10;
+		Matrix basis = new DenseMatrix(rank, numberOfFeatures);
+		for (int i=0; i < rank; i++) {
+			for (int j=0; j < numberOfFeatures; j++) {
+				basis.setQuick(i, j, random.nextGaussian());
+			}
+		}
+		Matrix matrix = new DenseMatrix(numberOfRows, numberOfFeatures);
+		for (int n=0; n < numberOfRows; n++) {
+			for (int i=0; i < rank; i++) {
+				double weight = random.nextGaussian() * Math.pow(0.6, i);
+				for (int j=0; j < numberOfFeatures; j++) {
+					matrix.setQuick(n, j, matrix.getQuick(n, j) + weight * basis.getQuick(i, j));
+				}
+			}
+		}
+		return matrix;
+	}
+
+	public void testFewerSamplesThanSgd() {
+		Matrix matrix = createLowRankData(200, 50);
+
+		DictionaryLearner sgdLearner = new DictionaryLearner(3, matrix.columnSize(), new LSMRTransformer());
+		for (int epoch=0; epoch < 5; epoch++) {
+			for (Vector row : matrix) {
+				sgdLearner.train(row);
+			}
+		}
+
+		DictionaryLearner dictionaryLearner = new DictionaryLearner(3, matrix.columnSize(), new LSMRTransformer());
+		SufficientStatisticsTrainer trainer = new SufficientStatisticsTrainer(dictionaryLearner);
+		for (Vector row : matrix) {
+			trainer.train(row);
+		}
+
+		double squareError = DistributedTrainerTestCase.computeError(dictionaryLearner, matrix);
+		double sgdSquareError = DistributedTrainerTestCase.computeError(sgdLearner, matrix);
+		System.out.println(String.format("Sufficient statistics error after one epoch: %s, SGD error after five epochs: %s",
+				squareError, sgdSquareError));
+		assertEquals(matrix.numRows(), trainer.getEffectiveSamples(), 1e-9);
+		assertTrue(squareError < 0.75 * sgdSquareError);
+	}
+
+	public void testMiniBatchesWithForgetting() {
+		Matrix matrix = DictionaryLearningTestCase.sparsifyData(DictionaryLearningTestCase.readData(), 1048576);
+		DictionaryLearner dictionaryLearner = new DictionaryLearner(20, matrix.columnSize(), new CholeskyTransformer());
+		dictionaryLearner.setL1Penalty(0.001);
+		dictionaryLearner.setL2Penalty(0.01);
+		SufficientStatisticsTrainer trainer = new SufficientStatisticsTrainer(dictionaryLearner);
+		trainer.setForgettingFactor(0.9);
+
+		for (int epoch=0; epoch < 5; epoch++) {
+			List<Vector> batch = new ArrayList<Vector>();
+			for (Vector row : matrix) {
+				batch.add(row);
+				if (batch.size() == 10) {
+					trainer.train(batch);
+					batch.clear();
+				}
+			}
+		}
+
+		// Batches of 10 decay the statistics by 0.9^10 each, so the effective
+		// number of samples approaches 10 / (1 - 0.9^10).
+		assertEquals(10.0 / (1.0 - Math.pow(0.9, 10)), trainer.getEffectiveSamples(), 0.01);
+		double squareError = DistributedTrainerTestCase.computeError(dictionaryLearner, matrix);
+		System.out.println(String.format("Sufficient statistics mini-batch error: %s", squareError));
+		assertTrue(squareError < 0.000001);
+	}
+
+}